@@ -0,0 +1,72 @@
+package com.logmein.dms.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.logmein.dms.DocumentManagementServlet;
+import com.logmein.dms.util.AlphaNumericGenerator;
+
+/**
+ * doGet throughput through mocked request and response objects, i.e. the servlet's own cost
+ * without a network stack. Storage and transfer strategies are chosen with dms.* system
+ * properties, e.g. -jvmArgsAppend -Ddms.cache.maxBytes=268435456.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class DownloadBenchmark {
+
+  @Param({ "1024", "65536", "1048576", "16777216" })
+  public int size;
+
+  private DocumentManagementServlet servlet;
+
+  private HttpServletRequest[] requests;
+
+  private HttpServletResponse response;
+
+  @Setup(Level.Trial)
+  public void setUp() throws ServletException, IOException {
+    servlet = Servlets.newServlet();
+    byte[] contents = new byte[size];
+    ThreadLocalRandom.current().nextBytes(contents);
+    requests = new HttpServletRequest[16];
+    for (int i = 0; i < requests.length; i++) {
+      String documentId = Servlets.store(servlet.getDocumentStore(), AlphaNumericGenerator.generateNextAlphaNumericId(),
+          contents);
+      requests[i] = Servlets.get(documentId);
+    }
+    response = Servlets.response();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    servlet.destroy();
+  }
+
+  @Benchmark
+  public void get() throws ServletException, IOException {
+    servlet.service(requests[ThreadLocalRandom.current().nextInt(requests.length)], response);
+  }
+}
@@ -0,0 +1,135 @@
+package com.logmein.dms.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.LogManager;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.logmein.dms.DocumentManagementServlet;
+
+/**
+ * End to end GET and PUT over HTTP against the servlet deployed in an embedded Jetty, to put the
+ * in-process numbers next to what a client sees.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class EmbeddedContainerBenchmark {
+
+  @Param({ "1024", "1048576" })
+  public int size;
+
+  private Server server;
+
+  private String baseUrl;
+
+  private String[] documentIds;
+
+  private byte[] uploadBody;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    server = new Server(0);
+    ServletContextHandler context = new ServletContextHandler();
+    ServletHolder holder = new ServletHolder(new DocumentManagementServlet());
+    holder.setAsyncSupported(true);
+    context.addServlet(holder, "/storage/documents/*");
+    server.setHandler(context);
+    LogManager.getRootLogger().setLevel(org.apache.log4j.Level.WARN); // Jetty logs through slf4j-log4j12
+    server.start();
+    baseUrl = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/storage/documents";
+
+    byte[] contents = new byte[size];
+    ThreadLocalRandom.current().nextBytes(contents);
+    uploadBody = Servlets.multipartBody(contents);
+    documentIds = new String[16];
+    for (int i = 0; i < documentIds.length; i++) {
+      documentIds[i] = post();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    server.stop();
+  }
+
+  @Benchmark
+  public long get() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(
+        baseUrl + "/" + documentIds[ThreadLocalRandom.current().nextInt(documentIds.length)]).openConnection();
+    long read = 0;
+    byte[] buffer = new byte[64 * 1024];
+    try (InputStream in = connection.getInputStream()) {
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        read += n;
+      }
+    }
+    return read;
+  }
+
+  /**
+   * Replaces documents rather than creating new ones, so the store does not grow during the run
+   */
+  @Benchmark
+  public int put() throws IOException {
+    return upload("PUT", "/" + documentIds[ThreadLocalRandom.current().nextInt(documentIds.length)]);
+  }
+
+  private String post() throws IOException {
+    HttpURLConnection connection = open("POST", "");
+    byte[] id = new byte[64];
+    int length = 0;
+    try (InputStream in = connection.getInputStream()) {
+      int n;
+      while ((n = in.read(id, length, id.length - length)) > 0) {
+        length += n;
+      }
+    }
+    return new String(id, 0, length, "US-ASCII");
+  }
+
+  private int upload(String method, String path) throws IOException {
+    HttpURLConnection connection = open(method, path);
+    int status = connection.getResponseCode();
+    connection.getInputStream().close();
+    return status;
+  }
+
+  private HttpURLConnection open(String method, String path) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+    connection.setRequestMethod(method);
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(uploadBody.length);
+    connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + Servlets.BOUNDARY);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(uploadBody);
+    }
+    return connection;
+  }
+}
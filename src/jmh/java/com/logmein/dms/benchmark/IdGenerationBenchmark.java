@@ -0,0 +1,47 @@
+package com.logmein.dms.benchmark;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.logmein.dms.util.AlphaNumericGenerator;
+
+/**
+ * Document Id generation with every hardware thread drawing at once
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class IdGenerationBenchmark {
+
+  private final AlphaNumericGenerator timeOrdered = new AlphaNumericGenerator(true, null);
+
+  private final AlphaNumericGenerator secure = new AlphaNumericGenerator(false, new SecureRandom());
+
+  @Benchmark
+  public String random() {
+    return AlphaNumericGenerator.generateNextAlphaNumericId();
+  }
+
+  @Benchmark
+  public String timeOrdered() {
+    return timeOrdered.next();
+  }
+
+  @Benchmark
+  public String secureRandom() {
+    return secure.next();
+  }
+}
@@ -0,0 +1,77 @@
+package com.logmein.dms.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.logmein.dms.DocumentManagementServlet;
+import com.logmein.dms.storage.DocumentEntry;
+import com.logmein.dms.storage.DocumentStore;
+import com.logmein.dms.util.AlphaNumericGenerator;
+
+/**
+ * Document lookup (what checkDocumentExistence does on every request) against stores of growing
+ * size. The store is populated with empty documents once per fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+
+  @Param({ "1000", "100000", "1000000" })
+  public int documents;
+
+  private DocumentManagementServlet servlet;
+
+  private DocumentStore store;
+
+  private String[] documentIds;
+
+  @Setup(Level.Trial)
+  public void setUp() throws ServletException, IOException {
+    servlet = Servlets.newServlet();
+    store = servlet.getDocumentStore();
+    documentIds = new String[documents];
+    byte[] empty = new byte[0];
+    for (int i = 0; i < documents; i++) {
+      documentIds[i] = Servlets.store(store, AlphaNumericGenerator.generateNextAlphaNumericId(), empty);
+    }
+    // Measure lookups against an index loaded from disk, as after a restart
+    store.close();
+    store.open();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    servlet.destroy();
+  }
+
+  @Benchmark
+  public DocumentEntry hit() throws IOException {
+    return store.get(documentIds[ThreadLocalRandom.current().nextInt(documents)]);
+  }
+
+  /**
+   * Includes drawing the random Id; compare with IdGenerationBenchmark.random
+   */
+  @Benchmark
+  public DocumentEntry miss() throws IOException {
+    return store.get(AlphaNumericGenerator.generateNextAlphaNumericId());
+  }
+}
@@ -0,0 +1,157 @@
+package com.logmein.dms.benchmark;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import com.logmein.dms.DocumentManagementServlet;
+import com.logmein.dms.storage.DocumentStore;
+import com.logmein.dms.storage.DocumentWriter;
+
+/**
+ * Request and response stand-ins for driving {@link DocumentManagementServlet} in process. The
+ * mocks are stub only so that millions of invocations are not recorded.
+ */
+final class Servlets {
+
+  static final String BOUNDARY = "jmhBoundary7MA4YWxkTrZu0gW";
+
+  private Servlets() {
+  }
+
+  /**
+   * A servlet initialised like in a container; init parameters fall back to the dms.* system
+   * properties, e.g. -Ddms.storage.backend=segment
+   */
+  static DocumentManagementServlet newServlet() throws ServletException {
+    ServletConfig config = mock(ServletConfig.class, withSettings().stubOnly());
+    DocumentManagementServlet servlet = new DocumentManagementServlet();
+    servlet.init(config);
+    LogManager.getRootLogger().setLevel(Level.WARN); // init installs a DEBUG console logger
+    return servlet;
+  }
+
+  static String store(DocumentStore store, String documentId, byte[] contents) throws IOException {
+    DocumentWriter writer = store.newWriter(documentId, ".bin");
+    try (OutputStream outputStream = writer.getOutputStream()) {
+      outputStream.write(contents);
+    }
+    writer.commit();
+    return documentId;
+  }
+
+  static HttpServletRequest get(String documentId) {
+    HttpServletRequest request = mock(HttpServletRequest.class, withSettings().stubOnly());
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/" + documentId);
+    when(request.getDateHeader(anyString())).thenReturn(-1L);
+    return request;
+  }
+
+  /**
+   * A multipart upload of one file; POST when documentId is null, PUT otherwise. The body is
+   * replayed on every call of getInputStream.
+   */
+  static HttpServletRequest upload(String documentId, byte[] contents) throws IOException {
+    byte[] body = multipartBody(contents);
+    HttpServletRequest request = mock(HttpServletRequest.class, withSettings().stubOnly());
+    when(request.getMethod()).thenReturn(documentId == null ? "POST" : "PUT");
+    when(request.getPathInfo()).thenReturn(documentId == null ? null : "/" + documentId);
+    when(request.getContentType()).thenReturn("multipart/form-data; boundary=" + BOUNDARY);
+    when(request.getContentLengthLong()).thenReturn((long) body.length);
+    when(request.getInputStream()).thenAnswer(invocation -> new BodyInputStream(body));
+    return request;
+  }
+
+  static byte[] multipartBody(byte[] contents) {
+    byte[] head = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n"
+        + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    byte[] body = new byte[head.length + contents.length + tail.length];
+    System.arraycopy(head, 0, body, 0, head.length);
+    System.arraycopy(contents, 0, body, head.length, contents.length);
+    System.arraycopy(tail, 0, body, head.length + contents.length, tail.length);
+    return body;
+  }
+
+  /**
+   * A response that discards the body and keeps the status-line free text (the new Id of a POST)
+   */
+  static HttpServletResponse response() throws IOException {
+    HttpServletResponse response = mock(HttpServletResponse.class, withSettings().stubOnly());
+    when(response.getOutputStream()).thenReturn(new NullOutputStream());
+    when(response.getWriter()).thenAnswer(invocation -> new PrintWriter(new StringWriter()));
+    return response;
+  }
+
+  private static final class NullOutputStream extends ServletOutputStream {
+
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static final class BodyInputStream extends ServletInputStream {
+
+    private final ByteArrayInputStream in;
+
+    BodyInputStream(byte[] body) {
+      this.in = new ByteArrayInputStream(body);
+    }
+
+    @Override
+    public int read() {
+      return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      return in.read(b, off, len);
+    }
+
+    @Override
+    public boolean isFinished() {
+      return in.available() == 0;
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setReadListener(ReadListener readListener) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.logmein.dms.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.logmein.dms.DocumentManagementServlet;
+import com.logmein.dms.util.AlphaNumericGenerator;
+
+/**
+ * doPost (new document) and doPut (replacement) throughput of multipart uploads through mocked
+ * request and response objects. Every iteration starts from an empty store so that POSTs do not
+ * fill the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class UploadBenchmark {
+
+  @Param({ "1024", "65536", "1048576" })
+  public int size;
+
+  private DocumentManagementServlet servlet;
+
+  private HttpServletRequest post;
+
+  private HttpServletRequest[] puts;
+
+  private HttpServletResponse response;
+
+  @Setup(Level.Iteration)
+  public void setUp() throws ServletException, IOException {
+    servlet = Servlets.newServlet();
+    byte[] contents = new byte[size];
+    ThreadLocalRandom.current().nextBytes(contents);
+    post = Servlets.upload(null, contents);
+    puts = new HttpServletRequest[16];
+    for (int i = 0; i < puts.length; i++) {
+      String documentId = Servlets.store(servlet.getDocumentStore(), AlphaNumericGenerator.generateNextAlphaNumericId(),
+          contents);
+      puts[i] = Servlets.upload(documentId, contents);
+    }
+    response = Servlets.response();
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    servlet.destroy();
+  }
+
+  @Benchmark
+  public void post() throws ServletException, IOException {
+    servlet.service(post, response);
+  }
+
+  @Benchmark
+  public void put() throws ServletException, IOException {
+    servlet.service(puts[ThreadLocalRandom.current().nextInt(puts.length)], response);
+  }
+}
@@ -1,17 +1,35 @@
 package com.logmein.dms;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebServlet;
@@ -22,16 +40,59 @@ import javax.servlet.http.Part;
 import org.apache.log4j.BasicConfigurator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.logmein.dms.cache.DocumentCache;
+import com.logmein.dms.cluster.Cluster;
+import com.logmein.dms.cluster.Forwarder;
+import com.logmein.dms.cluster.Replicator;
+import com.logmein.dms.exception.ChecksumMismatchException;
 import com.logmein.dms.exception.DocumentNotFoundException;
 import com.logmein.dms.exception.ExceptionConstants;
 import com.logmein.dms.exception.MalformedRequestException;
-import static com.logmein.dms.util.AlphaNumericGenerator.generateNextAlphaNumericId;
+import com.logmein.dms.exception.PayloadTooLargeException;
+import com.logmein.dms.exception.PreconditionFailedException;
+import com.logmein.dms.http.ByteRange;
+import com.logmein.dms.http.ContentDisposition;
+import com.logmein.dms.http.Preconditions;
+import com.logmein.dms.metadata.Checksums;
+import com.logmein.dms.metadata.ContentChecksum;
+import com.logmein.dms.metadata.DocumentMetadata;
+import com.logmein.dms.metadata.MetadataStore;
+import com.logmein.dms.metadata.Scrubber;
+import com.logmein.dms.metrics.MetricsServlet;
+import com.logmein.dms.metrics.ServletMetrics;
+import com.logmein.dms.storage.Compression;
+import com.logmein.dms.storage.DeduplicatingDocumentStore;
+import com.logmein.dms.storage.DocumentEntry;
+import com.logmein.dms.storage.DocumentStore;
+import com.logmein.dms.storage.DocumentWriter;
+import com.logmein.dms.storage.FileSystemDocumentStore;
+import com.logmein.dms.storage.InMemoryDocumentStore;
+import com.logmein.dms.storage.LayoutMigrator;
+import com.logmein.dms.storage.OpenDocument;
+import com.logmein.dms.storage.PackArchive;
+import com.logmein.dms.storage.SegmentDocumentStore;
+import com.logmein.dms.storage.StorageLayout;
+import com.logmein.dms.storage.Tiering;
+import com.logmein.dms.transfer.ArchiveWriter;
+import com.logmein.dms.transfer.AsyncDownload;
+import com.logmein.dms.transfer.AsyncUpload;
+import com.logmein.dms.transfer.DownloadEngine;
+import com.logmein.dms.transfer.MultipartStreamReader;
+import com.logmein.dms.transfer.UploadSession;
+import com.logmein.dms.transfer.UploadSessions;
+import com.logmein.dms.transfer.VerifyingOutputStream;
+import com.logmein.dms.util.AlphaNumericGenerator;
+import com.logmein.dms.util.AsyncCompletion;
+import com.logmein.dms.util.ConfigUtils;
+import com.logmein.dms.util.RateLimiter;
 
 
 /**
  * Servlet implementation class DocumentManagementServlet
  */
-@WebServlet("/storage/documents/*")
+@WebServlet(value = { DocumentManagementServlet.DOCUMENTS_PATH + "/*", DocumentManagementServlet.BATCH_PATH,
+    DocumentManagementServlet.UPLOADS_PATH + "/*", DocumentManagementServlet.METADATA_PATH,
+    DocumentManagementServlet.METADATA_PATH + "/*" }, asyncSupported = true)
 @MultipartConfig
 public class DocumentManagementServlet extends HttpServlet {
   /**
@@ -41,71 +102,462 @@ public class DocumentManagementServlet extends HttpServlet {
 
   private static Logger logger = LoggerFactory.getLogger(DocumentManagementServlet.class);
 
+  private static final String MBEAN_DOMAIN = "com.logmein.dms";
+
+  private static final String CACHE_MBEAN_TYPE = "DocumentCache";
+
+  private static final String METRICS_MBEAN_TYPE = "RequestMetrics";
+
+  private static final String SCRUBBER_MBEAN_TYPE = "Scrubber";
+
+  static final String DOCUMENTS_PATH = "/storage/documents";
+
+  static final String BATCH_PATH = "/storage/batch";
+
+  static final String UPLOADS_PATH = "/storage/uploads";
+
+  static final String METADATA_PATH = "/storage/metadata";
+
   private Path dirPath;
 
+  // Set when storage.root names the storage directory: documents outlive the servlet
+  private boolean persistentStorage;
+
+  private DocumentStore documentStore;
+
+  private DownloadEngine downloadEngine = new DownloadEngine();
+
+  // Non-blocking transfers through ReadListener/WriteListener, off unless configured
+  private boolean asyncEnabled;
+
+  private long asyncTimeout;
+
+  private int bufferSize = DownloadEngine.DEFAULT_BUFFER_SIZE;
+
+  private ExecutorService ioExecutor;
+
+  // Parse multipart bodies ourselves instead of letting the container buffer every Part
+  private boolean multipartStreaming;
+
+  private long maxFileSize = -1;
+
+  private long maxRequestSize = -1;
+
+  private StorageLayout storageLayout = StorageLayout.FLAT;
+
+  // Off-heap cache of hot documents, null when disabled
+  private DocumentCache documentCache;
+
+  private AlphaNumericGenerator idGenerator = new AlphaNumericGenerator(false, null);
+
+  // Ids handed out to uploads that are not committed yet
+  private final Set<String> reservedIds = ConcurrentHashMap.newKeySet();
+
+  private final ServletMetrics metrics = new ServletMetrics();
+
+  private int maxBatchSize = 1000;
+
+  // Chunked upload sessions, aborted by the scheduler after uploadTimeout without a chunk
+  private final UploadSessions uploadSessions = new UploadSessions();
+
+  private MetadataStore metadataStore = new MetadataStore();
+
+  private Tiering tiering;
+
+  private Cluster cluster;
+
+  private Forwarder forwarder;
+
+  private boolean clusterRedirect;
+
+  private Replicator replicator;
+
+  private boolean metadataChecksum = true;
+
+  // Whole document downloads are checked against their CRC32C on the way out
+  private boolean verifyOnRead = true;
+
+  private Scrubber scrubber;
+
+  private long uploadTimeout = 24 * 60 * 60 * 1000L;
+
+  private ScheduledExecutorService scheduler;
+
+  private static final int UPDATE_LOCK_STRIPES = 64;
+
+  // Attempts to open a document that keeps being replaced between its lookup and the open
+  private static final int OPEN_ATTEMPTS = 3;
+
+  // Serialize the precondition check and commit of updates to one document; readers never wait
+  private final Object[] updateLocks = new Object[UPDATE_LOCK_STRIPES];
+
+  {
+    for (int i = 0; i < UPDATE_LOCK_STRIPES; i++) {
+      updateLocks[i] = new Object();
+    }
+  }
+
   public Path getDirPath() {
     return dirPath;
   }
 
   public void setDirPath(Path dirPath) {
     this.dirPath = dirPath;
+    // Index is loaded from the new directory on the next lookup
+    this.documentStore = new FileSystemDocumentStore(dirPath, storageLayout);
+  }
+
+  public DocumentStore getDocumentStore() {
+    return store();
+  }
+
+  public void setDocumentStore(DocumentStore documentStore) {
+    this.documentStore = documentStore;
   }
 
   /**
    * @see Servlet#init(ServletConfig)
    */
   public void init(ServletConfig config) throws ServletException {
+    super.init(config);
     //Just to have basic logger quickly without properties file. 
     BasicConfigurator.configure();
+    bufferSize = ConfigUtils.getInt(config, "download.bufferSize", DownloadEngine.DEFAULT_BUFFER_SIZE);
+    downloadEngine = new DownloadEngine(
+        ConfigUtils.getBoolean(config, "download.sendfile", true),
+        ConfigUtils.getLong(config, "download.sendfileThreshold", DownloadEngine.DEFAULT_SENDFILE_THRESHOLD),
+        bufferSize);
+    asyncEnabled = ConfigUtils.getBoolean(config, "async.enabled", false);
+    asyncTimeout = ConfigUtils.getLong(config, "async.timeout", 0);
+    multipartStreaming = ConfigUtils.getBoolean(config, "upload.streaming", true);
+    maxFileSize = ConfigUtils.getLong(config, "upload.maxFileSize", -1);
+    maxRequestSize = ConfigUtils.getLong(config, "upload.maxRequestSize", -1);
+    long cacheMaxBytes = ConfigUtils.getLong(config, "cache.maxBytes", 0);
+    if (cacheMaxBytes > 0) {
+      documentCache = new DocumentCache(cacheMaxBytes, ConfigUtils.getLong(config, "cache.maxEntrySize", 1024 * 1024));
+      registerMBean(documentCache, mbeanName(CACHE_MBEAN_TYPE));
+    }
+    maxBatchSize = ConfigUtils.getInt(config, "batch.maxDocuments", 1000);
+    metadataChecksum = ConfigUtils.getBoolean(config, "metadata.checksum", true);
+    verifyOnRead = ConfigUtils.getBoolean(config, "integrity.verifyOnRead", true);
+    uploadTimeout = ConfigUtils.getLong(config, "upload.sessionTimeout", uploadTimeout);
+    // Three threads, so that long, rate limited tiering and scrub runs do not hold up the other tasks
+    scheduler = Executors.newScheduledThreadPool(3, runnable -> {
+      Thread thread = new Thread(runnable, "dms-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long expiryPeriod = Math.max(1000, Math.min(uploadTimeout, 60 * 1000L));
+    scheduler.scheduleWithFixedDelay(this::expireUploads, expiryPeriod, expiryPeriod, TimeUnit.MILLISECONDS);
+    registerMBean(metrics, mbeanName(METRICS_MBEAN_TYPE));
+    for (String operation : ServletMetrics.OPERATIONS) {
+      registerMBean(metrics.operation(operation), mbeanName(METRICS_MBEAN_TYPE) + ",operation=" + operation);
+    }
+    if (config.getServletContext() != null) {
+      // Served by MetricsServlet
+      config.getServletContext().setAttribute(MetricsServlet.METRICS_ATTRIBUTE, metrics);
+    }
+    if (asyncEnabled) {
+      ioExecutor = Executors.newFixedThreadPool(ConfigUtils.getInt(config, "async.ioThreads", 4));
+    }
+    idGenerator = new AlphaNumericGenerator("time".equals(ConfigUtils.getString(config, "id.order", "random")),
+        ConfigUtils.getBoolean(config, "id.secureRandom", false) ? new SecureRandom() : null);
+    storageLayout = StorageLayout.fromName(ConfigUtils.getString(config, "storage.layout", "sharded"));
+    String storageRoot = ConfigUtils.getString(config, "storage.root", null);
     try {
-      dirPath = Files.createTempDirectory("logmein_dms");
+      if (storageRoot != null) {
+        dirPath = Files.createDirectories(Paths.get(storageRoot));
+        persistentStorage = true;
+      } else {
+        dirPath = Files.createTempDirectory("logmein_dms");
+      }
+      documentStore = createDocumentStore(config);
+      documentStore.open();
+      if (persistentStorage) {
+        metadataStore = new MetadataStore(MetadataStore.journal(dirPath));
+        metadataStore.load();
+      }
+      synchronizeMetadata();
     } catch (IOException e) {
       logger.error("Unable to create Directory", e);
     }
+    String clusterNodes = ConfigUtils.getString(config, "cluster.nodes", null);
+    if (clusterNodes != null) {
+      String self = ConfigUtils.getString(config, "cluster.self", null);
+      if (self == null) {
+        throw new ServletException("cluster.self is required with cluster.nodes");
+      }
+      String secret = ConfigUtils.getString(config, "cluster.secret", null);
+      if (secret == null || secret.isEmpty()) {
+        throw new ServletException("cluster.secret is required with cluster.nodes");
+      }
+      try {
+        cluster = new Cluster(self, Arrays.asList(clusterNodes.split(",")), ConfigUtils.getInt(config, "cluster.replicas", 1),
+            secret);
+      } catch (IllegalArgumentException e) {
+        throw new ServletException(e.getMessage(), e);
+      }
+      int clusterTimeout = ConfigUtils.getInt(config, "cluster.timeout", 30000);
+      forwarder = new Forwarder(cluster, clusterTimeout);
+      clusterRedirect = "redirect".equals(ConfigUtils.getString(config, "cluster.routing", "forward"));
+      replicator = new Replicator(cluster, documentStore, metadataStore, DOCUMENTS_PATH, clusterTimeout);
+    }
+    if (persistentStorage && documentStore instanceof FileSystemDocumentStore) {
+      // The restored index serves requests right away; differences are repaired as they are found
+      FileSystemDocumentStore store = (FileSystemDocumentStore) documentStore;
+      scheduler.execute(() -> {
+        try {
+          if (store.verify() > 0) {
+            synchronizeMetadata();
+          }
+        } catch (IOException e) {
+          logger.error("Unable to verify the index of {} with exception {}", dirPath, e.getMessage());
+        }
+      });
+    }
+    if (tiering != null) {
+      long tieringPeriod = ConfigUtils.getLong(config, "tiering.interval", 60 * 60 * 1000L);
+      scheduler.scheduleWithFixedDelay(tiering::run, tieringPeriod, tieringPeriod, TimeUnit.MILLISECONDS);
+    }
+    scrubber = new Scrubber(documentStore, metadataStore,
+        new RateLimiter(ConfigUtils.getLong(config, "scrub.maxBytesPerSecond", 16 * 1024 * 1024)),
+        ConfigUtils.getInt(config, "scrub.parallelism", 2));
+    registerMBean(scrubber, mbeanName(SCRUBBER_MBEAN_TYPE));
+    if (ConfigUtils.getBoolean(config, "scrub.enabled", false)) {
+      long scrubPeriod = ConfigUtils.getLong(config, "scrub.interval", 24 * 60 * 60 * 1000L);
+      scheduler.scheduleWithFixedDelay(scrubber::run, scrubPeriod, scrubPeriod, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Build the storage backend selected by storage.backend over the storage directory
+   */
+  private DocumentStore createDocumentStore(ServletConfig config) throws IOException, ServletException {
+    String backend = ConfigUtils.getString(config, "storage.backend", "filesystem");
+    switch (backend) {
+      case "filesystem":
+        if (ConfigUtils.getBoolean(config, "storage.migrate", false)) {
+          LayoutMigrator.migrate(dirPath, storageLayout);
+        }
+        Compression compression = null;
+        if (ConfigUtils.getBoolean(config, "compression.enabled", false)) {
+          compression = new Compression(ConfigUtils.getString(config, "compression.types", Compression.DEFAULT_TYPES),
+              ConfigUtils.getLong(config, "compression.minSize", 1024), ConfigUtils.getInt(config, "compression.level", 6),
+              0.9);
+        }
+        FileSystemDocumentStore store = ConfigUtils.getBoolean(config, "storage.dedup", false)
+            ? new DeduplicatingDocumentStore(dirPath, storageLayout, compression)
+            : new FileSystemDocumentStore(dirPath, storageLayout, compression);
+        store.setFsync(ConfigUtils.getBoolean(config, "storage.fsync", true));
+        store.setPersistentIndex(persistentStorage && ConfigUtils.getBoolean(config, "index.persist", true));
+        if (ConfigUtils.getBoolean(config, "tiering.enabled", false)) {
+          store.setArchive(new PackArchive(dirPath, PackArchive.DEFAULT_PACK_SIZE,
+              ConfigUtils.getInt(config, "compression.level", 6)));
+          tiering = new Tiering(store, ConfigUtils.getLong(config, "tiering.coldAfter", 30L * 24 * 60 * 60 * 1000),
+              ConfigUtils.getLong(config, "tiering.maxHotBytes", 0),
+              new RateLimiter(ConfigUtils.getLong(config, "tiering.maxBytesPerSecond", 16 * 1024 * 1024)));
+        }
+        return store;
+      case "segment":
+        return new SegmentDocumentStore(dirPath,
+            ConfigUtils.getInt(config, "segment.size", SegmentDocumentStore.DEFAULT_SEGMENT_SIZE));
+      case "memory":
+        return new InMemoryDocumentStore(dirPath);
+      default:
+        throw new ServletException("Unknown storage.backend " + backend);
+    }
+  }
+
+  /**
+   * In cluster mode, pass a request for a document or its metadata on to the node that is to
+   * handle it: its primary for writes, and for reads its primary or, should that be unreachable, a
+   * replica. Owners read their own copy when they have one. New documents, and chunked uploads,
+   * are created where they are received. Returns false when the request is to be handled here.
+   */
+  private boolean routeToOwner(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String pathInfo = request.getPathInfo();
+    boolean read = "GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod());
+    boolean routed = DOCUMENTS_PATH.equals(request.getServletPath())
+        || (read && METADATA_PATH.equals(request.getServletPath()));
+    if (request.getHeader(Cluster.FORWARDED_HEADER) != null || !routed || pathInfo == null
+        || pathInfo.split("/").length <= 1) {
+      return false;
+    }
+    String documentId = pathInfo.split("/")[1];
+    if (cluster.isPrimary(documentId) || (read && cluster.isOwner(documentId) && store().lookup(documentId) != null)) {
+      return false;
+    }
+    // The primary comes first
+    List<String> nodes = read ? cluster.peers(documentId) : cluster.owners(documentId).subList(0, 1);
+    if (clusterRedirect) {
+      Forwarder.redirect(request, response, nodes.get(0));
+      return true;
+    }
+    for (String node : nodes) {
+      try {
+        forwarder.forward(request, response, node);
+        return true;
+      } catch (IOException e) {
+        logger.warn("Unable to forward {} of document {} to {} with exception {}", request.getMethod(), documentId,
+            node, e.getMessage());
+        if (response.isCommitted()) {
+          return true;
+        }
+        response.reset();
+        if (!read) {
+          break; // The body is gone
+        }
+      }
+    }
+    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, ExceptionConstants.OWNER_UNAVAILABLE);
+    return true;
+  }
+
+  /**
+   * True for the requests that span documents of every node, which a node cannot answer from its
+   * own store: batch reads and deletes, and metadata queries
+   */
+  private boolean isClusterWideRequest(HttpServletRequest request) {
+    String pathInfo = request.getPathInfo();
+    if (BATCH_PATH.equals(request.getServletPath())) {
+      return !"POST".equals(request.getMethod()); // New documents are stored where they are received
+    }
+    return METADATA_PATH.equals(request.getServletPath()) && (pathInfo == null || pathInfo.split("/").length <= 1);
+  }
+
+  private boolean isReplicaRequest(HttpServletRequest request) {
+    return cluster != null && request.getHeader(Cluster.REPLICA_HEADER) != null;
+  }
+
+  /**
+   * True for a request that claims to come from another node, by its forwarded or replica header,
+   * without the cluster secret
+   */
+  private boolean isForgedNodeRequest(HttpServletRequest request) {
+    return (request.getHeader(Cluster.FORWARDED_HEADER) != null || request.getHeader(Cluster.REPLICA_HEADER) != null)
+        && !cluster.isNodeRequest(request.getHeader(Cluster.SECRET_HEADER));
+  }
+
+  /**
+   * PUT or DELETE copying a write made on the primary of the document. Accepted from the primary
+   * only, on the other owners, and applied unless this node already has a newer version; the copy
+   * keeps the modification time of the primary's version. Bodies are held to upload.maxFileSize.
+   */
+  private void receiveReplica(HttpServletRequest request) throws IOException {
+    String documentId = pickAndValidateDocumentIdFromURI(request);
+    long version = parseLong(request.getHeader(Cluster.REPLICA_HEADER), ExceptionConstants.REPLICA_VERSION_INVALID);
+    if (cluster.isPrimary(documentId) || !cluster.isOwner(documentId)
+        || !cluster.owners(documentId).get(0).equals(request.getHeader(Cluster.FORWARDED_HEADER))) {
+      throw new MalformedRequestException(ExceptionConstants.REPLICA_NOT_ACCEPTED);
+    }
+    if (maxFileSize >= 0 && request.getContentLengthLong() > maxFileSize) {
+      throw new PayloadTooLargeException(ExceptionConstants.PAYLOAD_TOO_LARGE);
+    }
+    synchronized (updateLockFor(documentId)) {
+      DocumentEntry existing = store().lookup(documentId);
+      if (existing != null && existing.getLastModified() > version) {
+        return; // Outdated by a later copy
+      }
+      if ("DELETE".equals(request.getMethod())) {
+        if (existing != null) {
+          store().delete(documentId);
+          recordRemoved(documentId);
+        }
+        return;
+      }
+      String fileName = ContentDisposition.fileName(request.getHeader("Content-Disposition"));
+      if (fileName == null || fileName.lastIndexOf('.') < 0) {
+        throw new MalformedRequestException(ExceptionConstants.FILE_NAME_MISSING);
+      }
+      DocumentWriter writer = store().newWriter(documentId, fileName.substring(fileName.lastIndexOf('.')));
+      try {
+        ContentChecksum checksum = newChecksum();
+        InputStream inputStream = request.getInputStream();
+        try (OutputStream outputStream = checksum.wrap(writer.getOutputStream())) {
+          downloadEngine.copy(inputStream, 0, maxFileSize >= 0 ? maxFileSize : Long.MAX_VALUE, outputStream);
+        }
+        if (maxFileSize >= 0 && inputStream.read() != -1) {
+          throw new PayloadTooLargeException(ExceptionConstants.PAYLOAD_TOO_LARGE);
+        }
+        writer.setLastModified(version);
+        recordStored(writer.commit(), fileName, request.getContentType(), tags(request), checksum);
+      } finally {
+        writer.abort();
+      }
+    }
+  }
+
+  public ServletMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Time every request and count its outcome. Asynchronous requests are recorded when they
+   * complete.
+   */
+  @Override
+  protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    long start = System.nanoTime();
+    metrics.requestStarted();
+    boolean failed = true;
+    try {
+      if (cluster != null && isForgedNodeRequest(request)) {
+        logger.warn("Rejecting {} {} from {} without the cluster secret", request.getMethod(), request.getRequestURI(),
+            request.getRemoteAddr());
+        response.sendError(HttpServletResponse.SC_FORBIDDEN, ExceptionConstants.CLUSTER_SECRET_INVALID);
+      } else if (cluster != null && isClusterWideRequest(request)) {
+        response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, ExceptionConstants.NOT_IN_CLUSTER_MODE);
+      } else if (cluster == null || !routeToOwner(request, response)) {
+        super.service(request, response);
+      }
+      failed = false;
+    } finally {
+      if (!failed && request.isAsyncStarted()) {
+        AsyncCompletion.onComplete(request.getAsyncContext(), () -> requestCompleted(request, response, start, false));
+      } else {
+        requestCompleted(request, response, start, failed);
+      }
+    }
+  }
+
+  private void requestCompleted(HttpServletRequest request, HttpServletResponse response, long start, boolean failed) {
+    String method = request.getMethod();
+    metrics.requestCompleted(method, System.nanoTime() - start,
+        failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : response.getStatus());
+    long contentLength = request.getContentLengthLong();
+    if (contentLength > 0 && metrics.operation(method) != null) {
+      metrics.operation(method).addBytesIn(contentLength);
+    }
   }
 
   /**
    * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
    */
   protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-    FileInputStream inputStream = null;
-    OutputStream outputStream = null;
     try {
+      if (isBatchRequest(request)) {
+        sendBatch(request, response);
+        return;
+      } else if (isUploadRequest(request)) {
+        sendUploadStatus(request, response);
+        return;
+      } else if (isMetadataRequest(request)) {
+        sendMetadata(request, response);
+        return;
+      }
       String documentId = pickAndValidateDocumentIdFromURI(request);
-      Path filePath = checkDocumentExistence(documentId);
-      inputStream = new FileInputStream(filePath.toFile());
-      outputStream = response.getOutputStream();
-      
-      File file = new File(filePath.toString());
-      /*
-       * Reference for Content-Disposition
-       * https://www.codejava.net/java-ee/servlet/java-servlet-download-file-example 
-       */
-      String headerKey = "Content-Disposition";
-      String headerValue = String.format("attachment; filename=\"%s\"", file.getName());
-      response.setHeader(headerKey, headerValue);
-      response.setContentType("application/octet-stream");
-      response.setContentLengthLong(file.length());
-      response.setStatus(HttpServletResponse.SC_OK);
-      byte[] buffer = new byte[4096];
-      int bytesRead = -1;
-       
-      while ((bytesRead = inputStream.read(buffer)) != -1) {
-        outputStream.write(buffer, 0, bytesRead);
+      for (int attempt = 1; !sendVersion(checkDocumentExistence(documentId, true), request, response); attempt++) {
+        if (attempt == OPEN_ATTEMPTS) {
+          throw new IOException("Document " + documentId + " changed on every attempt to open it");
+        }
+        response.reset(); // Nothing is sent before the version is opened
       }
-       
     } catch (MalformedRequestException e) {
       logger.error(e.getMessage(), e);
       response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
     } catch (DocumentNotFoundException e) {
       logger.error(e.getMessage(), e);
       response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
-    } finally {
-      if(inputStream != null)
-        inputStream.close();
-      
-      if(outputStream != null)
-        outputStream.close();
     }
   }
 
@@ -115,11 +567,27 @@ public class DocumentManagementServlet extends HttpServlet {
   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 
     try {
-      Part filePart = validateAndGetPartFromRequestBody(request);
-      String fileName = filePart.getSubmittedFileName();
-      String suffix = fileName.substring(fileName.lastIndexOf('.'));
-      String documentId = generateNextAlphaNumericId();
-      filePart.write(dirPath.toAbsolutePath() + File.separator + documentId + suffix);
+      if (isBatchRequest(request)) {
+        List<String> documentIds = receiveBatch(request);
+        response.setContentType("text/plain");
+        response.setStatus(HttpServletResponse.SC_CREATED);
+        response.setCharacterEncoding("us-ascii");
+        response.getWriter().append(String.join("\n", documentIds));
+        return;
+      } else if (isUploadRequest(request)) {
+        openOrCommitUpload(request, response);
+        return;
+      }
+      if (isAsyncUpload(request)) {
+        startAsyncUpload(request, response, null);
+        return;
+      }
+      String documentId;
+      if (multipartStreaming) {
+        documentId = receiveMultipartUpload(request, null).getDocumentId();
+      } else {
+        documentId = storePart(request, validateAndGetPartFromRequestBody(request));
+      }
       response.setContentType("text/plain");
       response.setStatus(HttpServletResponse.SC_CREATED);
       response.setCharacterEncoding("us-ascii");
@@ -127,6 +595,12 @@ public class DocumentManagementServlet extends HttpServlet {
     } catch(MalformedRequestException e) {
       logger.error(e.getMessage(), e);
       response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+    } catch (DocumentNotFoundException e) {
+      logger.error(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+    } catch (PayloadTooLargeException e) {
+      logger.error(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
     }
   }
 
@@ -135,19 +609,48 @@ public class DocumentManagementServlet extends HttpServlet {
    */
   protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
     try {
+      if (isReplicaRequest(request)) {
+        receiveReplica(request);
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        return;
+      }
+      if (isUploadRequest(request)) {
+        receiveChunk(request);
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        return;
+      }
+      if (isAsyncUpload(request)) {
+        startAsyncUpload(request, response, checkUpdatableDocument(request));
+        return;
+      }
+      if (multipartStreaming) {
+        DocumentEntry document = receiveMultipartUpload(request, checkUpdatableDocument(request));
+        response.setHeader("ETag", etag(document, null));
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        return;
+      }
       Part filePart = validateAndGetPartFromRequestBody(request);
       String documentId = pickAndValidateDocumentIdFromURI(request);
-      Path existingFilePath = checkDocumentExistence(documentId);
-      String existingFileName = existingFilePath.getFileName().toString();
+      DocumentEntry existing = checkDocumentExistence(documentId);
+      checkPreconditions(request, existing);
       String fileName = filePart.getSubmittedFileName();
       String suffix = fileName.substring(fileName.lastIndexOf('.'));
       
    
       // Check if the file extension of input type is same as in the storage.
-      if(! existingFileName.substring(existingFileName.lastIndexOf('.')).equalsIgnoreCase(suffix)) { 
+      if(! existing.getExtension().equalsIgnoreCase(suffix)) { 
         response.sendError(HttpServletResponse.SC_BAD_REQUEST, ExceptionConstants.MIME_MISMATCH);
+        return;
+      }
+      DocumentWriter writer = store().newWriter(documentId, existing.getExtension());
+      DocumentEntry document;
+      try {
+        filePart.write(writer.getStagingFile().toString());
+        document = commitUpdate(writer, request, fileName, filePart.getContentType(), null);
+      } finally {
+        writer.abort();
       }
-      filePart.write(dirPath.toAbsolutePath() + File.separator + documentId + suffix);
+      response.setHeader("ETag", etag(document, null));
       response.setStatus(HttpServletResponse.SC_NO_CONTENT);
     } catch (MalformedRequestException e) {
       logger.error(e.getMessage(), e);
@@ -155,6 +658,12 @@ public class DocumentManagementServlet extends HttpServlet {
     } catch (DocumentNotFoundException e) {
       logger.error(e.getMessage(), e);
       response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+    } catch (PayloadTooLargeException e) {
+      logger.error(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+    } catch (PreconditionFailedException e) {
+      logger.error(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED, e.getMessage());
     }
   }
 
@@ -163,8 +672,26 @@ public class DocumentManagementServlet extends HttpServlet {
    */
   protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
     try {
+      if (isReplicaRequest(request)) {
+        receiveReplica(request);
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        return;
+      }
+      if (isBatchRequest(request)) {
+        deleteBatch(request);
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        return;
+      } else if (isUploadRequest(request)) {
+        abortUpload(checkUploadExistence(request));
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        return;
+      }
       String documentId = pickAndValidateDocumentIdFromURI(request);
-      Files.delete(checkDocumentExistence(documentId));
+      synchronized (updateLockFor(documentId)) {
+        checkPreconditions(request, checkDocumentExistence(documentId));
+        store().delete(documentId);
+        documentRemoved(documentId);
+      }
       response.setStatus(HttpServletResponse.SC_NO_CONTENT);
     } catch (MalformedRequestException e) {
       logger.error(e.getMessage(), e);
@@ -172,9 +699,947 @@ public class DocumentManagementServlet extends HttpServlet {
     } catch (DocumentNotFoundException e) {
       logger.error(e.getMessage(), e);
       response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+    } catch (PreconditionFailedException e) {
+      logger.error(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED, e.getMessage());
     }
   }
   
+  /**
+   * Answer a GET or HEAD with one version of a document. Headers and preconditions only need its
+   * entry: the file is opened once bytes are sent, so a 304, a HEAD or a read cache hit does not
+   * touch it. Returns false, having sent nothing, when the version was replaced or deleted before
+   * it could be opened.
+   */
+  private boolean sendVersion(DocumentEntry document, HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String documentId = document.getDocumentId();
+    if (tiering != null) {
+      tiering.accessed(documentId);
+    }
+
+    // Compressed documents go out as stored to clients that accept the coding, except for ranges
+    boolean sendEncoded = document.getEncoding() != null && request.getHeader("Range") == null
+        && Preconditions.acceptsEncoding(request.getHeader("Accept-Encoding"), document.getEncoding());
+    DocumentMetadata metadata = metadataStore.get(documentId);
+    Long crc32c = crc32c(metadata, document);
+    String etag = Preconditions.etag(document.getSize(), document.getLastModified(), crc32c,
+        sendEncoded ? document.getEncoding() : null);
+    if (document.getEncoding() != null) {
+      response.setHeader("Vary", "Accept-Encoding");
+    }
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", document.getLastModified());
+    response.setHeader("Accept-Ranges", "bytes");
+    if (crc32c != null && !sendEncoded) {
+      response.setHeader("Digest", Checksums.digestHeader(crc32c));
+    }
+    if (Preconditions.isNotModified(request, etag, document.getLastModified())) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+
+    /*
+     * Reference for Content-Disposition
+     * https://www.codejava.net/java-ee/servlet/java-servlet-download-file-example 
+     */
+    String headerKey = "Content-Disposition";
+    String headerValue = ContentDisposition.attachment(metadata != null ? metadata.getFileName() : document.getFileName());
+    response.setHeader(headerKey, headerValue);
+
+    List<ByteRange> ranges = null;
+    if (Preconditions.isRangeApplicable(request, etag, document.getLastModified())) {
+      ranges = ByteRange.parse(request.getHeader("Range"), document.getSize());
+      if (ranges != null && ranges.size() > 1 && document.getEncoding() != null) {
+        ranges = null; // Not worth decoding several times; the whole document is a valid answer
+      }
+    }
+    long count = document.getSize();
+    if (ranges == null && sendEncoded) {
+      response.setContentType("application/octet-stream");
+      response.setHeader("Content-Encoding", document.getEncoding());
+      response.setContentLengthLong(document.getStoredSize());
+      response.setStatus(HttpServletResponse.SC_OK);
+      count = document.getStoredSize();
+    } else if (ranges == null) {
+      response.setContentType("application/octet-stream");
+      response.setContentLengthLong(document.getSize());
+      response.setStatus(HttpServletResponse.SC_OK);
+    } else if (ranges.isEmpty()) {
+      response.setHeader("Content-Range", "bytes */" + document.getSize());
+      response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return true;
+    } else if (ranges.size() == 1) {
+      ByteRange range = ranges.get(0);
+      response.setContentType("application/octet-stream");
+      response.setHeader("Content-Range", range.toContentRange(document.getSize()));
+      response.setContentLengthLong(range.getLength());
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      count = range.getLength();
+    } else {
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    }
+    if ("HEAD".equals(request.getMethod())) {
+      return true; // Headers only
+    }
+
+    try (OpenDocument opened = openForSending(document, request, count)) {
+      if (opened == null) {
+        return false;
+      }
+      if (ranges == null && sendEncoded) {
+        sendDocument(opened, 0, document.getStoredSize(), request, response);
+      } else if (ranges == null && verifyOnRead && crc32c != null) {
+        sendVerified(opened, crc32c, request, response);
+      } else if (ranges == null) {
+        sendDecoded(opened, 0, document.getSize(), request, response);
+      } else if (ranges.size() == 1) {
+        sendDecoded(opened, ranges.get(0).getStart(), ranges.get(0).getLength(), request, response);
+      } else {
+        for (ByteRange range : ranges) {
+          metrics.operation("GET").addBytesOut(range.getLength());
+        }
+        if (opened.getContents() != null) {
+          downloadEngine.transferRanges(opened.getContents(), document.getSize(), ranges, "application/octet-stream",
+              response);
+        } else {
+          downloadEngine.transferRanges(opened.getChannel(), document.getOffset(), document.getSize(), ranges,
+              "application/octet-stream", response);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Open the version of an entry to send count bytes of it, or return null when it is no longer
+   * the current version. Hot documents come from the read cache without their file being opened;
+   * a miss fills the cache from the channel just opened.
+   */
+  private OpenDocument openForSending(DocumentEntry document, HttpServletRequest request, long count)
+      throws IOException {
+    boolean cacheable = documentCache != null && documentCache.isCacheable(document)
+        && store().getContents(document) == null && !downloadEngine.canSendfile(request, count);
+    ByteBuffer cached = cacheable ? documentCache.get(document) : null;
+    if (cached != null) {
+      return OpenDocument.inMemory(document, cached);
+    }
+    OpenDocument opened = OpenDocument.open(store(), document);
+    if (opened != null && cacheable) {
+      cached = documentCache.load(document, opened.getChannel());
+      if (cached != null) {
+        opened.close();
+        return OpenDocument.inMemory(document, cached);
+      }
+    }
+    return opened;
+  }
+
+  /**
+   * CRC32C of this version of the document, or null if its metadata does not record it
+   */
+  private static Long crc32c(DocumentMetadata metadata, DocumentEntry document) {
+    if (metadata == null || metadata.getModified() != document.getLastModified()
+        || metadata.getSize() != document.getSize()) {
+      return null; // Metadata of the new version not recorded yet
+    }
+    return metadata.getCrc32c();
+  }
+
+  /**
+   * Send the whole document as uploaded, checking it against its CRC32C on the way. A corrupt
+   * document fails with 500, or with a truncated response when part of it is already sent.
+   */
+  private void sendVerified(OpenDocument opened, long crc32c, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    DocumentEntry document = opened.getEntry();
+    try {
+      sendDecoded(opened, 0, document.getSize(), request,
+          VerifyingOutputStream.wrap(response, document.getSize(), crc32c));
+    } catch (ChecksumMismatchException e) {
+      logger.error("Document {} does not match its CRC32C checksum", document.getDocumentId());
+      if (scrubber != null) {
+        scrubber.corrupted(document.getDocumentId());
+      }
+      if (response.isCommitted()) {
+        throw e; // The container aborts the response
+      }
+      response.reset();
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+  }
+
+  /**
+   * Send a region of the document as uploaded, decoding it when it is stored compressed
+   */
+  private void sendDecoded(OpenDocument opened, long position, long count, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    if (opened.getEntry().getEncoding() == null) {
+      sendDocument(opened, position, count, request, response);
+      return;
+    }
+    metrics.operation("GET").addBytesOut(count);
+    try (InputStream inputStream = opened.newInputStream()) {
+      downloadEngine.copy(inputStream, position, count, response.getOutputStream());
+    }
+  }
+
+  /**
+   * Send a region of the stored bytes of the document. Sendfile is preferred; otherwise contents
+   * held in memory, e.g. by the read cache, are written out, and the rest is streamed without
+   * holding the thread when async mode is on.
+   */
+  private void sendDocument(OpenDocument opened, long position, long count, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    if (count <= 0) {
+      return;
+    }
+    metrics.operation("GET").addBytesOut(count);
+    DocumentEntry document = opened.getEntry();
+    ByteBuffer contents = opened.getContents();
+    if (contents != null) {
+      // Already in memory, e.g. a mapped segment or a cached document
+      downloadEngine.write(contents, position, count, response.getOutputStream());
+      return;
+    }
+    long filePosition = document.getOffset() + position;
+    if (!downloadEngine.canSendfile(request, count) && asyncEnabled && request.isAsyncSupported()) {
+      AsyncDownload.start(request, response, opened.detachChannel(), filePosition, count, ioExecutor, bufferSize,
+          asyncTimeout);
+    } else {
+      downloadEngine.transfer(opened.getChannel(), document.getPath(), filePosition, count, request, response);
+    }
+  }
+
+  /**
+   * The storage backend, defaulting to one file per document in dirPath when init was not called
+   */
+  private DocumentStore store() {
+    if (documentStore == null) {
+      documentStore = new FileSystemDocumentStore(dirPath, storageLayout);
+    }
+    return documentStore;
+  }
+
+  /**
+   * Hook for a created or replaced document, also copied to its other owners in cluster mode
+   *
+   * @param checksum taken while the contents were received, or null to read them again
+   */
+  private void documentStored(DocumentEntry document, String fileName, String contentType, Set<String> tags,
+      ContentChecksum checksum) throws IOException {
+    recordStored(document, fileName, contentType, tags, checksum);
+    if (replicator != null) {
+      replicator.stored(document.getDocumentId());
+    }
+  }
+
+  /**
+   * Hook for a deleted document, also deleted from its other owners in cluster mode
+   */
+  private void documentRemoved(String documentId) {
+    recordRemoved(documentId);
+    if (replicator != null) {
+      replicator.removed(documentId, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Records the metadata of a created or replaced document: the name and content type it was
+   * uploaded with, the content type guessed from the name if the client sent none, and the tags of
+   * the request. An update without tags keeps the previous ones.
+   */
+  private void recordStored(DocumentEntry document, String fileName, String contentType, Set<String> tags,
+      ContentChecksum checksum) throws IOException {
+    if (documentCache != null) {
+      documentCache.invalidate(document.getDocumentId());
+    }
+    if (scrubber != null) {
+      scrubber.forget(document.getDocumentId());
+    }
+    if (checksum == null) {
+      checksum = checksum(document);
+    }
+    String sha256 = checksum != null ? checksum.getSha256() : null;
+    Long crc32c = checksum != null ? checksum.getValue() : null;
+    DocumentMetadata previous = metadataStore.get(document.getDocumentId());
+    if (fileName == null) {
+      fileName = previous != null ? previous.getFileName() : document.getFileName();
+    }
+    if (contentType == null || contentType.isEmpty()) {
+      contentType = guessContentType(fileName);
+    }
+    if (tags == null) {
+      tags = previous != null ? previous.getTags() : Collections.<String>emptySet();
+    }
+    metadataStore.put(new DocumentMetadata(document.getDocumentId(), fileName, contentType, document.getSize(),
+        sha256, crc32c, previous != null ? previous.getCreated() : document.getLastModified(),
+        document.getLastModified(), tags));
+  }
+
+  private void recordRemoved(String documentId) {
+    if (documentCache != null) {
+      documentCache.invalidate(documentId);
+    }
+    metadataStore.remove(documentId);
+    if (tiering != null) {
+      tiering.forget(documentId);
+    }
+    if (scrubber != null) {
+      scrubber.forget(documentId);
+    }
+  }
+
+  /**
+   * Checksums of the received contents of a new version, taken on the way into the store
+   */
+  private ContentChecksum newChecksum() {
+    return new ContentChecksum(metadataChecksum);
+  }
+
+  /**
+   * Checksums of the contents as uploaded, read back from the store for the uploads the servlet
+   * does not see stream by: container buffered parts and chunked uploads. Null if the version is
+   * already replaced, whose checksums are of no use.
+   */
+  private ContentChecksum checksum(DocumentEntry document) throws IOException {
+    try (OpenDocument opened = OpenDocument.open(store(), document)) {
+      if (opened == null) {
+        return null;
+      }
+      ContentChecksum checksum = newChecksum();
+      if (opened.getContents() != null) {
+        checksum.update(opened.getContents());
+      } else {
+        try (InputStream inputStream = opened.newInputStream()) {
+          checksum.update(inputStream);
+        }
+      }
+      return checksum;
+    }
+  }
+
+  private String guessContentType(String fileName) {
+    String contentType = getServletConfig() != null ? getServletContext().getMimeType(fileName) : null;
+    if (contentType == null) {
+      contentType = URLConnection.guessContentTypeFromName(fileName);
+    }
+    return contentType != null ? contentType : "application/octet-stream";
+  }
+
+  /**
+   * Record metadata for the documents that have none, e.g. stored before metadata was kept, and
+   * drop the metadata of documents that are gone. Nothing is known about the former beyond what
+   * the store holds.
+   */
+  private void synchronizeMetadata() throws IOException {
+    int added = 0;
+    for (DocumentEntry document : store().documents()) {
+      if (metadataStore.get(document.getDocumentId()) == null && metadataStore.putIfAbsent(new DocumentMetadata(
+          document.getDocumentId(), document.getFileName(), guessContentType(document.getFileName()),
+          document.getSize(), null, null, document.getLastModified(), document.getLastModified(),
+          Collections.<String>emptySet()))) {
+        added++;
+      }
+    }
+    int removed = 0;
+    for (String documentId : metadataStore.documentIds()) {
+      if (store().lookup(documentId) == null && metadataStore.remove(documentId) != null) {
+        removed++;
+      }
+    }
+    if (added > 0 || removed > 0) {
+      logger.info("Added metadata of {} documents and removed that of {} deleted ones", added, removed);
+    }
+  }
+
+  /**
+   * Tags of the tag request parameters, repeated or comma separated, or null if there are none
+   */
+  private static Set<String> tags(HttpServletRequest request) {
+    String[] values = request.getParameterValues("tag");
+    if (values == null) {
+      return null;
+    }
+    Set<String> tags = new LinkedHashSet<>();
+    for (String value : values) {
+      for (String tag : value.split(",")) {
+        if (!tag.trim().isEmpty()) {
+          tags.add(tag.trim());
+        }
+      }
+    }
+    return tags;
+  }
+
+  /**
+   * Raw (non multipart) bodies are uploaded without blocking when async mode is on. The file name
+   * is taken from the Content-Disposition request header.
+   */
+  private boolean isAsyncUpload(HttpServletRequest request) {
+    String contentType = request.getContentType();
+    return asyncEnabled && request.isAsyncSupported()
+        && (contentType == null || !contentType.toLowerCase().startsWith("multipart/"));
+  }
+
+  /**
+   * Stream the request body into the store's staging file, then commit it. Creates a new document
+   * when {@code existing} is null, otherwise replaces it.
+   */
+  private void startAsyncUpload(HttpServletRequest request, HttpServletResponse response, DocumentEntry existing)
+      throws IOException {
+    String fileName = ContentDisposition.fileName(request.getHeader("Content-Disposition"));
+    if (fileName == null || fileName.lastIndexOf('.') < 0) {
+      throw new MalformedRequestException(ExceptionConstants.FILE_NAME_MISSING);
+    }
+    if (request.getContentLengthLong() == 0) {
+      throw new MalformedRequestException(ExceptionConstants.NO_DOCUMENT_IN_REQUEST_BODY);
+    }
+    checkContentLength(request);
+    String suffix = fileName.substring(fileName.lastIndexOf('.'));
+    if (existing != null && !existing.getExtension().equalsIgnoreCase(suffix)) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, ExceptionConstants.MIME_MISMATCH);
+      return;
+    }
+    String documentId = existing == null ? reserveDocumentId() : existing.getDocumentId();
+    try {
+      DocumentWriter writer = store().newWriter(documentId, suffix);
+      ContentChecksum checksum = newChecksum();
+      AsyncUpload.start(request, writer.getStagingFile(), ioExecutor, bufferSize, asyncTimeout, maxFileSize, checksum,
+          (file, size, asyncResponse) -> {
+        if (existing == null) {
+          documentStored(writer.commit(), fileName, request.getContentType(), tags(request), checksum);
+          asyncResponse.setContentType("text/plain");
+          asyncResponse.setStatus(HttpServletResponse.SC_CREATED);
+          asyncResponse.setCharacterEncoding("us-ascii");
+          asyncResponse.getWriter().append(documentId);
+          return;
+        }
+        try {
+          DocumentEntry document = commitUpdate(writer, request, fileName, request.getContentType(), checksum);
+          asyncResponse.setHeader("ETag", etag(document, null));
+          asyncResponse.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        } catch (PreconditionFailedException e) {
+          writer.abort();
+          asyncResponse.sendError(HttpServletResponse.SC_PRECONDITION_FAILED, e.getMessage());
+        } catch (DocumentNotFoundException e) {
+          writer.abort();
+          asyncResponse.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+        }
+      });
+    } catch (IOException | RuntimeException e) {
+      reservedIds.remove(documentId);
+      throw e;
+    }
+    if (existing == null) {
+      AsyncCompletion.onComplete(request.getAsyncContext(), () -> reservedIds.remove(documentId));
+    }
+  }
+
+  /**
+   * Stream the single file part of a multipart body into a new version of the document and commit
+   * it. Creates a new document when {@code existing} is null, otherwise replaces it. Returns the
+   * stored entry.
+   */
+  private DocumentEntry receiveMultipartUpload(HttpServletRequest request, DocumentEntry existing) throws IOException {
+    MultipartStreamReader reader = openMultipart(request);
+    Map<String, String> headers = reader.nextPart();
+    if (headers == null) {
+      throw new MalformedRequestException(ExceptionConstants.NO_DOCUMENT_IN_REQUEST_BODY);
+    }
+    return receivePart(request, reader, headers, existing, true);
+  }
+
+  /**
+   * Open a reader over a multipart request body
+   */
+  private MultipartStreamReader openMultipart(HttpServletRequest request) throws IOException {
+    String boundary = MultipartStreamReader.boundary(request.getContentType());
+    if (boundary == null) {
+      throw new MalformedRequestException(ExceptionConstants.NO_DOCUMENT_IN_REQUEST_BODY);
+    }
+    checkContentLength(request);
+    return new MultipartStreamReader(request.getInputStream(), boundary, bufferSize, maxRequestSize);
+  }
+
+  /**
+   * Store the body of the current part and return the stored entry. With {@code single} the part
+   * must also be the last one.
+   */
+  private DocumentEntry receivePart(HttpServletRequest request, MultipartStreamReader reader,
+      Map<String, String> headers, DocumentEntry existing, boolean single) throws IOException {
+    String fileName = ContentDisposition.fileName(headers.get("content-disposition"));
+    if (fileName == null || fileName.lastIndexOf('.') < 0) {
+      throw new MalformedRequestException(ExceptionConstants.FILE_NAME_MISSING);
+    }
+    String suffix = fileName.substring(fileName.lastIndexOf('.'));
+    // Reject a type change before reading the body
+    if (existing != null && !existing.getExtension().equalsIgnoreCase(suffix)) {
+      throw new MalformedRequestException(ExceptionConstants.MIME_MISMATCH);
+    }
+    String documentId = existing == null ? reserveDocumentId() : existing.getDocumentId();
+    DocumentEntry document;
+    try {
+      DocumentWriter writer = store().newWriter(documentId, suffix);
+      try {
+        long size;
+        ContentChecksum checksum = newChecksum();
+        try (OutputStream outputStream = checksum.wrap(writer.getOutputStream())) {
+          size = reader.readBody(outputStream, maxFileSize);
+        }
+        if (single && !reader.isLastPart()) {
+          throw new MalformedRequestException(ExceptionConstants.NO_SUPPORT_FOR_MULTIPLE_FILES);
+        } else if (size == 0) {
+          throw new MalformedRequestException(ExceptionConstants.NO_DOCUMENT_IN_REQUEST_BODY);
+        }
+        if (existing == null) {
+          document = writer.commit();
+          documentStored(document, fileName, headers.get("content-type"), tags(request), checksum);
+        } else {
+          document = commitUpdate(writer, request, fileName, headers.get("content-type"), checksum);
+        }
+      } finally {
+        writer.abort();
+      }
+    } finally {
+      if (existing == null) {
+        reservedIds.remove(documentId);
+      }
+    }
+    return document;
+  }
+
+  /**
+   * The document a PUT replaces, once its preconditions hold. Checked before the body is read and
+   * again by {@link #commitUpdate} in case another update got in meanwhile.
+   */
+  private DocumentEntry checkUpdatableDocument(HttpServletRequest request) throws IOException {
+    DocumentEntry existing = checkDocumentExistence(pickAndValidateDocumentIdFromURI(request));
+    checkPreconditions(request, existing);
+    return existing;
+  }
+
+  /**
+   * Commit a new version of an existing document if the request's preconditions still hold for the
+   * current version. The check and the atomic rename happen under the document's lock, so two
+   * updates with the same If-Match cannot both succeed; readers keep streaming the file they opened.
+   */
+  private DocumentEntry commitUpdate(DocumentWriter writer, HttpServletRequest request, String fileName,
+      String contentType, ContentChecksum checksum) throws IOException {
+    synchronized (updateLockFor(writer.getDocumentId())) {
+      checkPreconditions(request, checkDocumentExistence(writer.getDocumentId()));
+      DocumentEntry document = writer.commit();
+      documentStored(document, fileName, contentType, tags(request), checksum);
+      return document;
+    }
+  }
+
+  /**
+   * Check If-Match and If-Unmodified-Since against the current version. Either entity tag the
+   * document is served with identifies it.
+   */
+  private void checkPreconditions(HttpServletRequest request, DocumentEntry document) {
+    if (!Preconditions.isUpdateAllowed(request, document.getLastModified(), etag(document, null),
+        etag(document, document.getEncoding()))) {
+      throw new PreconditionFailedException(ExceptionConstants.PRECONDITION_FAILED);
+    }
+  }
+
+  /**
+   * Entity tag of a version of a document, from its CRC32C once its metadata records it. Under the
+   * update lock of the document the metadata is the one of the current version.
+   */
+  private String etag(DocumentEntry document, String encoding) {
+    return Preconditions.etag(document.getSize(), document.getLastModified(),
+        crc32c(metadataStore.get(document.getDocumentId()), document), encoding);
+  }
+
+  private Object updateLockFor(String documentId) {
+    return updateLocks[(documentId.hashCode() & Integer.MAX_VALUE) % UPDATE_LOCK_STRIPES];
+  }
+
+  private boolean isBatchRequest(HttpServletRequest request) {
+    return BATCH_PATH.equals(request.getServletPath());
+  }
+
+  /**
+   * Ids of a batch request, from repeated or comma separated id parameters or, if allowed, from a
+   * text body. Duplicates are dropped and the order is kept.
+   */
+  private Set<String> batchDocumentIds(HttpServletRequest request, boolean fromBody) throws IOException {
+    Set<String> documentIds = new LinkedHashSet<>();
+    String[] values = request.getParameterValues("id");
+    if (values != null) {
+      for (String value : values) {
+        addDocumentIds(documentIds, value);
+      }
+    } else if (fromBody) {
+      BufferedReader reader = request.getReader();
+      String line;
+      while ((line = reader.readLine()) != null && documentIds.size() <= maxBatchSize) {
+        addDocumentIds(documentIds, line);
+      }
+    }
+    if (documentIds.isEmpty()) {
+      throw new MalformedRequestException(ExceptionConstants.DOCUMENT_IDS_MISSING);
+    } else if (documentIds.size() > maxBatchSize) {
+      throw new MalformedRequestException(ExceptionConstants.TOO_MANY_DOCUMENTS);
+    }
+    return documentIds;
+  }
+
+  private static void addDocumentIds(Set<String> documentIds, String value) {
+    for (String documentId : value.split("[,\\s]+")) {
+      if (!documentId.isEmpty()) {
+        documentIds.add(documentId);
+      }
+    }
+  }
+
+  /**
+   * Stream the requested documents as one tar (default) or zip archive. Every Id is looked up
+   * before anything is sent, so a missing one fails the whole batch with 404.
+   */
+  private void sendBatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String format = request.getParameter("format") == null ? "tar" : request.getParameter("format");
+    if (!ArchiveWriter.supports(format)) {
+      throw new MalformedRequestException(ExceptionConstants.UNSUPPORTED_ARCHIVE_FORMAT);
+    }
+    List<DocumentEntry> documents = new ArrayList<>();
+    List<Long> sizes = new ArrayList<>();
+    for (String documentId : batchDocumentIds(request, false)) {
+      DocumentEntry document = checkDocumentExistence(documentId, true);
+      if (tiering != null) {
+        tiering.accessed(documentId);
+      }
+      documents.add(document);
+      sizes.add(document.getSize());
+    }
+    ArchiveWriter archive = ArchiveWriter.forFormat(format, response.getOutputStream());
+    response.setContentType(archive.getContentType());
+    response.setHeader("Content-Disposition", "attachment; filename=\"documents" + archive.getExtension() + "\"");
+    long length = archive.length(sizes);
+    if (length >= 0) {
+      response.setContentLengthLong(length);
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+    for (DocumentEntry listed : documents) {
+      try (OpenDocument opened = openBatchDocument(listed, length >= 0)) {
+        DocumentEntry document = opened.getEntry();
+        OutputStream entry = archive.putEntry(document.getFileName(), document.getSize(), document.getLastModified());
+        if (document.getEncoding() != null) {
+          try (InputStream inputStream = opened.newInputStream()) {
+            downloadEngine.copy(inputStream, 0, document.getSize(), entry);
+          }
+        } else if (opened.getContents() != null) {
+          downloadEngine.write(opened.getContents(), 0, document.getSize(), entry);
+        } else {
+          downloadEngine.copy(opened.getChannel(), document.getOffset(), document.getSize(), entry);
+        }
+        archive.closeEntry();
+        metrics.operation("GET").addBytesOut(document.getSize());
+      }
+    }
+    archive.finish();
+  }
+
+  /**
+   * Open a document listed in a batch response. A version that replaced the listed one is sent
+   * instead when it still fits the announced content length; otherwise the response is cut short.
+   */
+  private OpenDocument openBatchDocument(DocumentEntry listed, boolean fixedSize) throws IOException {
+    OpenDocument opened = OpenDocument.open(store(), listed);
+    if (opened != null) {
+      return opened;
+    }
+    try {
+      opened = openDocument(listed.getDocumentId());
+    } catch (DocumentNotFoundException e) {
+      throw new IOException("Document " + listed.getDocumentId() + " was deleted while the batch was sent", e);
+    }
+    if (fixedSize && opened.getEntry().getSize() != listed.getSize()) {
+      opened.close();
+      throw new IOException("Document " + listed.getDocumentId() + " was resized while the batch was sent");
+    }
+    return opened;
+  }
+
+  /**
+   * Store every file part of a multipart body as a new document and return the new Ids in part
+   * order. All or nothing: the documents already stored are removed again if a part fails.
+   */
+  private List<String> receiveBatch(HttpServletRequest request) throws IOException, ServletException {
+    List<String> documentIds = new ArrayList<>();
+    boolean complete = false;
+    try {
+      if (multipartStreaming) {
+        MultipartStreamReader reader = openMultipart(request);
+        Map<String, String> headers;
+        while ((headers = reader.nextPart()) != null) {
+          if (ContentDisposition.fileName(headers.get("content-disposition")) == null) {
+            continue; // A form field, skipped by the next call
+          }
+          checkBatchSize(documentIds);
+          documentIds.add(receivePart(request, reader, headers, null, false).getDocumentId());
+        }
+      } else {
+        for (Part part : request.getParts()) {
+          if (part.getSubmittedFileName() == null) {
+            continue;
+          } else if (part.getSize() == 0) {
+            throw new MalformedRequestException(ExceptionConstants.NO_DOCUMENT_IN_REQUEST_BODY);
+          }
+          checkBatchSize(documentIds);
+          documentIds.add(storePart(request, part));
+        }
+      }
+      if (documentIds.isEmpty()) {
+        throw new MalformedRequestException(ExceptionConstants.NO_DOCUMENT_IN_REQUEST_BODY);
+      }
+      complete = true;
+    } finally {
+      if (!complete) {
+        for (String documentId : documentIds) {
+          store().delete(documentId);
+          documentRemoved(documentId);
+        }
+      }
+    }
+    return documentIds;
+  }
+
+  private void checkBatchSize(List<String> documentIds) {
+    if (documentIds.size() >= maxBatchSize) {
+      throw new MalformedRequestException(ExceptionConstants.TOO_MANY_DOCUMENTS);
+    }
+  }
+
+  /**
+   * Delete every listed document. All Ids are looked up first, so a missing one deletes nothing.
+   */
+  private void deleteBatch(HttpServletRequest request) throws IOException {
+    Set<String> documentIds = batchDocumentIds(request, true);
+    for (String documentId : documentIds) {
+      checkDocumentExistence(documentId);
+    }
+    for (String documentId : documentIds) {
+      store().delete(documentId);
+      documentRemoved(documentId);
+    }
+  }
+
+  private boolean isUploadRequest(HttpServletRequest request) {
+    return UPLOADS_PATH.equals(request.getServletPath());
+  }
+
+  private boolean isMetadataRequest(HttpServletRequest request) {
+    return METADATA_PATH.equals(request.getServletPath());
+  }
+
+  /**
+   * GET of the metadata of one document, or of a page of the documents matching the type, tag,
+   * from and to parameters, newest first. The next page is requested with the returned cursor.
+   */
+  private void sendMetadata(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    StringBuilder json = new StringBuilder();
+    String pathInfo = request.getPathInfo();
+    if (pathInfo != null && pathInfo.split("/").length > 1) {
+      DocumentMetadata metadata = metadataStore.get(pathInfo.split("/")[1]);
+      if (metadata == null) {
+        throw new DocumentNotFoundException(ExceptionConstants.DOCUMENT_NOT_FOUND);
+      }
+      metadata.appendJson(json);
+    } else {
+      String contentType = request.getParameter("type");
+      if (contentType != null && (contentType.isEmpty() || contentType.equals("*/*"))) {
+        contentType = null;
+      }
+      String limit = request.getParameter("limit");
+      long pageSize = limit == null ? 100 : parseLong(limit, ExceptionConstants.INVALID_LIMIT);
+      if (pageSize < 1 || pageSize > MetadataStore.MAX_PAGE_SIZE) {
+        throw new MalformedRequestException(ExceptionConstants.INVALID_LIMIT);
+      }
+      metadataStore.query(contentType, request.getParameter("tag"), time(request.getParameter("from"), Long.MIN_VALUE),
+          time(request.getParameter("to"), Long.MAX_VALUE), request.getParameter("cursor"), (int) pageSize)
+          .appendJson(json);
+    }
+    response.setContentType("application/json");
+    response.setCharacterEncoding("utf-8");
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.getWriter().append(json);
+  }
+
+  /**
+   * An ISO-8601 instant or milliseconds since the epoch
+   */
+  private static long time(String value, long defaultValue) {
+    if (value == null || value.isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Instant.parse(value).toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return parseLong(value, ExceptionConstants.INVALID_DATE);
+    }
+  }
+
+  /**
+   * POST on the uploads collection opens a session for the file named by the Content-Disposition
+   * header, of the size given by the optional length parameter, and answers with the upload Id.
+   * POST on an upload commits it and answers with the new document Id.
+   */
+  private void openOrCommitUpload(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String pathInfo = request.getPathInfo();
+    String body;
+    if (pathInfo == null || pathInfo.split("/").length <= 1) {
+      UploadSession session = openUpload(request);
+      response.setHeader("Location", request.getRequestURI().replaceAll("/$", "") + "/" + session.getUploadId());
+      body = session.getUploadId();
+    } else {
+      UploadSession session = checkUploadExistence(request);
+      DocumentMetadata described = (DocumentMetadata) session.attachment();
+      documentStored(session.commit(), described.getFileName(), described.getContentType(), described.getTags(), null);
+      uploadSessions.remove(session);
+      reservedIds.remove(session.getDocumentId());
+      body = session.getDocumentId();
+    }
+    response.setContentType("text/plain");
+    response.setStatus(HttpServletResponse.SC_CREATED);
+    response.setCharacterEncoding("us-ascii");
+    response.getWriter().append(body);
+  }
+
+  private UploadSession openUpload(HttpServletRequest request) throws IOException {
+    String fileName = ContentDisposition.fileName(request.getHeader("Content-Disposition"));
+    if (fileName == null || fileName.lastIndexOf('.') < 0) {
+      throw new MalformedRequestException(ExceptionConstants.FILE_NAME_MISSING);
+    }
+    long length = -1;
+    if (request.getParameter("length") != null) {
+      length = parseLong(request.getParameter("length"), ExceptionConstants.UPLOAD_LENGTH_INVALID);
+      if (length <= 0) {
+        throw new MalformedRequestException(ExceptionConstants.UPLOAD_LENGTH_INVALID);
+      } else if (maxFileSize >= 0 && length > maxFileSize) {
+        throw new PayloadTooLargeException(ExceptionConstants.PAYLOAD_TOO_LARGE);
+      }
+    }
+    String documentId = reserveDocumentId();
+    try {
+      // The Id stays reserved until the session is committed, aborted or expired
+      UploadSession session = uploadSessions.open(
+          store().newWriter(documentId, fileName.substring(fileName.lastIndexOf('.'))), length, maxFileSize);
+      Set<String> tags = tags(request);
+      // What the document is said to be; completed on commit
+      session.attach(new DocumentMetadata(documentId, fileName, request.getContentType(), length, null, null, 0, 0,
+          tags != null ? tags : Collections.<String>emptySet()));
+      return session;
+    } catch (IOException | RuntimeException e) {
+      reservedIds.remove(documentId);
+      throw e;
+    }
+  }
+
+  /**
+   * PUT of a raw body at the byte offset given by the offset parameter of an upload
+   */
+  private void receiveChunk(HttpServletRequest request) throws IOException {
+    UploadSession session = checkUploadExistence(request);
+    long offset = parseLong(request.getParameter("offset"), ExceptionConstants.UPLOAD_OFFSET_MISSING);
+    checkContentLength(request);
+    session.write(offset, request.getInputStream());
+  }
+
+  /**
+   * The received ranges of an upload, one inclusive "start-end" pair per line, so that an
+   * interrupted client knows which chunks to send again
+   */
+  private void sendUploadStatus(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UploadSession session = checkUploadExistence(request);
+    StringBuilder body = new StringBuilder();
+    for (long[] range : session.getReceivedRanges()) {
+      body.append(range[0]).append('-').append(range[1]).append('\n');
+    }
+    if (session.getLength() >= 0) {
+      response.setHeader("Upload-Length", Long.toString(session.getLength()));
+    }
+    response.setContentType("text/plain");
+    response.setCharacterEncoding("us-ascii");
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.getWriter().append(body);
+  }
+
+  private void abortUpload(UploadSession session) {
+    if (uploadSessions.remove(session)) {
+      session.abort();
+      reservedIds.remove(session.getDocumentId());
+    }
+  }
+
+  /**
+   * Abort the uploads idle for longer than the session timeout
+   */
+  void expireUploads() {
+    for (UploadSession session : uploadSessions.expire(uploadTimeout)) {
+      reservedIds.remove(session.getDocumentId());
+    }
+  }
+
+  private UploadSession checkUploadExistence(HttpServletRequest request) {
+    String pathInfo = request.getPathInfo();
+    if (pathInfo == null || pathInfo.split("/").length <= 1) {
+      throw new MalformedRequestException(ExceptionConstants.UPLOAD_ID_MISSING);
+    }
+    UploadSession session = uploadSessions.get(pathInfo.split("/")[1]);
+    if (session == null) {
+      throw new DocumentNotFoundException(ExceptionConstants.UPLOAD_NOT_FOUND);
+    }
+    return session;
+  }
+
+  private static long parseLong(String value, String message) {
+    if (value == null) {
+      throw new MalformedRequestException(message);
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new MalformedRequestException(message);
+    }
+  }
+
+  /**
+   * Store a container buffered Part as a new document and return its Id
+   */
+  private String storePart(HttpServletRequest request, Part filePart) throws IOException {
+    String fileName = filePart.getSubmittedFileName();
+    if (fileName == null || fileName.lastIndexOf('.') < 0) {
+      throw new MalformedRequestException(ExceptionConstants.FILE_NAME_MISSING);
+    }
+    String suffix = fileName.substring(fileName.lastIndexOf('.'));
+    String documentId = reserveDocumentId();
+    try {
+      DocumentWriter writer = store().newWriter(documentId, suffix);
+      try {
+        filePart.write(writer.getStagingFile().toString());
+        documentStored(writer.commit(), fileName, filePart.getContentType(), tags(request), null);
+      } finally {
+        writer.abort();
+      }
+    } finally {
+      reservedIds.remove(documentId);
+    }
+    return documentId;
+  }
+
+  /**
+   * Reject a body whose declared length is already over the limit, before reading any of it
+   */
+  private void checkContentLength(HttpServletRequest request) {
+    if (maxRequestSize >= 0 && request.getContentLengthLong() > maxRequestSize) {
+      throw new PayloadTooLargeException(ExceptionConstants.PAYLOAD_TOO_LARGE);
+    }
+  }
+
   /**
    * Check if the Document ID is missing in the request URI, If not return the document Id for further operations
    */
@@ -187,19 +1652,60 @@ public class DocumentManagementServlet extends HttpServlet {
   }
 
   /**
-   * Check for document existence. If found, return the path
+   * Draw a new document Id that is neither stored nor reserved by an upload in flight, and reserve
+   * it. The caller removes it from {@link #reservedIds} once the upload is committed or failed.
    */
-  private Path checkDocumentExistence(String documentId) throws IOException {
-    Optional<Path> documentPath = Files.walk(Paths.get(dirPath.toUri()))
-        .filter(Files::isRegularFile)
-        .filter(t -> t.getFileName().toString().substring(0, t.getFileName()
-            .toString().lastIndexOf(".")).equals(documentId))
-        .findAny();
+  private String reserveDocumentId() throws IOException {
+    while (true) {
+      String documentId = idGenerator.next();
+      if (cluster != null && !cluster.isPrimary(documentId)) {
+        continue; // New documents stay on the node that receives them
+      }
+      // Reserve before the lookup: a reservation is only dropped after its document is committed
+      if (reservedIds.add(documentId)) {
+        if (store().lookup(documentId) == null) {
+          return documentId;
+        }
+        reservedIds.remove(documentId);
+      }
+      logger.warn("Document Id {} collided, drawing another one", documentId);
+    }
+  }
+
+  /**
+   * Look up a document and open its current version. The lookup is repeated when the document is
+   * replaced or deleted before its file is opened, so the entry always describes the bytes read.
+   */
+  private OpenDocument openDocument(String documentId) throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      OpenDocument opened = OpenDocument.open(store(), checkDocumentExistence(documentId, true));
+      if (opened != null) {
+        return opened;
+      } else if (attempt == OPEN_ATTEMPTS) {
+        throw new IOException("Document " + documentId + " changed on every attempt to open it");
+      }
+    }
+  }
 
-    if (!documentPath.isPresent()) {
+  /**
+   * Check for document existence in the index. If found, return its entry; an archived document
+   * stays archived.
+   */
+  private DocumentEntry checkDocumentExistence(String documentId) throws IOException {
+    return checkDocumentExistence(documentId, false);
+  }
+
+  /**
+   * @param read the contents are about to be sent, so an archived document is promoted first
+   */
+  private DocumentEntry checkDocumentExistence(String documentId, boolean read) throws IOException {
+    long start = System.nanoTime();
+    DocumentEntry document = read ? store().get(documentId) : store().lookup(documentId);
+    metrics.lookupCompleted(System.nanoTime() - start);
+    if (document == null) {
       throw new DocumentNotFoundException(ExceptionConstants.DOCUMENT_NOT_FOUND);
     }
-    return documentPath.get();
+    return document;
   }
 
   /**
@@ -217,22 +1723,76 @@ public class DocumentManagementServlet extends HttpServlet {
   }
   
 
+  /**
+   * ObjectName of an MBean of this servlet, keyed by its context path and servlet name so that the
+   * servlets of several applications in one JVM do not take each other's names
+   */
+  private String mbeanName(String type) {
+    ServletContext context = getServletConfig().getServletContext();
+    String contextPath = context == null || context.getContextPath() == null ? "" : context.getContextPath();
+    return MBEAN_DOMAIN + ":type=" + type + ",name="
+        + ObjectName.quote(contextPath + "/" + getServletConfig().getServletName());
+  }
+
+  private void registerMBean(Object mbean, String name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+    } catch (JMException e) {
+      logger.error("Unable to register MBean {} with exception {}", name, e.getMessage());
+    }
+  }
+
+  private void unregisterMBean(String name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+    } catch (JMException e) {
+      logger.error("Unable to unregister MBean {} with exception {}", name, e.getMessage());
+    }
+  }
+
   @Override
   public void destroy() {
+    if (replicator != null) {
+      replicator.shutdown();
+    }
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      try {
+        scheduler.awaitTermination(10, TimeUnit.SECONDS); // A tiering run stops between documents
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (scrubber != null) {
+      scrubber.close();
+      unregisterMBean(mbeanName(SCRUBBER_MBEAN_TYPE));
+    }
+    for (UploadSession session : uploadSessions.abortAll()) {
+      reservedIds.remove(session.getDocumentId());
+    }
     try {
-      Files.walk(Paths.get(dirPath.toUri()))
-        .filter(Files::isRegularFile)
-        .forEach(file -> {
-          try {
-            Files.delete(file); // Deleting the individual files inside the folder before deleting the folder
-          } catch (IOException e) {
-            logger.error("Unable to delete file {} with exception {}", file, e.getMessage());
-          }
-        });
-      Files.delete(dirPath); // Deleting Temporary Folder created by init
+      if (persistentStorage) {
+        metadataStore.persist();
+        store().close(); // Kept for the next start
+      } else {
+        store().destroy(); // Deleting the stored documents and the Temporary Folder created by init
+      }
     } catch (IOException e) {
       logger.error("Unable to delete Folder {} with exception {}", dirPath, e.getMessage());
     }
+    if (ioExecutor != null) {
+      ioExecutor.shutdown();
+    }
+    if (documentCache != null) {
+      documentCache.clear();
+      unregisterMBean(mbeanName(CACHE_MBEAN_TYPE));
+    }
+    if (getServletConfig() != null) { // Registered by init
+      unregisterMBean(mbeanName(METRICS_MBEAN_TYPE));
+      for (String operation : ServletMetrics.OPERATIONS) {
+        unregisterMBean(mbeanName(METRICS_MBEAN_TYPE) + ",operation=" + operation);
+      }
+    }
     super.destroy();
   }
 }
@@ -0,0 +1,174 @@
+package com.logmein.dms.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import com.logmein.dms.storage.DocumentEntry;
+import com.logmein.dms.storage.DocumentStore;
+
+/**
+ * Size bounded LRU cache of document contents held off-heap in direct buffers.
+ * 
+ * Entries remember the size and modification time of the document they were loaded from, so a
+ * stale entry is never served even if an invalidation is missed. A miss is loaded from a channel
+ * opened on the version looked up, so the contents cached under an entry are always its own.
+ */
+public class DocumentCache implements DocumentCacheMXBean {
+
+  private final long maxBytes;
+  private final long maxEntrySize;
+
+  // Access ordered, the eldest entry is the least recently used one
+  private final LinkedHashMap<String, CachedDocument> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long sizeInBytes;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param maxBytes total budget for cached contents
+   * @param maxEntrySize documents larger than this are never cached
+   */
+  public DocumentCache(long maxBytes, long maxEntrySize) {
+    this.maxBytes = maxBytes;
+    this.maxEntrySize = Math.min(maxEntrySize, Math.min(maxBytes, Integer.MAX_VALUE));
+  }
+
+  public boolean isCacheable(DocumentEntry document) {
+    return document.getEncoding() == null && document.getSize() > 0 && document.getSize() <= maxEntrySize;
+  }
+
+  /**
+   * Return a read only view of the cached contents, loading the document from the store on a miss.
+   * Returns null if the document is not cacheable, or if the entry is no longer the current version
+   * of the document in the store.
+   */
+  public ByteBuffer get(DocumentEntry document, DocumentStore store) throws IOException {
+    ByteBuffer contents = get(document);
+    if (contents != null || !isCacheable(document)) {
+      return contents;
+    }
+    try (FileChannel channel = store.openFile(document)) {
+      return channel == null ? null : load(document, channel);
+    }
+  }
+
+  /**
+   * Return a read only view of the cached contents, or null on a miss. No file is read.
+   */
+  public ByteBuffer get(DocumentEntry document) {
+    if (!isCacheable(document)) {
+      return null;
+    }
+    CachedDocument cached;
+    synchronized (this) {
+      cached = entries.get(document.getDocumentId());
+    }
+    if (cached != null && cached.matches(document)) {
+      hits.increment();
+      return cached.contents.duplicate();
+    }
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * Cache the contents of the entry read from a channel on its file, which the caller keeps open
+   * and positioned where it was. Returns a read only view of them, or null if the document is not
+   * cacheable or the file does not end with it.
+   */
+  public ByteBuffer load(DocumentEntry document, FileChannel channel) throws IOException {
+    if (!isCacheable(document) || channel.size() != document.getOffset() + document.getSize()) {
+      return null; // Changed behind the store's back
+    }
+    ByteBuffer contents = ByteBuffer.allocateDirect((int) document.getSize());
+    while (contents.hasRemaining() && channel.read(contents, document.getOffset() + contents.position()) >= 0) {
+      // Keep reading until the buffer is full or the file ends
+    }
+    contents.flip();
+    CachedDocument cached = new CachedDocument(contents.asReadOnlyBuffer(), document.getSize(),
+        document.getLastModified());
+    put(document.getDocumentId(), cached);
+    return cached.contents.duplicate();
+  }
+
+  public synchronized void invalidate(String documentId) {
+    CachedDocument removed = entries.remove(documentId);
+    if (removed != null) {
+      sizeInBytes -= removed.contents.capacity();
+    }
+  }
+
+  @Override
+  public synchronized void clear() {
+    entries.clear();
+    sizeInBytes = 0;
+  }
+
+  @Override
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  @Override
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  @Override
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  @Override
+  public synchronized long getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  @Override
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  @Override
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  private synchronized void put(String documentId, CachedDocument cached) {
+    CachedDocument previous = entries.put(documentId, cached);
+    if (previous != null) {
+      sizeInBytes -= previous.contents.capacity();
+    }
+    sizeInBytes += cached.contents.capacity();
+    Iterator<Map.Entry<String, CachedDocument>> eldest = entries.entrySet().iterator();
+    while (sizeInBytes > maxBytes && eldest.hasNext()) {
+      CachedDocument evicted = eldest.next().getValue();
+      eldest.remove();
+      sizeInBytes -= evicted.contents.capacity();
+      evictions.increment();
+    }
+  }
+
+  private static class CachedDocument {
+
+    private final ByteBuffer contents;
+    private final long size;
+    private final long lastModified;
+
+    CachedDocument(ByteBuffer contents, long size, long lastModified) {
+      this.contents = contents;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+
+    boolean matches(DocumentEntry document) {
+      return size == document.getSize() && lastModified == document.getLastModified();
+    }
+  }
+}
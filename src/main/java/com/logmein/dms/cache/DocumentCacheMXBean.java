@@ -0,0 +1,21 @@
+package com.logmein.dms.cache;
+
+/**
+ * JMX view of the {@link DocumentCache} counters.
+ */
+public interface DocumentCacheMXBean {
+
+  long getHitCount();
+
+  long getMissCount();
+
+  long getEvictionCount();
+
+  long getSizeInBytes();
+
+  long getMaxBytes();
+
+  int getEntryCount();
+
+  void clear();
+}
@@ -0,0 +1,102 @@
+package com.logmein.dms.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Placement of documents on the nodes of a cluster. The primary of a document, the first node of
+ * its {@link HashRing} owners, takes its writes; the following {@code replicas} owners get copies
+ * of them and serve reads locally.
+ *
+ * Nodes are named by their base URL, which is where the servlet paths start, e.g.
+ * {@code http://host:8080/dms}. Requests between nodes carry a secret shared by all of them, so
+ * that clients cannot pass themselves off as a node.
+ */
+public class Cluster {
+
+  /** Marks a request another node passed on, which is always handled where it arrives */
+  public static final String FORWARDED_HEADER = "X-DMS-Forwarded";
+
+  /** Marks a copy of a write sent by the primary; holds the modification time of the version */
+  public static final String REPLICA_HEADER = "X-DMS-Replica";
+
+  /** Shared secret of the nodes, required on every forwarded and replica request */
+  public static final String SECRET_HEADER = "X-DMS-Cluster-Secret";
+
+  private final String self;
+  private final HashRing ring;
+  private final int replicas;
+  private final String secret;
+
+  /**
+   * @param self base URL of this node, one of the nodes
+   * @param nodes base URLs of every node, this one included
+   * @param replicas copies of every document besides the one of its primary
+   * @param secret shared by every node
+   */
+  public Cluster(String self, List<String> nodes, int replicas, String secret) {
+    List<String> normalized = new ArrayList<>();
+    for (String node : nodes) {
+      normalized.add(normalize(node));
+    }
+    this.self = normalize(self);
+    if (!normalized.contains(this.self)) {
+      throw new IllegalArgumentException("cluster.self " + self + " is not one of cluster.nodes");
+    }
+    this.ring = new HashRing(normalized, HashRing.DEFAULT_VIRTUAL_NODES);
+    this.replicas = replicas;
+    this.secret = secret;
+  }
+
+  public String getSelf() {
+    return self;
+  }
+
+  public String getSecret() {
+    return secret;
+  }
+
+  /**
+   * True when a request carrying the value of its {@link #SECRET_HEADER} comes from a node.
+   * Compared in constant time.
+   */
+  public boolean isNodeRequest(String secretHeader) {
+    return secretHeader != null && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+        secretHeader.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public List<String> getNodes() {
+    return ring.getNodes();
+  }
+
+  /**
+   * Nodes keeping a document, its primary first
+   */
+  public List<String> owners(String documentId) {
+    return ring.owners(documentId, replicas + 1);
+  }
+
+  public boolean isPrimary(String documentId) {
+    return owners(documentId).get(0).equals(self);
+  }
+
+  public boolean isOwner(String documentId) {
+    return owners(documentId).contains(self);
+  }
+
+  /**
+   * Owners of a document other than this node
+   */
+  public List<String> peers(String documentId) {
+    List<String> peers = new ArrayList<>(owners(documentId));
+    peers.remove(self);
+    return peers;
+  }
+
+  private static String normalize(String node) {
+    node = node.trim();
+    return node.endsWith("/") ? node.substring(0, node.length() - 1) : node;
+  }
+}
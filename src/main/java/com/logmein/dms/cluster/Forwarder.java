@@ -0,0 +1,125 @@
+package com.logmein.dms.cluster;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Passes a request on to the node owning its document and relays the answer, so that clients
+ * may talk to any node.
+ */
+public class Forwarder {
+
+  /** Per connection headers, and those HttpURLConnection sets itself */
+  private static final Set<String> SKIPPED_HEADERS = new HashSet<>(Arrays.asList("connection", "keep-alive",
+      "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade", "host",
+      "content-length", "expect", "date", "server"));
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Cluster cluster;
+  private final int timeout;
+
+  /**
+   * @param cluster of this node, whose URL is sent along so the target does not forward again
+   * @param timeout connect and read timeout in milliseconds
+   */
+  public Forwarder(Cluster cluster, int timeout) {
+    this.cluster = cluster;
+    this.timeout = timeout;
+  }
+
+  /**
+   * URL of the request on another node
+   */
+  public static String targetUrl(String node, HttpServletRequest request) {
+    StringBuilder url = new StringBuilder(node).append(request.getServletPath());
+    if (request.getPathInfo() != null) {
+      url.append(request.getPathInfo());
+    }
+    if (request.getQueryString() != null) {
+      url.append('?').append(request.getQueryString());
+    }
+    return url.toString();
+  }
+
+  /**
+   * Send the request to the node and copy its response. An IOException thrown before anything
+   * was written to the response means the node could not be reached.
+   */
+  public void forward(HttpServletRequest request, HttpServletResponse response, String node) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(targetUrl(node, request)).openConnection();
+    connection.setConnectTimeout(timeout);
+    connection.setReadTimeout(timeout);
+    connection.setInstanceFollowRedirects(false);
+    connection.setRequestMethod(request.getMethod());
+    for (String name : Collections.list(request.getHeaderNames())) {
+      if (!SKIPPED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+        for (String value : Collections.list(request.getHeaders(name))) {
+          connection.addRequestProperty(name, value);
+        }
+      }
+    }
+    connection.setRequestProperty(Cluster.FORWARDED_HEADER, cluster.getSelf());
+    connection.setRequestProperty(Cluster.SECRET_HEADER, cluster.getSecret());
+    long contentLength = request.getContentLengthLong();
+    if (contentLength > 0 || (contentLength < 0 && request.getHeader("Transfer-Encoding") != null)) {
+      connection.setDoOutput(true);
+      if (contentLength > 0) {
+        connection.setFixedLengthStreamingMode(contentLength);
+      } else {
+        connection.setChunkedStreamingMode(BUFFER_SIZE);
+      }
+      try (OutputStream out = connection.getOutputStream()) {
+        copy(request.getInputStream(), out);
+      }
+    }
+    int status = connection.getResponseCode();
+    response.setStatus(status);
+    if (connection.getContentLengthLong() >= 0) {
+      response.setContentLengthLong(connection.getContentLengthLong());
+    }
+    for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+      // The null key is the status line
+      if (header.getKey() != null && !SKIPPED_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+        for (String value : header.getValue()) {
+          response.addHeader(header.getKey(), value);
+        }
+      }
+    }
+    InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+    if (in != null) {
+      try (InputStream body = in) {
+        copy(body, response.getOutputStream());
+      }
+    }
+  }
+
+  /**
+   * Answer with a redirect to the same request on the node instead
+   */
+  public static void redirect(HttpServletRequest request, HttpServletResponse response, String node) {
+    // 307 keeps the method and the body, unlike 302
+    response.setStatus(307);
+    response.setHeader("Location", targetUrl(node, request));
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package com.logmein.dms.cluster;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring placing document Ids on nodes. Every node is hashed onto the ring at many
+ * points so that the Ids spread evenly, and adding or removing a node only moves the Ids next to
+ * its own points.
+ */
+public class HashRing {
+
+  public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+  private final TreeMap<Long, String> ring = new TreeMap<>();
+  private final List<String> nodes;
+
+  /**
+   * @param nodes distinct node names, e.g. their base URLs
+   * @param virtualNodes points per node on the ring
+   */
+  public HashRing(Collection<String> nodes, int virtualNodes) {
+    this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+    for (String node : nodes) {
+      for (int i = 0; i < virtualNodes; i++) {
+        ring.put(hash(node + "#" + i), node);
+      }
+    }
+  }
+
+  public List<String> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * The first {@code count} distinct nodes clockwise from the key, the first being its primary
+   */
+  public List<String> owners(String key, int count) {
+    int wanted = Math.min(count, nodes.size());
+    List<String> owners = new ArrayList<>(wanted);
+    long hash = hash(key);
+    addOwners(owners, ring.tailMap(hash, true), wanted);
+    addOwners(owners, ring.headMap(hash, false), wanted); // Wrapping around
+    return owners;
+  }
+
+  private static void addOwners(List<String> owners, Map<Long, String> part, int wanted) {
+    for (String node : part.values()) {
+      if (owners.size() == wanted) {
+        return;
+      }
+      if (!owners.contains(node)) {
+        owners.add(node);
+      }
+    }
+  }
+
+  /**
+   * First 64 bits of the MD5 of a string, well spread whatever the input
+   */
+  static long hash(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      return ByteBuffer.wrap(digest).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // Every JRE has MD5
+    }
+  }
+}
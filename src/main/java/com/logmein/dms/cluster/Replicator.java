@@ -0,0 +1,235 @@
+package com.logmein.dms.cluster;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.logmein.dms.http.ContentDisposition;
+import com.logmein.dms.metadata.DocumentMetadata;
+import com.logmein.dms.metadata.MetadataStore;
+import com.logmein.dms.storage.DocumentEntry;
+import com.logmein.dms.storage.DocumentStore;
+import com.logmein.dms.storage.OpenDocument;
+
+/**
+ * Asynchronous copy of the writes of this node to the other owners of each document. Every node
+ * has its own queue, worked off by one thread, so that a node receives the writes in the order
+ * they were made and a slow node holds up no other.
+ *
+ * A copy carries the modification time of its version; an owner keeps a newer version it already
+ * has. A copy that still fails after a few attempts is dropped: the owner then serves the previous
+ * version, or passes reads of a document it does not have on to the primary.
+ */
+public class Replicator {
+
+  private static Logger logger = LoggerFactory.getLogger(Replicator.class);
+
+  private static final int ATTEMPTS = 3;
+  private static final long RETRY_DELAY = 500;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Cluster cluster;
+  private final DocumentStore store;
+  private final MetadataStore metadataStore;
+  private final int timeout;
+  private final String documentsPath;
+  private final Map<String, ExecutorService> queues = new ConcurrentHashMap<>();
+
+  /**
+   * @param documentsPath servlet path of the documents, e.g. /storage/documents
+   * @param timeout connect and read timeout in milliseconds
+   */
+  public Replicator(Cluster cluster, DocumentStore store, MetadataStore metadataStore, String documentsPath,
+      int timeout) {
+    this.cluster = cluster;
+    this.store = store;
+    this.metadataStore = metadataStore;
+    this.documentsPath = documentsPath;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Copy the current version of a document to its other owners
+   */
+  public void stored(String documentId) {
+    for (String node : cluster.peers(documentId)) {
+      queue(node).execute(() -> send(node, documentId, "copy", () -> put(node, documentId)));
+    }
+  }
+
+  /**
+   * Delete a document from its other owners
+   */
+  public void removed(String documentId, long time) {
+    for (String node : cluster.peers(documentId)) {
+      queue(node).execute(() -> send(node, documentId, "removal", () -> delete(node, documentId, time)));
+    }
+  }
+
+  /**
+   * Stop sending; queued copies are dropped
+   */
+  public void shutdown() {
+    for (ExecutorService queue : queues.values()) {
+      queue.shutdownNow();
+    }
+  }
+
+  private ExecutorService queue(String node) {
+    return queues.computeIfAbsent(node, n -> Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "dms-replication-" + n);
+      thread.setDaemon(true);
+      return thread;
+    }));
+  }
+
+  private void send(String node, String documentId, String what, Request request) {
+    for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+      try {
+        request.send();
+        return;
+      } catch (IOException e) {
+        if (attempt == ATTEMPTS) {
+          logger.error("Dropping the {} of document {} to {} with exception {}", what, documentId, node, e.getMessage());
+          return;
+        }
+        try {
+          TimeUnit.MILLISECONDS.sleep(RETRY_DELAY << (attempt - 1));
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private void put(String node, String documentId) throws IOException {
+    try (OpenDocument opened = openCurrent(documentId)) {
+      if (opened != null) { // Otherwise deleted meanwhile, the removal follows
+        put(node, opened);
+      }
+    }
+  }
+
+  private void put(String node, OpenDocument opened) throws IOException {
+    DocumentEntry document = opened.getEntry();
+    String documentId = document.getDocumentId();
+    DocumentMetadata metadata = metadataStore.get(documentId);
+    StringBuilder url = new StringBuilder(node).append(documentsPath).append('/').append(documentId);
+    if (metadata != null && !metadata.getTags().isEmpty()) {
+      url.append("?tag=");
+      for (String tag : metadata.getTags()) {
+        url.append(encode(tag)).append("%2C");
+      }
+      url.setLength(url.length() - 3);
+    }
+    HttpURLConnection connection = open(url.toString(), "PUT", document.getLastModified());
+    connection.setRequestProperty("Content-Disposition",
+        ContentDisposition.attachment(metadata != null ? metadata.getFileName() : document.getFileName()));
+    if (metadata != null && metadata.getContentType() != null) {
+      connection.setRequestProperty("Content-Type", metadata.getContentType());
+    }
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(document.getSize());
+    try (OutputStream out = connection.getOutputStream()) {
+      writeContents(opened, out);
+    }
+    checkResponse(connection);
+  }
+
+  private void delete(String node, String documentId, long time) throws IOException {
+    checkResponse(open(node + documentsPath + "/" + documentId, "DELETE", time));
+  }
+
+  private HttpURLConnection open(String url, String method, long version) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(timeout);
+    connection.setReadTimeout(timeout);
+    connection.setRequestMethod(method);
+    connection.setRequestProperty(Cluster.REPLICA_HEADER, Long.toString(version));
+    connection.setRequestProperty(Cluster.FORWARDED_HEADER, cluster.getSelf());
+    connection.setRequestProperty(Cluster.SECRET_HEADER, cluster.getSecret());
+    return connection;
+  }
+
+  private static void checkResponse(HttpURLConnection connection) throws IOException {
+    int status = connection.getResponseCode();
+    InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+    if (body != null) {
+      body.close();
+    }
+    if (status >= 300) {
+      throw new IOException("HTTP status " + status);
+    }
+  }
+
+  /**
+   * Look up a document and open its current version, so that the copy carries the bytes of the
+   * version it is sent as. Looked up again when it is replaced before it is opened; null when it is
+   * gone.
+   */
+  private OpenDocument openCurrent(String documentId) throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      DocumentEntry document = store.lookup(documentId); // Archived documents are read in place
+      if (document == null) {
+        return null;
+      }
+      OpenDocument opened = OpenDocument.open(store, document);
+      if (opened != null) {
+        return opened;
+      } else if (attempt == ATTEMPTS) {
+        throw new IOException("Document " + documentId + " changed on every attempt to open it");
+      }
+    }
+  }
+
+  /**
+   * Write the contents of a document as uploaded. Reading stops at the size of the entry, whose
+   * contents need not end with its file.
+   */
+  private void writeContents(OpenDocument opened, OutputStream out) throws IOException {
+    ByteBuffer contents = opened.getContents();
+    if (contents != null) {
+      WritableByteChannel channel = Channels.newChannel(out);
+      ByteBuffer source = contents.duplicate();
+      while (source.hasRemaining()) {
+        channel.write(source);
+      }
+      return;
+    }
+    try (InputStream in = opened.newInputStream()) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long remaining = opened.getEntry().getSize();
+      int read;
+      while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+        out.write(buffer, 0, read);
+        remaining -= read;
+      }
+    }
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e); // Every JRE has UTF-8
+    }
+  }
+
+  private interface Request {
+    void send() throws IOException;
+  }
+}
@@ -0,0 +1,20 @@
+package com.logmein.dms.exception;
+
+import java.io.IOException;
+
+/**
+ * Stored contents found to differ from their checksum. An {@link IOException}, as it is raised by
+ * the stream the contents are sent through, typically after the response is committed.
+ */
+public class ChecksumMismatchException extends IOException {
+
+  /**
+   * 
+   */
+  private static final long serialVersionUID = 1L;
+
+  public ChecksumMismatchException(String message) {
+    super(message);
+  }
+
+}
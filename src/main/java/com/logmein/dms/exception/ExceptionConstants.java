@@ -7,4 +7,26 @@ public interface ExceptionConstants {
   String NO_DOCUMENT_IN_REQUEST_BODY = "No document found in the request body";
   String MIME_MISMATCH = "Not able to modify the file as the input file is of different format";
   String NO_SUPPORT_FOR_MULTIPLE_FILES = "API doesnot support for multiple files";
+  String MALFORMED_MULTIPART = "Malformed multipart request body";
+  String PAYLOAD_TOO_LARGE = "Document exceeds the maximum upload size";
+  String DOCUMENT_IDS_MISSING = "Document Ids are missing in the batch request";
+  String TOO_MANY_DOCUMENTS = "Batch exceeds the maximum number of documents";
+  String UNSUPPORTED_ARCHIVE_FORMAT = "Archive format must be tar or zip";
+  String UPLOAD_ID_MISSING = "Upload Id is missing in the request URI";
+  String UPLOAD_NOT_FOUND = "Invalid or expired upload Id";
+  String UPLOAD_OFFSET_MISSING = "Chunk offset is missing or invalid";
+  String UPLOAD_LENGTH_INVALID = "Upload length must be a positive number of bytes";
+  String CHUNK_OUT_OF_BOUNDS = "Chunk does not fit within the declared upload length";
+  String UPLOAD_INCOMPLETE = "Upload is missing chunks";
+  String UPLOAD_CLOSED = "Upload is already committed or aborted";
+  String PRECONDITION_FAILED = "Document was modified since the version given by If-Match or If-Unmodified-Since";
+  String INVALID_DATE = "Dates must be ISO-8601 instants or milliseconds since the epoch";
+  String INVALID_LIMIT = "Limit must be a number between 1 and 1000";
+  String OWNER_UNAVAILABLE = "No node holding the document can be reached";
+  String REPLICA_VERSION_INVALID = "Replica version is missing or invalid";
+  String CHECKSUM_MISMATCH = "Stored document does not match its checksum";
+  String FILE_NAME_MISSING = "File name with extension is missing in the Content-Disposition header";
+  String CLUSTER_SECRET_INVALID = "Forwarded and replica requests must carry the cluster secret";
+  String NOT_IN_CLUSTER_MODE = "Batch reads and deletes and metadata queries are not available in cluster mode";
+  String REPLICA_NOT_ACCEPTED = "Replicas of the document are only accepted from its primary by its other owners";
 }
@@ -0,0 +1,14 @@
+package com.logmein.dms.exception;
+
+public class PreconditionFailedException extends RuntimeException {
+
+  /**
+   * 
+   */
+  private static final long serialVersionUID = 1L;
+
+  public PreconditionFailedException(String message) {
+    super(message);
+  }
+
+}
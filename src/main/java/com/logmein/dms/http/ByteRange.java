@@ -0,0 +1,115 @@
+package com.logmein.dms.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Inclusive byte range of a representation as used by the HTTP Range header (RFC 7233).
+ */
+public class ByteRange {
+
+  private static final String BYTES_UNIT = "bytes=";
+
+  // More ranges than this in one request is treated as abuse and answered with the full document
+  private static final int MAX_RANGES = 64;
+
+  private final long start;
+  private final long end;
+
+  public ByteRange(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  public long getEnd() {
+    return end;
+  }
+
+  public long getLength() {
+    return end - start + 1;
+  }
+
+  /**
+   * Value for the Content-Range header of this range.
+   */
+  public String toContentRange(long totalLength) {
+    return "bytes " + start + "-" + end + "/" + totalLength;
+  }
+
+  /**
+   * Parse a Range header against a representation of {@code length} bytes.
+   * 
+   * Returns null when the header is absent or malformed, in which case the range must be ignored
+   * and the full document sent. Returns an empty list when the header is valid but none of the
+   * ranges is satisfiable (416). Overlapping and adjacent ranges are coalesced and sorted.
+   */
+  public static List<ByteRange> parse(String header, long length) {
+    if (header == null || !header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+      return null;
+    }
+    String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<ByteRange> ranges = new ArrayList<>(specs.length);
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      try {
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        if (first.isEmpty()) {
+          // Suffix range, the last N bytes
+          long suffix = Long.parseLong(last);
+          if (suffix < 0) {
+            return null;
+          }
+          if (suffix > 0 && length > 0) {
+            ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+          }
+          continue;
+        }
+        long start = Long.parseLong(first);
+        long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+        if (start < 0 || end < start) {
+          return null;
+        }
+        if (start < length) {
+          ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return coalesce(ranges);
+  }
+
+  private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+    if (ranges.size() <= 1) {
+      return ranges;
+    }
+    Collections.sort(ranges, Comparator.comparingLong(ByteRange::getStart));
+    List<ByteRange> merged = new ArrayList<>(ranges.size());
+    ByteRange current = ranges.get(0);
+    for (int i = 1; i < ranges.size(); i++) {
+      ByteRange next = ranges.get(i);
+      if (next.start <= current.end + 1) {
+        current = new ByteRange(current.start, Math.max(current.end, next.end));
+      } else {
+        merged.add(current);
+        current = next;
+      }
+    }
+    merged.add(current);
+    return merged;
+  }
+}
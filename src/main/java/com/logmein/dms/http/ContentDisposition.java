@@ -0,0 +1,108 @@
+package com.logmein.dms.http;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for the Content-Disposition header.
+ */
+public class ContentDisposition {
+
+  /**
+   * Extract the filename parameter, quoted or not, or the RFC 6266 filename* parameter which takes
+   * precedence. Returns null if there is none.
+   */
+  public static String fileName(String header) {
+    if (header == null) {
+      return null;
+    }
+    String value = null;
+    for (String parameter : header.split(";")) {
+      parameter = parameter.trim();
+      if (parameter.regionMatches(true, 0, "filename*=", 0, 10)) {
+        String extended = decodeExtended(parameter.substring(10).trim());
+        if (extended != null) {
+          value = extended;
+          break;
+        }
+      } else if (parameter.regionMatches(true, 0, "filename=", 0, 9) && value == null) {
+        value = parameter.substring(9).trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+          value = value.substring(1, value.length() - 1);
+        }
+      }
+    }
+    if (value == null) {
+      return null;
+    }
+    // Never trust client supplied directories
+    value = value.substring(Math.max(value.lastIndexOf('/'), value.lastIndexOf('\\')) + 1);
+    return value.isEmpty() ? null : value;
+  }
+
+  /**
+   * Decode a charset''percent-encoded value, or return null if it is malformed or of an unknown
+   * charset
+   */
+  private static String decodeExtended(String value) {
+    int charsetEnd = value.indexOf('\'');
+    int languageEnd = charsetEnd < 0 ? -1 : value.indexOf('\'', charsetEnd + 1);
+    if (languageEnd < 0) {
+      return null;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (int i = languageEnd + 1; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '%' && i + 2 < value.length() && Character.digit(value.charAt(i + 1), 16) >= 0
+          && Character.digit(value.charAt(i + 2), 16) >= 0) {
+        bytes.write(Character.digit(value.charAt(i + 1), 16) << 4 | Character.digit(value.charAt(i + 2), 16));
+        i += 2;
+      } else if (c == '%') {
+        return null;
+      } else {
+        bytes.write(c);
+      }
+    }
+    try {
+      return new String(bytes.toByteArray(), Charset.forName(value.substring(0, charsetEnd)));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Header value offering a download under the given name. Names beyond printable ASCII get an
+   * ASCII fallback plus the RFC 6266 filename* parameter.
+   */
+  public static String attachment(String fileName) {
+    StringBuilder header = new StringBuilder("attachment; filename=\"");
+    boolean ascii = true;
+    for (int i = 0; i < fileName.length(); i++) {
+      char c = fileName.charAt(i);
+      if (c < 0x20 || c > 0x7e) {
+        header.append('_');
+        ascii = false;
+      } else {
+        if (c == '"' || c == '\\') {
+          header.append('\\');
+        }
+        header.append(c);
+      }
+    }
+    header.append('"');
+    if (!ascii) {
+      header.append("; filename*=UTF-8''");
+      for (byte b : fileName.getBytes(StandardCharsets.UTF_8)) {
+        int c = b & 0xff;
+        if (c < 0x80 && (Character.isLetterOrDigit(c) || "!#$&+-.^_`|~".indexOf(c) >= 0)) {
+          header.append((char) c);
+        } else {
+          header.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+              .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+        }
+      }
+    }
+    return header.toString();
+  }
+}
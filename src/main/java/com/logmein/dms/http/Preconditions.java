@@ -0,0 +1,138 @@
+package com.logmein.dms.http;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Evaluation of the conditional request headers (RFC 7232) against a document's validators.
+ */
+public class Preconditions {
+
+  /**
+   * Strong entity tag derived from the document size and modification time.
+   */
+  public static String etag(long size, long lastModified) {
+    return etag(size, lastModified, null, null);
+  }
+
+  /**
+   * Strong entity tag derived from the document size and the CRC32C of its contents. Two versions
+   * of the same size written within one tick of the filesystem clock share their modification
+   * time, but not their contents, so the time is only used while the CRC32C is not known.
+   *
+   * @param crc32c of the contents as uploaded, or null if it is not known
+   * @param encoding content coding the document is sent with, or null for its identity
+   *     representation
+   */
+  public static String etag(long size, long lastModified, Long crc32c, String encoding) {
+    String version = crc32c != null ? String.format("%08x", crc32c) : Long.toHexString(lastModified);
+    return "\"" + Long.toHexString(size) + "-" + version + (encoding == null ? "" : "-" + encoding) + "\"";
+  }
+
+  /**
+   * True when an Accept-Encoding header allows the given content coding, explicitly or by "*",
+   * with a non-zero quality.
+   */
+  public static boolean acceptsEncoding(String acceptEncoding, String encoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String candidate : acceptEncoding.split(",")) {
+      String[] parameters = candidate.split(";");
+      String coding = parameters[0].trim();
+      if (coding.equalsIgnoreCase(encoding) || coding.equals("*")) {
+        for (int i = 1; i < parameters.length; i++) {
+          String parameter = parameters[i].trim();
+          if (parameter.startsWith("q=") && parameter.substring(2).trim().matches("0(\\.0*)?")) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * True when a GET can be answered with 304 Not Modified. If-None-Match takes precedence over
+   * If-Modified-Since as required by the RFC.
+   */
+  public static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return matches(ifNoneMatch, etag, true);
+    }
+    if (request.getHeader("If-Modified-Since") != null) {
+      long since = dateHeader(request, "If-Modified-Since");
+      return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+    return false;
+  }
+
+  /**
+   * True when a PUT or DELETE may modify the current version: If-Match strongly matches one of its
+   * entity tags, or, without If-Match, it was not modified after If-Unmodified-Since.
+   */
+  public static boolean isUpdateAllowed(HttpServletRequest request, long lastModified, String... etags) {
+    String ifMatch = request.getHeader("If-Match");
+    if (ifMatch != null) {
+      for (String etag : etags) {
+        if (matches(ifMatch, etag, false)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (request.getHeader("If-Unmodified-Since") != null) {
+      long since = dateHeader(request, "If-Unmodified-Since");
+      return since < 0 || lastModified / 1000 <= since / 1000;
+    }
+    return true;
+  }
+
+  /**
+   * True when the Range header may be honoured: If-Range is absent or still identifies the current
+   * representation. Dates are compared exactly and entity tags strongly.
+   */
+  public static boolean isRangeApplicable(HttpServletRequest request, String etag, long lastModified) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return matches(ifRange, etag, false);
+    }
+    long date = dateHeader(request, "If-Range");
+    return date >= 0 && date / 1000 == lastModified / 1000;
+  }
+
+  /**
+   * Match a comma separated If-Match / If-None-Match list against the current entity tag.
+   */
+  public static boolean matches(String header, String etag, boolean weak) {
+    for (String candidate : header.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*")) {
+        return true;
+      }
+      if (candidate.startsWith("W/")) {
+        if (!weak) {
+          continue;
+        }
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long dateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1; // Unparseable dates are ignored
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package com.logmein.dms.metadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * SHA-256 checksums of document contents, as lower case hex, and the representations of their
+ * CRC32C
+ */
+public class Checksums {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  public static String sha256(InputStream inputStream) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[64 * 1024];
+    int read;
+    while ((read = inputStream.read(buffer)) != -1) {
+      digest.update(buffer, 0, read);
+    }
+    return toHex(digest.digest());
+  }
+
+  public static String sha256(ByteBuffer contents) {
+    MessageDigest digest = newDigest();
+    digest.update(contents.duplicate());
+    return toHex(digest.digest());
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is required of every JVM", e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+      hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(hex);
+  }
+
+  /**
+   * CRC32C as 8 hex digits
+   */
+  public static String toHex(long crc32c) {
+    return String.format("%08x", crc32c);
+  }
+
+  /**
+   * Value of an RFC 3230 {@code Digest} header carrying a CRC32C: the big-endian bytes in base64
+   */
+  public static String digestHeader(long crc32c) {
+    byte[] bytes = { (byte) (crc32c >>> 24), (byte) (crc32c >>> 16), (byte) (crc32c >>> 8), (byte) crc32c };
+    return "crc32c=" + Base64.getEncoder().encodeToString(bytes);
+  }
+}
@@ -0,0 +1,96 @@
+package com.logmein.dms.metadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+import com.logmein.dms.util.Crc32c;
+
+/**
+ * Checksums of document contents taken as they stream by: the CRC32C, and the SHA-256 as well
+ * when the metadata records it. As a {@link Checksum} its value is the CRC32C, so it can follow an
+ * upload through a {@link CheckedOutputStream} without a second pass over the stored file.
+ */
+public class ContentChecksum implements Checksum {
+
+  private final Checksum crc32c = Crc32c.create();
+  private final MessageDigest sha256;
+
+  public ContentChecksum(boolean sha256) {
+    this.sha256 = sha256 ? Checksums.newDigest() : null;
+  }
+
+  /**
+   * Stream updating this checksum with everything written to {@code out}
+   */
+  public OutputStream wrap(OutputStream out) {
+    return new CheckedOutputStream(out, this);
+  }
+
+  @Override
+  public void update(int b) {
+    crc32c.update(b);
+    if (sha256 != null) {
+      sha256.update((byte) b);
+    }
+  }
+
+  @Override
+  public void update(byte[] b, int off, int len) {
+    crc32c.update(b, off, len);
+    if (sha256 != null) {
+      sha256.update(b, off, len);
+    }
+  }
+
+  /**
+   * Update with the remaining bytes of the buffer, leaving its position unchanged
+   */
+  public void update(ByteBuffer contents) {
+    ByteBuffer source = contents.duplicate();
+    byte[] chunk = new byte[Math.min(source.remaining(), 64 * 1024)];
+    while (source.hasRemaining()) {
+      int length = Math.min(chunk.length, source.remaining());
+      source.get(chunk, 0, length);
+      update(chunk, 0, length);
+    }
+  }
+
+  /**
+   * Update with the rest of the stream
+   */
+  public void update(InputStream inputStream) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    int read;
+    while ((read = inputStream.read(buffer)) != -1) {
+      update(buffer, 0, read);
+    }
+  }
+
+  /**
+   * The CRC32C
+   */
+  @Override
+  public long getValue() {
+    return crc32c.getValue();
+  }
+
+  /**
+   * Hex SHA-256 of the contents, or null if it was not asked for. Completes the digest, so it is
+   * called once, after the last update.
+   */
+  public String getSha256() {
+    return sha256 != null ? Checksums.toHex(sha256.digest()) : null;
+  }
+
+  @Override
+  public void reset() {
+    crc32c.reset();
+    if (sha256 != null) {
+      sha256.reset();
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package com.logmein.dms.metadata;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * What is known about a document beyond its contents. Immutable; an update replaces the whole
+ * value.
+ */
+public class DocumentMetadata {
+
+  private final String documentId;
+  private final String fileName;
+  private final String contentType;
+  private final long size;
+  private final String checksum;
+  private final Long crc32c;
+  private final long created;
+  private final long modified;
+  private final SortedSet<String> tags;
+
+  /**
+   * @param fileName name the document was uploaded with
+   * @param checksum hex SHA-256 of the contents, or null if it is not known
+   * @param crc32c CRC32C of the contents, or null if it is not known
+   * @param created creation time in milliseconds
+   * @param modified time of the last update in milliseconds
+   */
+  public DocumentMetadata(String documentId, String fileName, String contentType, long size, String checksum,
+      Long crc32c, long created, long modified, Set<String> tags) {
+    this.documentId = documentId;
+    this.fileName = fileName;
+    this.contentType = contentType;
+    this.size = size;
+    this.checksum = checksum;
+    this.crc32c = crc32c;
+    this.created = created;
+    this.modified = modified;
+    this.tags = Collections.unmodifiableSortedSet(new TreeSet<>(tags));
+  }
+
+  public String getDocumentId() {
+    return documentId;
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public String getChecksum() {
+    return checksum;
+  }
+
+  public Long getCrc32c() {
+    return crc32c;
+  }
+
+  /**
+   * Same metadata with the given CRC32C
+   */
+  public DocumentMetadata withCrc32c(long crc32c) {
+    return new DocumentMetadata(documentId, fileName, contentType, size, checksum, crc32c, created, modified, tags);
+  }
+
+  public long getCreated() {
+    return created;
+  }
+
+  public long getModified() {
+    return modified;
+  }
+
+  public SortedSet<String> getTags() {
+    return tags;
+  }
+
+  /**
+   * Append this metadata as a JSON object
+   */
+  public void appendJson(StringBuilder json) {
+    json.append("{\"id\":");
+    appendString(json, documentId);
+    json.append(",\"name\":");
+    appendString(json, fileName);
+    json.append(",\"contentType\":");
+    appendString(json, contentType);
+    json.append(",\"size\":").append(size);
+    json.append(",\"checksum\":");
+    appendString(json, checksum);
+    json.append(",\"crc32c\":");
+    appendString(json, crc32c != null ? Checksums.toHex(crc32c) : null);
+    json.append(",\"created\":");
+    appendString(json, Instant.ofEpochMilli(created).toString());
+    json.append(",\"modified\":");
+    appendString(json, Instant.ofEpochMilli(modified).toString());
+    json.append(",\"tags\":[");
+    boolean first = true;
+    for (String tag : tags) {
+      if (!first) {
+        json.append(',');
+      }
+      appendString(json, tag);
+      first = false;
+    }
+    json.append("]}");
+  }
+
+  static void appendString(StringBuilder json, String value) {
+    if (value == null) {
+      json.append("null");
+      return;
+    }
+    json.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    json.append('"');
+  }
+}
@@ -0,0 +1,360 @@
+package com.logmein.dms.metadata;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.logmein.dms.storage.Journal;
+
+/**
+ * Metadata of every document, with sorted secondary indexes by modification time, content type
+ * and tag so that listings are answered from memory, page by page, without touching the file
+ * system.
+ *
+ * Every index is ordered newest first. Changes are serialized; queries run lock-free against the
+ * concurrent indexes and skip index keys an update made stale meanwhile. With a {@link Journal}
+ * the metadata is also persisted next to the documents.
+ */
+public class MetadataStore {
+
+  private static Logger logger = LoggerFactory.getLogger(MetadataStore.class);
+
+  static final String JOURNAL_NAME = "metadata";
+
+  public static final int MAX_PAGE_SIZE = 1000;
+
+  private static final Comparator<Key> NEWEST_FIRST = Comparator.comparingLong((Key key) -> -key.modified)
+      .thenComparing(key -> key.documentId);
+
+  private final Map<String, DocumentMetadata> documents = new ConcurrentHashMap<>();
+  private final NavigableSet<Key> byModified = new ConcurrentSkipListSet<>(NEWEST_FIRST);
+  private final Map<String, NavigableSet<Key>> byContentType = new ConcurrentHashMap<>();
+  private final Map<String, NavigableSet<Key>> byTag = new ConcurrentHashMap<>();
+
+  private final Journal<DocumentMetadata> journal;
+
+  public MetadataStore() {
+    this(null);
+  }
+
+  public MetadataStore(Journal<DocumentMetadata> journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Journal of the metadata kept in a storage directory
+   */
+  public static Journal<DocumentMetadata> journal(Path directory) {
+    return new Journal<>(directory, JOURNAL_NAME, "metadata-2", new Journal.Codec<DocumentMetadata>() {
+      @Override
+      public String key(DocumentMetadata metadata) {
+        return metadata.getDocumentId();
+      }
+
+      @Override
+      public void write(DataOutputStream out, DocumentMetadata metadata) throws IOException {
+        out.writeUTF(metadata.getDocumentId());
+        out.writeUTF(metadata.getFileName());
+        out.writeUTF(metadata.getContentType());
+        out.writeLong(metadata.getSize());
+        out.writeUTF(metadata.getChecksum() == null ? "" : metadata.getChecksum());
+        out.writeLong(metadata.getCrc32c() == null ? -1 : metadata.getCrc32c());
+        out.writeLong(metadata.getCreated());
+        out.writeLong(metadata.getModified());
+        out.writeInt(metadata.getTags().size());
+        for (String tag : metadata.getTags()) {
+          out.writeUTF(tag);
+        }
+      }
+
+      @Override
+      public DocumentMetadata read(DataInputStream in) throws IOException {
+        String documentId = in.readUTF();
+        String fileName = in.readUTF();
+        String contentType = in.readUTF();
+        long size = in.readLong();
+        String checksum = in.readUTF();
+        long crc32c = in.readLong();
+        long created = in.readLong();
+        long modified = in.readLong();
+        Set<String> tags = new HashSet<>();
+        for (int i = in.readInt(); i > 0; i--) {
+          tags.add(in.readUTF());
+        }
+        return new DocumentMetadata(documentId, fileName, contentType, size, checksum.isEmpty() ? null : checksum,
+            crc32c < 0 ? null : crc32c, created, modified, tags);
+      }
+    });
+  }
+
+  /**
+   * Load the journaled metadata, if any, and build the secondary indexes
+   */
+  public synchronized void load() throws IOException {
+    if (journal == null) {
+      return;
+    }
+    Map<String, DocumentMetadata> loaded = new ConcurrentHashMap<>();
+    if (journal.load(loaded)) {
+      for (DocumentMetadata metadata : loaded.values()) {
+        documents.put(metadata.getDocumentId(), metadata);
+        index(metadata);
+      }
+      logger.info("Restored the metadata of {} documents", documents.size());
+    } else {
+      journal.snapshot(documents.values());
+    }
+  }
+
+  public DocumentMetadata get(String documentId) {
+    return documents.get(documentId);
+  }
+
+  public int size() {
+    return documents.size();
+  }
+
+  /**
+   * Ids of the documents with metadata, a live view
+   */
+  public Set<String> documentIds() {
+    return Collections.unmodifiableSet(documents.keySet());
+  }
+
+  public synchronized void put(DocumentMetadata metadata) {
+    DocumentMetadata previous = documents.put(metadata.getDocumentId(), metadata);
+    if (previous != null) {
+      unindex(previous);
+    }
+    index(metadata);
+    if (journal != null) {
+      try {
+        journal.put(metadata);
+        compactIfNeeded();
+      } catch (IOException e) {
+        logger.error("Unable to journal metadata of {} with exception {}", metadata.getDocumentId(), e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Add metadata unless the document already has some, e.g. recorded by a concurrent upload
+   */
+  public synchronized boolean putIfAbsent(DocumentMetadata metadata) {
+    if (documents.containsKey(metadata.getDocumentId())) {
+      return false;
+    }
+    put(metadata);
+    return true;
+  }
+
+  /**
+   * Replace the metadata of a document unless it changed since {@code expected} was read
+   */
+  public synchronized boolean replace(DocumentMetadata expected, DocumentMetadata metadata) {
+    if (documents.get(expected.getDocumentId()) != expected) {
+      return false;
+    }
+    put(metadata);
+    return true;
+  }
+
+  public synchronized DocumentMetadata remove(String documentId) {
+    DocumentMetadata previous = documents.remove(documentId);
+    if (previous != null) {
+      unindex(previous);
+      if (journal != null) {
+        try {
+          journal.remove(documentId);
+          compactIfNeeded();
+        } catch (IOException e) {
+          logger.error("Unable to journal metadata removal of {} with exception {}", documentId, e.getMessage());
+        }
+      }
+    }
+    return previous;
+  }
+
+  /**
+   * Write a snapshot and close the log, keeping the metadata in memory
+   */
+  public synchronized void persist() throws IOException {
+    if (journal != null) {
+      journal.snapshot(documents.values());
+      journal.closeLog();
+    }
+  }
+
+  /**
+   * One page of the documents matching every given filter, newest first.
+   *
+   * @param contentType exact content type, or a "type/*" wildcard, or null for any
+   * @param tag required tag, or null for any
+   * @param from oldest modification time included, in milliseconds
+   * @param to newest modification time included, in milliseconds
+   * @param cursor {@link Page#getNextCursor()} of the previous page, or null for the first page
+   * @param limit maximum number of documents, at most {@link #MAX_PAGE_SIZE}
+   */
+  public Page query(String contentType, String tag, long from, long to, String cursor, int limit) {
+    boolean wildcard = contentType != null && contentType.endsWith("/*");
+    NavigableSet<Key> source;
+    if (tag != null) {
+      source = byTag.get(tag);
+    } else if (contentType != null && !wildcard) {
+      source = byContentType.get(contentType.toLowerCase(Locale.ROOT));
+    } else {
+      source = byModified;
+    }
+    List<DocumentMetadata> page = new ArrayList<>();
+    if (source == null || limit <= 0) {
+      return new Page(page, null);
+    }
+    limit = Math.min(limit, MAX_PAGE_SIZE);
+    Key start = cursor != null ? Key.parse(cursor) : null;
+    if (start == null || NEWEST_FIRST.compare(start, new Key(to, "")) < 0) {
+      start = new Key(to, ""); // Before any document modified at that time
+    }
+    for (Key key : source.tailSet(start, false)) {
+      if (key.modified < from) {
+        break;
+      }
+      DocumentMetadata metadata = documents.get(key.documentId);
+      if (metadata == null || metadata.getModified() != key.modified) {
+        continue; // Changed since the key was read
+      } else if (contentType != null && !matchesContentType(metadata.getContentType(), contentType, wildcard)) {
+        continue;
+      } else if (tag != null && !metadata.getTags().contains(tag)) {
+        continue;
+      }
+      if (page.size() == limit) {
+        return new Page(page, new Key(page.get(limit - 1).getModified(), page.get(limit - 1).getDocumentId()).toString());
+      }
+      page.add(metadata);
+    }
+    return new Page(page, null);
+  }
+
+  private static boolean matchesContentType(String actual, String expected, boolean wildcard) {
+    if (wildcard) {
+      return actual.regionMatches(true, 0, expected, 0, expected.length() - 1);
+    }
+    return actual.equalsIgnoreCase(expected);
+  }
+
+  private void compactIfNeeded() throws IOException {
+    if (journal.needsCompaction()) {
+      journal.snapshot(documents.values());
+    }
+  }
+
+  private void index(DocumentMetadata metadata) {
+    Key key = new Key(metadata.getModified(), metadata.getDocumentId());
+    byModified.add(key);
+    byContentType.computeIfAbsent(metadata.getContentType().toLowerCase(Locale.ROOT), type -> new ConcurrentSkipListSet<>(NEWEST_FIRST))
+        .add(key);
+    for (String tag : metadata.getTags()) {
+      byTag.computeIfAbsent(tag, t -> new ConcurrentSkipListSet<>(NEWEST_FIRST)).add(key);
+    }
+  }
+
+  private void unindex(DocumentMetadata metadata) {
+    Key key = new Key(metadata.getModified(), metadata.getDocumentId());
+    byModified.remove(key);
+    removeKey(byContentType, metadata.getContentType().toLowerCase(Locale.ROOT), key);
+    for (String tag : metadata.getTags()) {
+      removeKey(byTag, tag, key);
+    }
+  }
+
+  private static void removeKey(Map<String, NavigableSet<Key>> index, String value, Key key) {
+    NavigableSet<Key> keys = index.get(value);
+    if (keys != null) {
+      keys.remove(key);
+      if (keys.isEmpty()) {
+        index.remove(value); // Changes are serialized, nobody adds to it meanwhile
+      }
+    }
+  }
+
+  /**
+   * Documents of one page and the cursor of the next one, null on the last page
+   */
+  public static class Page {
+
+    private final List<DocumentMetadata> documents;
+    private final String nextCursor;
+
+    Page(List<DocumentMetadata> documents, String nextCursor) {
+      this.documents = documents;
+      this.nextCursor = nextCursor;
+    }
+
+    public List<DocumentMetadata> getDocuments() {
+      return documents;
+    }
+
+    public String getNextCursor() {
+      return nextCursor;
+    }
+
+    /**
+     * Append this page as a JSON object with the documents and the next cursor
+     */
+    public void appendJson(StringBuilder json) {
+      json.append("{\"documents\":[");
+      for (int i = 0; i < documents.size(); i++) {
+        if (i > 0) {
+          json.append(',');
+        }
+        documents.get(i).appendJson(json);
+      }
+      json.append("],\"next\":");
+      DocumentMetadata.appendString(json, nextCursor);
+      json.append('}');
+    }
+  }
+
+  /**
+   * Position of a document in the secondary indexes
+   */
+  private static class Key {
+
+    final long modified;
+    final String documentId;
+
+    Key(long modified, String documentId) {
+      this.modified = modified;
+      this.documentId = documentId;
+    }
+
+    /**
+     * Parse a cursor; a malformed one starts from the newest document
+     */
+    static Key parse(String cursor) {
+      int separator = cursor.indexOf('.');
+      try {
+        return new Key(Long.parseLong(cursor.substring(0, separator), 36), cursor.substring(separator + 1));
+      } catch (RuntimeException e) {
+        return new Key(Long.MAX_VALUE, "");
+      }
+    }
+
+    @Override
+    public String toString() {
+      return Long.toString(modified, 36) + "." + documentId;
+    }
+  }
+}
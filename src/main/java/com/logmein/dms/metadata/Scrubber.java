@@ -0,0 +1,296 @@
+package com.logmein.dms.metadata;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.logmein.dms.storage.DocumentEntry;
+import com.logmein.dms.storage.DocumentStore;
+import com.logmein.dms.util.Crc32c;
+import com.logmein.dms.util.RateLimiter;
+
+/**
+ * Background check of the stored documents against the CRC32C of their metadata, finding silent
+ * corruption before a client does.
+ *
+ * A run splits the documents over a {@link ForkJoinPool}, every worker reading at the pace of one
+ * shared rate limiter. Archived documents are decoded from their pack without being promoted. A
+ * document without a CRC32C, stored before checksums were kept or found in the directory without
+ * metadata, gets one on its first scrub.
+ */
+public class Scrubber implements ScrubberMXBean {
+
+  private static Logger logger = LoggerFactory.getLogger(Scrubber.class);
+
+  // Documents checked by one fork-join leaf
+  private static final int BATCH_SIZE = 16;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final DocumentStore store;
+  private final MetadataStore metadataStore;
+  private final RateLimiter rateLimiter;
+  private final int parallelism;
+  private volatile ForkJoinPool pool;
+  private volatile boolean cancelled;
+
+  private final Set<String> corrupt = ConcurrentHashMap.newKeySet();
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong scrubbedDocuments = new AtomicLong();
+  private final AtomicLong scrubbedBytes = new AtomicLong();
+  private volatile long lastRunBytesPerSecond;
+
+  /**
+   * @param rateLimiter pace of the reads of all the workers together
+   * @param parallelism number of documents read at the same time
+   */
+  public Scrubber(DocumentStore store, MetadataStore metadataStore, RateLimiter rateLimiter, int parallelism) {
+    this.store = store;
+    this.metadataStore = metadataStore;
+    this.rateLimiter = rateLimiter;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /**
+   * Record a document found corrupt elsewhere, e.g. while it was sent
+   */
+  public void corrupted(String documentId) {
+    corrupt.add(documentId);
+  }
+
+  /**
+   * Forget a replaced or deleted document
+   */
+  public void forget(String documentId) {
+    corrupt.remove(documentId);
+  }
+
+  /**
+   * Check every stored document once. Stops early when the thread is interrupted. Returns the
+   * number of corrupt documents found.
+   */
+  public synchronized int run() {
+    long start = System.nanoTime();
+    List<DocumentEntry> documents;
+    try {
+      documents = new ArrayList<>(store.documents());
+    } catch (IOException e) {
+      logger.error("Unable to list the documents to scrub with exception {}", e.getMessage());
+      return 0;
+    }
+    cancelled = false;
+    ForkJoinTask<Tally> task = pool().submit(new Scrub(documents, 0, documents.size()));
+    Tally tally;
+    try {
+      tally = task.get();
+    } catch (InterruptedException e) {
+      cancelled = true; // Workers stop between documents
+      Thread.currentThread().interrupt();
+      return 0;
+    } catch (ExecutionException e) {
+      logger.error("Scrub failed with exception {}", e.getCause().toString());
+      return 0;
+    }
+    long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+    runs.incrementAndGet();
+    scrubbedDocuments.addAndGet(tally.documents);
+    scrubbedBytes.addAndGet(tally.bytes);
+    lastRunBytesPerSecond = tally.bytes * 1000 / millis;
+    logger.info("Scrubbed {} documents of {} bytes in {} ms ({} bytes/s), {} corrupt", tally.documents, tally.bytes,
+        millis, lastRunBytesPerSecond, tally.corrupt);
+    return tally.corrupt;
+  }
+
+  private ForkJoinPool pool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(parallelism);
+    }
+    return pool;
+  }
+
+  /**
+   * Check one document. Returns false if it is corrupt.
+   */
+  boolean verify(DocumentEntry document) throws IOException, InterruptedException {
+    DocumentMetadata metadata = metadataStore.get(document.getDocumentId());
+    if (metadata == null || metadata.getModified() != document.getLastModified()
+        || metadata.getSize() != document.getSize()) {
+      return true; // Changed or deleted since the run started
+    }
+    long crc32c;
+    boolean decodable = true;
+    try {
+      crc32c = crc32c(document);
+    } catch (ZipException | EOFException e) {
+      crc32c = -1;
+      decodable = false; // Stored gzip stream is damaged
+    } catch (NoSuchFileException e) {
+      return true; // Deleted meanwhile
+    }
+    if (decodable && metadata.getCrc32c() == null) {
+      metadataStore.replace(metadata, metadata.withCrc32c(crc32c));
+      return true;
+    } else if (decodable && crc32c == metadata.getCrc32c()) {
+      corrupt.remove(document.getDocumentId());
+      return true;
+    } else if (metadataStore.get(document.getDocumentId()) != metadata) {
+      return true; // Replaced while it was read
+    }
+    logger.error("Document {} does not match its CRC32C checksum", document.getDocumentId());
+    corrupt.add(document.getDocumentId());
+    return false;
+  }
+
+  /**
+   * CRC32C of the contents as uploaded, decoding them if they are stored compressed
+   */
+  private long crc32c(DocumentEntry document) throws IOException, InterruptedException {
+    Checksum checksum = Crc32c.create();
+    ByteBuffer contents = store.getContents(document);
+    if (contents != null) {
+      ByteBuffer source = contents.duplicate();
+      byte[] buffer = new byte[Math.min(BUFFER_SIZE, source.remaining())];
+      while (source.hasRemaining()) {
+        int length = Math.min(buffer.length, source.remaining());
+        rateLimiter.acquire(length);
+        source.get(buffer, 0, length);
+        checksum.update(buffer, 0, length);
+      }
+      return checksum.getValue();
+    }
+    try (FileChannel channel = FileChannel.open(document.getPath(), StandardOpenOption.READ)) {
+      InputStream in = Channels.newInputStream(channel.position(document.getOffset()));
+      if (document.getEncoding() != null) {
+        in = new GZIPInputStream(in, BUFFER_SIZE);
+      }
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long remaining = document.getSize(); // The end of the document is not the end of a pack
+      int read;
+      while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+        rateLimiter.acquire(read);
+        checksum.update(buffer, 0, read);
+        remaining -= read;
+      }
+    }
+    return checksum.getValue();
+  }
+
+  /**
+   * Stop the workers
+   */
+  public void close() {
+    cancelled = true;
+    ForkJoinPool pool = this.pool;
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+  }
+
+  @Override
+  public long getRunCount() {
+    return runs.get();
+  }
+
+  @Override
+  public long getScrubbedDocumentCount() {
+    return scrubbedDocuments.get();
+  }
+
+  @Override
+  public long getScrubbedBytes() {
+    return scrubbedBytes.get();
+  }
+
+  @Override
+  public long getLastRunBytesPerSecond() {
+    return lastRunBytesPerSecond;
+  }
+
+  @Override
+  public int getCorruptDocumentCount() {
+    return corrupt.size();
+  }
+
+  @Override
+  public List<String> getCorruptDocumentIds() {
+    List<String> documentIds = new ArrayList<>(corrupt);
+    Collections.sort(documentIds);
+    return documentIds;
+  }
+
+  private static class Tally {
+    long documents;
+    long bytes;
+    int corrupt;
+
+    Tally add(Tally other) {
+      documents += other.documents;
+      bytes += other.bytes;
+      corrupt += other.corrupt;
+      return this;
+    }
+  }
+
+  /**
+   * Scrub of a slice of the documents, split in halves down to {@link #BATCH_SIZE} documents
+   */
+  private class Scrub extends RecursiveTask<Tally> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<DocumentEntry> documents;
+    private final int from;
+    private final int to;
+
+    Scrub(List<DocumentEntry> documents, int from, int to) {
+      this.documents = documents;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Tally compute() {
+      if (to - from > BATCH_SIZE) {
+        int middle = (from + to) >>> 1;
+        Scrub first = new Scrub(documents, from, middle);
+        first.fork();
+        return new Scrub(documents, middle, to).compute().add(first.join());
+      }
+      Tally tally = new Tally();
+      for (int i = from; i < to && !cancelled; i++) {
+        DocumentEntry document = documents.get(i);
+        try {
+          if (!verify(document)) {
+            tally.corrupt++;
+          }
+          tally.documents++;
+          tally.bytes += document.getSize();
+        } catch (InterruptedException e) {
+          cancelled = true;
+        } catch (IOException e) {
+          logger.warn("Unable to scrub document {} with exception {}", document.getDocumentId(), e.getMessage());
+        }
+      }
+      return tally;
+    }
+  }
+}
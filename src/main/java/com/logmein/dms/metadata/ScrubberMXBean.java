@@ -0,0 +1,24 @@
+package com.logmein.dms.metadata;
+
+import java.util.List;
+
+/**
+ * JMX view of the {@link Scrubber} counters.
+ */
+public interface ScrubberMXBean {
+
+  long getRunCount();
+
+  long getScrubbedDocumentCount();
+
+  long getScrubbedBytes();
+
+  long getLastRunBytesPerSecond();
+
+  /**
+   * Documents found corrupt, by a scrub or a read, and not replaced or deleted since
+   */
+  int getCorruptDocumentCount();
+
+  List<String> getCorruptDocumentIds();
+}
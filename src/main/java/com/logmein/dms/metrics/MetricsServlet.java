@@ -0,0 +1,34 @@
+package com.logmein.dms.metrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the {@link ServletMetrics} published in the servlet context by the document servlet as
+ * plain text.
+ */
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 6521404871927325641L;
+
+  public static final String METRICS_ATTRIBUTE = ServletMetrics.class.getName();
+
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    ServletMetrics metrics = (ServletMetrics) getServletContext().getAttribute(METRICS_ATTRIBUTE);
+    if (metrics == null) {
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+    response.setContentType("text/plain; version=0.0.4");
+    response.setCharacterEncoding("utf-8");
+    PrintWriter writer = response.getWriter();
+    metrics.writeText(writer);
+    writer.flush();
+  }
+}
@@ -0,0 +1,69 @@
+package com.logmein.dms.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and transferred bytes of one operation
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+
+  public void record(long nanos) {
+    latency.record(nanos / 1000);
+  }
+
+  public void addBytesIn(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  public void addBytesOut(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  public LatencyHistogram getLatency() {
+    return latency;
+  }
+
+  @Override
+  public long getCount() {
+    return latency.getCount();
+  }
+
+  @Override
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  @Override
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  @Override
+  public double getMeanMicros() {
+    return latency.getMean();
+  }
+
+  @Override
+  public long get50thPercentileMicros() {
+    return latency.getPercentile(50);
+  }
+
+  @Override
+  public long get99thPercentileMicros() {
+    return latency.getPercentile(99);
+  }
+
+  @Override
+  public long get999thPercentileMicros() {
+    return latency.getPercentile(99.9);
+  }
+
+  @Override
+  public long getMaxMicros() {
+    return latency.getMax();
+  }
+}
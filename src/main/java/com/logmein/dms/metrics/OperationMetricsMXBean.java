@@ -0,0 +1,23 @@
+package com.logmein.dms.metrics;
+
+/**
+ * JMX view of the {@link OperationMetrics} of one HTTP method. Latencies are in microseconds.
+ */
+public interface OperationMetricsMXBean {
+
+  long getCount();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  double getMeanMicros();
+
+  long get50thPercentileMicros();
+
+  long get99thPercentileMicros();
+
+  long get999thPercentileMicros();
+
+  long getMaxMicros();
+}
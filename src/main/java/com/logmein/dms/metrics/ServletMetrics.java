@@ -0,0 +1,155 @@
+package com.logmein.dms.metrics;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request metrics of the document servlet: one {@link OperationMetrics} per HTTP method, requests
+ * in flight, document lookup latency and error responses by status. Recording only touches
+ * atomics and adders. Lookups take well under a microsecond, so their latency is kept in
+ * nanoseconds.
+ */
+public class ServletMetrics implements ServletMetricsMXBean {
+
+  public static final String[] OPERATIONS = { "GET", "POST", "PUT", "DELETE" };
+
+  private static final int MAX_STATUS = 600;
+
+  private final Map<String, OperationMetrics> operations = new LinkedHashMap<>();
+  private final LatencyHistogram lookupNanos = new LatencyHistogram();
+  private final LongAdder inFlight = new LongAdder();
+  private final AtomicLongArray statusCounts = new AtomicLongArray(MAX_STATUS);
+
+  public ServletMetrics() {
+    for (String operation : OPERATIONS) {
+      operations.put(operation, new OperationMetrics());
+    }
+  }
+
+  /**
+   * Metrics of an HTTP method, or null for methods that are not tracked
+   */
+  public OperationMetrics operation(String method) {
+    return operations.get(method);
+  }
+
+  public Map<String, OperationMetrics> getOperations() {
+    return operations;
+  }
+
+  public LatencyHistogram getLookupNanos() {
+    return lookupNanos;
+  }
+
+  public void requestStarted() {
+    inFlight.increment();
+  }
+
+  public void requestCompleted(String method, long nanos, int status) {
+    inFlight.decrement();
+    OperationMetrics operation = operations.get(method);
+    if (operation != null) {
+      operation.record(nanos);
+    }
+    if (status >= 400 && status < MAX_STATUS) {
+      statusCounts.incrementAndGet(status);
+    }
+  }
+
+  public void lookupCompleted(long nanos) {
+    lookupNanos.record(nanos);
+  }
+
+  @Override
+  public long getInFlightRequests() {
+    return inFlight.sum();
+  }
+
+  @Override
+  public Map<String, Long> getErrorCounts() {
+    Map<String, Long> errors = new TreeMap<>();
+    for (int status = 400; status < MAX_STATUS; status++) {
+      long count = statusCounts.get(status);
+      if (count > 0) {
+        errors.put(Integer.toString(status), count);
+      }
+    }
+    return errors;
+  }
+
+  @Override
+  public double getMeanLookupNanos() {
+    return lookupNanos.getMean();
+  }
+
+  @Override
+  public long get99thPercentileLookupNanos() {
+    return lookupNanos.getPercentile(99);
+  }
+
+  /**
+   * Write every metric in the Prometheus text exposition format
+   */
+  public void writeText(PrintWriter out) {
+    out.println("# TYPE dms_requests_in_flight gauge");
+    out.println("dms_requests_in_flight " + getInFlightRequests());
+    out.println("# TYPE dms_request_latency_microseconds summary");
+    for (Map.Entry<String, OperationMetrics> entry : operations.entrySet()) {
+      writeSummary(out, "dms_request_latency_microseconds", method(entry.getKey()), entry.getValue().getLatency());
+    }
+    out.println("# TYPE dms_request_latency_max_microseconds gauge");
+    for (Map.Entry<String, OperationMetrics> entry : operations.entrySet()) {
+      out.println("dms_request_latency_max_microseconds{" + method(entry.getKey()) + "} "
+          + entry.getValue().getMaxMicros());
+    }
+    out.println("# TYPE dms_request_latency_mean_microseconds gauge");
+    for (Map.Entry<String, OperationMetrics> entry : operations.entrySet()) {
+      out.println("dms_request_latency_mean_microseconds{" + method(entry.getKey()) + "} "
+          + format(entry.getValue().getMeanMicros()));
+    }
+    out.println("# TYPE dms_request_bytes_in_total counter");
+    for (Map.Entry<String, OperationMetrics> entry : operations.entrySet()) {
+      out.println("dms_request_bytes_in_total{" + method(entry.getKey()) + "} " + entry.getValue().getBytesIn());
+    }
+    out.println("# TYPE dms_response_bytes_out_total counter");
+    for (Map.Entry<String, OperationMetrics> entry : operations.entrySet()) {
+      out.println("dms_response_bytes_out_total{" + method(entry.getKey()) + "} " + entry.getValue().getBytesOut());
+    }
+    out.println("# TYPE dms_lookup_latency_nanoseconds summary");
+    writeSummary(out, "dms_lookup_latency_nanoseconds", null, lookupNanos);
+    out.println("# TYPE dms_lookup_latency_max_nanoseconds gauge");
+    out.println("dms_lookup_latency_max_nanoseconds " + lookupNanos.getMax());
+    out.println("# TYPE dms_lookup_latency_mean_nanoseconds gauge");
+    out.println("dms_lookup_latency_mean_nanoseconds " + format(lookupNanos.getMean()));
+    out.println("# TYPE dms_error_responses_total counter");
+    for (Map.Entry<String, Long> entry : getErrorCounts().entrySet()) {
+      out.println("dms_error_responses_total{status=\"" + entry.getKey() + "\"} " + entry.getValue());
+    }
+  }
+
+  private static String method(String method) {
+    return "method=\"" + method + "\"";
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.1f", value);
+  }
+
+  /**
+   * Quantiles and count of a summary. Its max and mean are written as separate gauges, as a
+   * summary may only hold quantiles, _sum and _count.
+   */
+  private static void writeSummary(PrintWriter out, String name, String labels, LatencyHistogram latency) {
+    String prefix = labels == null ? "" : labels + ",";
+    out.println(name + "{" + prefix + "quantile=\"0.5\"} " + latency.getPercentile(50));
+    out.println(name + "{" + prefix + "quantile=\"0.99\"} " + latency.getPercentile(99));
+    out.println(name + "{" + prefix + "quantile=\"0.999\"} " + latency.getPercentile(99.9));
+    String suffix = labels == null ? "" : "{" + labels + "}";
+    out.println(name + "_count" + suffix + " " + latency.getCount());
+  }
+}
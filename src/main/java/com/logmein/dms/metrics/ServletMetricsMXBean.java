@@ -0,0 +1,21 @@
+package com.logmein.dms.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the request level {@link ServletMetrics}. Per method figures are registered as
+ * separate {@link OperationMetricsMXBean}s. Lookup latencies are in nanoseconds.
+ */
+public interface ServletMetricsMXBean {
+
+  long getInFlightRequests();
+
+  /**
+   * Responses with a 4xx or 5xx status, by status code
+   */
+  Map<String, Long> getErrorCounts();
+
+  double getMeanLookupNanos();
+
+  long get99thPercentileLookupNanos();
+}
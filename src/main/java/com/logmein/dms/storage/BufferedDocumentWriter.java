@@ -0,0 +1,145 @@
+package com.logmein.dms.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.logmein.dms.exception.ExceptionConstants;
+import com.logmein.dms.exception.PayloadTooLargeException;
+
+/**
+ * Writer for stores that do not keep one file per document. Streamed contents are buffered in
+ * memory, up to the largest document the store takes; a staging file, when asked for, is created
+ * in the store's staging directory and mapped at commit.
+ */
+abstract class BufferedDocumentWriter implements DocumentWriter {
+
+  private static Logger logger = LoggerFactory.getLogger(BufferedDocumentWriter.class);
+
+  private final String documentId;
+  private final String extension;
+  private final Path stagingDirectory;
+  private final long maxSize;
+
+  private ContentsStream outputStream;
+  private Path stagingFile;
+  private long lastModified;
+
+  /**
+   * @param maxSize largest contents the store takes; writing more through the output stream fails
+   *        with a {@link PayloadTooLargeException}
+   */
+  BufferedDocumentWriter(String documentId, String extension, Path stagingDirectory, long maxSize) {
+    this.documentId = documentId;
+    this.extension = extension;
+    this.stagingDirectory = stagingDirectory;
+    this.maxSize = maxSize;
+  }
+
+  @Override
+  public String getDocumentId() {
+    return documentId;
+  }
+
+  String getExtension() {
+    return extension;
+  }
+
+  @Override
+  public void setLastModified(long lastModified) {
+    this.lastModified = lastModified;
+  }
+
+  /**
+   * Modification time of the new version
+   */
+  long lastModified() {
+    return lastModified > 0 ? lastModified : System.currentTimeMillis();
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    if (outputStream == null) {
+      outputStream = new ContentsStream(maxSize);
+    }
+    return outputStream;
+  }
+
+  @Override
+  public Path getStagingFile() throws IOException {
+    if (stagingFile == null) {
+      Files.createDirectories(stagingDirectory);
+      stagingFile = stagingDirectory.resolve("." + documentId + "-" + System.nanoTime() + extension);
+    }
+    return stagingFile;
+  }
+
+  @Override
+  public DocumentEntry commit() throws IOException {
+    try {
+      if (stagingFile != null) {
+        try (FileChannel channel = FileChannel.open(stagingFile, StandardOpenOption.READ)) {
+          return commit(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+      }
+      return commit(outputStream == null ? ByteBuffer.allocate(0) : outputStream.contents());
+    } finally {
+      abort();
+    }
+  }
+
+  /**
+   * Store the contents, which are only valid for the duration of the call.
+   */
+  abstract DocumentEntry commit(ByteBuffer contents) throws IOException;
+
+  @Override
+  public void abort() {
+    outputStream = null;
+    if (stagingFile != null) {
+      try {
+        Files.deleteIfExists(stagingFile);
+      } catch (IOException e) {
+        logger.error("Unable to delete {} with exception {}", stagingFile, e.getMessage());
+      }
+    }
+  }
+
+  private static class ContentsStream extends ByteArrayOutputStream {
+
+    private final long maxSize;
+
+    ContentsStream(long maxSize) {
+      super((int) Math.max(0, Math.min(8192, maxSize)));
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      checkSize(1);
+      super.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      checkSize(len);
+      super.write(b, off, len);
+    }
+
+    private void checkSize(int len) {
+      if (count + (long) len > maxSize) {
+        throw new PayloadTooLargeException(ExceptionConstants.PAYLOAD_TOO_LARGE);
+      }
+    }
+
+    ByteBuffer contents() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package com.logmein.dms.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Which documents a {@link FileSystemDocumentStore} keeps gzip compressed. Only configured file
+ * types are compressed, and only when it saves enough space to be worth decoding on reads.
+ *
+ * A compressed document is stored as {@code <documentId>.gz<extension>}. Its size as uploaded is
+ * the gzip trailer's ISIZE, which is why documents of 4 GiB and more are kept as they are.
+ */
+public class Compression {
+
+  public static final String GZIP = "gzip";
+
+  /** Marker between the Id and the extension in the name of a compressed file */
+  static final String GZIP_MARKER = ".gz";
+
+  public static final String DEFAULT_TYPES = "txt,log,csv,tsv,json,xml,html,htm,css,js,md,svg,yaml,yml";
+
+  private static final long MAX_SIZE = 0xFFFFFFFFL;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Set<String> extensions = new HashSet<>();
+  private final long minSize;
+  private final int level;
+  private final double maxRatio;
+
+  /**
+   * @param types comma separated extensions without the dot, e.g. "txt,csv"
+   * @param minSize smaller documents are not worth compressing
+   * @param level gzip level from 1 (fastest) to 9 (smallest)
+   * @param maxRatio keep the compressed file only if it is at most this fraction of the original
+   */
+  public Compression(String types, long minSize, int level, double maxRatio) {
+    for (String type : types.split(",")) {
+      if (!type.trim().isEmpty()) {
+        extensions.add("." + type.trim().toLowerCase(Locale.ROOT));
+      }
+    }
+    this.minSize = minSize;
+    this.level = level;
+    this.maxRatio = maxRatio;
+  }
+
+  public boolean isCompressible(String extension, long size) {
+    return size >= minSize && size < MAX_SIZE && extensions.contains(extension.toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Compress source into target. Returns false, leaving no target behind, when the result would
+   * not be small enough to keep.
+   */
+  boolean compress(Path source, Path target) throws IOException {
+    long size = Files.size(source);
+    try (InputStream in = Files.newInputStream(source);
+        OutputStream out = new LeveledGzipOutputStream(
+            Files.newOutputStream(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), level)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    }
+    if (Files.size(target) > size * maxRatio) {
+      Files.delete(target);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Stream of the decoded contents of a gzip file
+   */
+  public static InputStream decompress(Path file) throws IOException {
+    return decompress(Files.newInputStream(file));
+  }
+
+  /**
+   * Stream of the decoded contents of a gzip stream
+   */
+  public static InputStream decompress(InputStream in) throws IOException {
+    return new GZIPInputStream(in, BUFFER_SIZE);
+  }
+
+  /**
+   * Size as uploaded of a gzip file, read from its trailer
+   */
+  static long uncompressedSize(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      channel.read(trailer, channel.size() - 4);
+      return trailer.getInt(0) & MAX_SIZE;
+    }
+  }
+
+  private static class LeveledGzipOutputStream extends GZIPOutputStream {
+
+    LeveledGzipOutputStream(OutputStream out, int level) throws IOException {
+      super(out, BUFFER_SIZE);
+      def.setLevel(level);
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package com.logmein.dms.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link FileSystemDocumentStore} that keeps identical contents once. Each distinct content is a
+ * blob named by its SHA-256 below {@code .blobs}, and documents are hard links to their blob, so
+ * downloads still read (and sendfile) a plain file. The link count of a blob is its reference
+ * count: deleting or replacing the last document of a blob removes it.
+ *
+ * The file modification time is shared by every document of a blob and is left alone; the time a
+ * document was modified is kept by its index entry. Without a persistent index, a restart falls
+ * back to the time the blob was first stored.
+ *
+ * Requires a POSIX file system with hard links.
+ */
+public class DeduplicatingDocumentStore extends FileSystemDocumentStore {
+
+  private static Logger logger = LoggerFactory.getLogger(DeduplicatingDocumentStore.class);
+
+  static final String BLOB_DIRECTORY = ".blobs";
+
+  private static final int LOCK_STRIPES = 64;
+
+  private final Path blobDirectory;
+
+  /** Digests of files to publish, taken as they were written or when prepared, by file */
+  private final Map<Path, MessageDigest> pendingDigests = new ConcurrentHashMap<>();
+
+  /** Blob of every file key (device and inode), to find the blob a document links to */
+  private final Map<Object, Path> blobsByFileKey = new ConcurrentHashMap<>();
+
+  private final Object[] locks = new Object[LOCK_STRIPES];
+
+  private volatile boolean blobsLoaded;
+
+  public DeduplicatingDocumentStore(Path directory, StorageLayout layout) {
+    this(directory, layout, null);
+  }
+
+  public DeduplicatingDocumentStore(Path directory, StorageLayout layout, Compression compression) {
+    super(directory, layout, compression);
+    this.blobDirectory = directory.resolve(BLOB_DIRECTORY);
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * Load the blobs and drop those no document links to any more, e.g. after a crash between
+   * storing a blob and linking it
+   */
+  @Override
+  public void open() throws IOException {
+    super.open();
+    if (!blobsLoaded) {
+      loadBlobs();
+    }
+  }
+
+  private synchronized void loadBlobs() throws IOException {
+    if (blobsLoaded) {
+      return;
+    }
+    Path blobs = Paths.get(blobDirectory.toUri());
+    Files.createDirectories(blobs);
+    try {
+      Files.getAttribute(blobs, "unix:nlink");
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      throw new IOException("Deduplicated storage requires a POSIX file system", e);
+    }
+    Files.walkFileTree(blobs, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (file.getFileName().toString().startsWith(".")) {
+          Files.deleteIfExists(file); // Unfinished blob
+        } else if (linkCount(file) <= 1) {
+          Files.deleteIfExists(file);
+        } else {
+          blobsByFileKey.put(attrs.fileKey(), file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    blobsLoaded = true;
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    blobsLoaded = false;
+    blobsByFileKey.clear();
+  }
+
+  @Override
+  public void destroy() throws IOException {
+    super.destroy();
+    blobsLoaded = false;
+    blobsByFileKey.clear();
+  }
+
+  /**
+   * Number of distinct contents stored
+   */
+  public int blobCount() {
+    return blobsByFileKey.size();
+  }
+
+  @Override
+  protected OutputStream newStagingStream(Path stagingFile) throws IOException {
+    MessageDigest digest = newDigest();
+    pendingDigests.put(stagingFile, digest);
+    return new DigestOutputStream(super.newStagingStream(stagingFile), digest);
+  }
+
+  /**
+   * Hash the files not written through their output stream, e.g. compressed copies, while the
+   * document is not locked yet
+   */
+  @Override
+  protected void prepare(Path file) throws IOException {
+    if (!pendingDigests.containsKey(file)) {
+      pendingDigests.put(file, digest(file));
+    }
+  }
+
+  @Override
+  protected long publish(Path stagingFile, Path target) throws IOException {
+    long modified = Files.getLastModifiedTime(stagingFile).toMillis();
+    MessageDigest digest = pendingDigests.remove(stagingFile);
+    String hash = toHex(digest != null ? digest.digest() : digest(stagingFile).digest());
+    Path blob = blobDirectory.resolve(hash.substring(0, 2)).resolve(hash);
+    Path previousBlob = blobOf(target);
+
+    synchronized (lockFor(blob)) {
+      if (Files.exists(blob)) {
+        Files.delete(stagingFile);
+      } else {
+        Files.createDirectories(blob.getParent());
+        Files.move(stagingFile, blob, StandardCopyOption.ATOMIC_MOVE);
+        blobsByFileKey.put(Files.readAttributes(blob, BasicFileAttributes.class).fileKey(), blob);
+      }
+      // Link next to the target first so that replacing a previous version stays atomic
+      Path link = target.resolveSibling("." + target.getFileName() + "-" + System.nanoTime());
+      Files.createLink(link, blob);
+      Files.move(link, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    if (previousBlob != null && !previousBlob.equals(blob)) {
+      release(previousBlob);
+    }
+    return modified;
+  }
+
+  @Override
+  protected boolean ownsModificationTime() {
+    return false;
+  }
+
+  @Override
+  protected void unlink(Path file) throws IOException {
+    Path blob = blobOf(file);
+    Files.deleteIfExists(file);
+    if (blob != null) {
+      release(blob);
+    }
+  }
+
+  @Override
+  protected void discarded(Path stagingFile) {
+    pendingDigests.remove(stagingFile);
+  }
+
+  /**
+   * Remove a blob once no document links to it
+   */
+  private void release(Path blob) throws IOException {
+    synchronized (lockFor(blob)) {
+      if (Files.exists(blob) && linkCount(blob) <= 1) {
+        Object fileKey = Files.readAttributes(blob, BasicFileAttributes.class).fileKey();
+        Files.delete(blob);
+        blobsByFileKey.remove(fileKey);
+        logger.debug("Removed unreferenced blob {}", blob.getFileName());
+      }
+    }
+  }
+
+  private Path blobOf(Path document) throws IOException {
+    if (!Files.exists(document)) {
+      return null;
+    }
+    return blobsByFileKey.get(Files.readAttributes(document, BasicFileAttributes.class).fileKey());
+  }
+
+  private Object lockFor(Path blob) {
+    return locks[(blob.getFileName().hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+  }
+
+  private static int linkCount(Path file) throws IOException {
+    return (Integer) Files.getAttribute(file, "unix:nlink");
+  }
+
+  private static MessageDigest digest(Path file) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[64 * 1024];
+    try (InputStream in = Files.newInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    return digest;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // Every JRE ships SHA-256
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+      hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+    }
+    return new String(hex);
+  }
+}
@@ -0,0 +1,92 @@
+package com.logmein.dms.storage;
+
+import java.nio.file.Path;
+
+/**
+ * Immutable view of a stored document as held by the {@link DocumentIndex}.
+ */
+public class DocumentEntry {
+
+  private final String documentId;
+  private final Path path;
+  private final String extension;
+  private final long size;
+  private final long lastModified;
+  private final long offset;
+  private final String encoding;
+  private final long storedSize;
+
+  public DocumentEntry(String documentId, Path path, String extension, long size, long lastModified) {
+    this(documentId, path, extension, size, lastModified, 0);
+  }
+
+  public DocumentEntry(String documentId, Path path, String extension, long size, long lastModified, long offset) {
+    this(documentId, path, extension, size, lastModified, offset, null, size);
+  }
+
+  public DocumentEntry(String documentId, Path path, String extension, long size, long lastModified, long offset,
+      String encoding, long storedSize) {
+    this.documentId = documentId;
+    this.path = path;
+    this.extension = extension;
+    this.size = size;
+    this.lastModified = lastModified;
+    this.offset = offset;
+    this.encoding = encoding;
+    this.storedSize = storedSize;
+  }
+
+  public String getDocumentId() {
+    return documentId;
+  }
+
+  /**
+   * File holding the contents, or null when the store keeps them only in memory
+   */
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * Position of the first content byte within {@link #getPath()}
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * File extension including the leading dot, e.g. ".pdf"
+   */
+  public String getExtension() {
+    return extension;
+  }
+
+  /**
+   * Size of the document as uploaded
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Content coding of the stored bytes, e.g. "gzip", or null when they are stored as uploaded
+   */
+  public String getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Number of stored bytes, which differs from {@link #getSize()} for an encoded document
+   */
+  public long getStoredSize() {
+    return storedSize;
+  }
+
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  public String getFileName() {
+    return documentId + extension;
+  }
+}
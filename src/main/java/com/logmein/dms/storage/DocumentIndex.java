@@ -0,0 +1,345 @@
+package com.logmein.dms.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory documentId to {@link DocumentEntry} index of the storage directory.
+ * 
+ * The directory is scanned once by {@link #load(Path)}; afterwards the index is kept current by the
+ * servlet on every create, update and delete so lookups never touch the file system.
+ *
+ * With an {@link Journal} the index is also persisted, and loaded from the journal instead of
+ * scanning the directory when possible. Changes are then serialized so that the journal records
+ * them in the order they are applied; lookups stay lock-free.
+ */
+public class DocumentIndex {
+
+  private static Logger logger = LoggerFactory.getLogger(DocumentIndex.class);
+
+  static final String JOURNAL_NAME = "documents";
+
+  private final Map<String, DocumentEntry> entries = new ConcurrentHashMap<>();
+
+  private final Journal<DocumentEntry> journal;
+
+  private volatile boolean loaded;
+
+  public DocumentIndex() {
+    this(null);
+  }
+
+  DocumentIndex(Journal<DocumentEntry> journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Journal of the index of a storage directory; entries are recorded relative to it
+   */
+  static Journal<DocumentEntry> journal(Path directory, StorageLayout layout) {
+    Path root = directory.toAbsolutePath();
+    return new Journal<>(root, JOURNAL_NAME, layout.name(), new Journal.Codec<DocumentEntry>() {
+      @Override
+      public String key(DocumentEntry entry) {
+        return entry.getDocumentId();
+      }
+
+      @Override
+      public void write(DataOutputStream out, DocumentEntry entry) throws IOException {
+        out.writeUTF(entry.getDocumentId());
+        out.writeUTF(root.relativize(entry.getPath().toAbsolutePath()).toString());
+        out.writeUTF(entry.getExtension());
+        out.writeLong(entry.getSize());
+        out.writeLong(entry.getLastModified());
+        out.writeLong(entry.getOffset());
+        out.writeUTF(entry.getEncoding() == null ? "" : entry.getEncoding());
+        out.writeLong(entry.getStoredSize());
+      }
+
+      @Override
+      public DocumentEntry read(DataInputStream in) throws IOException {
+        String documentId = in.readUTF();
+        Path path = root.resolve(in.readUTF());
+        String extension = in.readUTF();
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        long offset = in.readLong();
+        String encoding = in.readUTF();
+        long storedSize = in.readLong();
+        return new DocumentEntry(documentId, path, extension, size, lastModified, offset,
+            encoding.isEmpty() ? null : encoding, storedSize);
+      }
+    });
+  }
+
+  /**
+   * Scan the storage directory once and register every document found in it. Does nothing if the
+   * index is already loaded.
+   */
+  public synchronized void load(Path directory) throws IOException {
+    if (loaded) {
+      return;
+    }
+    if (journal != null) {
+      long start = System.currentTimeMillis();
+      if (journal.load(entries)) {
+        logger.info("Restored {} index entries of {} in {} ms", entries.size(), directory,
+            System.currentTimeMillis() - start);
+        loaded = true;
+        return;
+      }
+    }
+    scan(directory, entries);
+    if (journal != null) {
+      journal.snapshot(entries.values());
+    }
+    loaded = true;
+  }
+
+  /**
+   * Register every document of the directory into the given map
+   */
+  private static void scan(Path directory, Map<String, DocumentEntry> entries) throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        // Hidden directories hold store internals such as deduplicated blobs
+        return dir.equals(directory) || !dir.getFileName().toString().startsWith(".")
+            ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        DocumentEntry entry = toEntry(file, attrs);
+        if (entry != null) {
+          // Two files of one document are only left by an interrupted replace; the newer one wins
+          entries.merge(entry.getDocumentId(), entry,
+              (current, loaded) -> loaded.getLastModified() > current.getLastModified() ? loaded : current);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Compare the index with the directory and repair the differences, e.g. changes a crash kept
+   * out of the journal or files changed behind the store's back. Meant to run in the background
+   * while the index serves requests: every repair only applies if the entry did not change since
+   * the scan. Returns the number of repaired entries.
+   */
+  public int verify(Path directory) throws IOException {
+    return verify(directory, true);
+  }
+
+  /**
+   * @param compareModified whether a file modified at another time than its entry is a difference;
+   *        not so when files are shared by documents modified at different times
+   */
+  public int verify(Path directory, boolean compareModified) throws IOException {
+    Map<String, DocumentEntry> scanned = new HashMap<>();
+    scan(directory, scanned);
+    int repaired = 0;
+    for (DocumentEntry entry : entries.values()) {
+      DocumentEntry found = scanned.remove(entry.getDocumentId());
+      if (found == null) {
+        if (!Files.exists(entry.getPath()) && change(entry.getDocumentId(), entry, null)) {
+          repaired++;
+        }
+      } else if (!samePath(found, entry) || found.getSize() != entry.getSize()
+          || compareModified && found.getLastModified() != entry.getLastModified()) {
+        // Re-read in case the document changed since the scan
+        DocumentEntry current = current(found.getPath());
+        if (current != null && change(entry.getDocumentId(), entry, current)) {
+          repaired++;
+        }
+      }
+    }
+    for (DocumentEntry found : scanned.values()) {
+      DocumentEntry current = current(found.getPath());
+      if (current != null && change(found.getDocumentId(), null, current)) {
+        // A delete may have removed the file meanwhile; its index removal may already be done too
+        if (!Files.exists(current.getPath())) {
+          change(found.getDocumentId(), current, null);
+        } else {
+          repaired++;
+        }
+      }
+    }
+    if (repaired > 0) {
+      logger.warn("Repaired {} index entries of {}", repaired, directory);
+    }
+    return repaired;
+  }
+
+  private static boolean samePath(DocumentEntry a, DocumentEntry b) {
+    return a.getPath().toAbsolutePath().equals(b.getPath().toAbsolutePath());
+  }
+
+  private static DocumentEntry current(Path file) throws IOException {
+    try {
+      return toEntry(file, Files.readAttributes(file, BasicFileAttributes.class));
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Replace the entry of a document if it is still {@code expected}; null stands for no entry.
+   */
+  private boolean change(String documentId, DocumentEntry expected, DocumentEntry replacement) {
+    synchronized (entries) {
+      boolean changed;
+      if (expected == null) {
+        changed = entries.putIfAbsent(documentId, replacement) == null;
+      } else if (replacement == null) {
+        changed = entries.remove(documentId, expected);
+      } else {
+        changed = entries.replace(documentId, expected, replacement);
+      }
+      if (changed && journal != null) {
+        try {
+          if (replacement == null) {
+            journal.remove(documentId);
+          } else {
+            journal.put(replacement);
+          }
+        } catch (IOException e) {
+          logger.error("Unable to journal repair of {} with exception {}", documentId, e.getMessage());
+        }
+      }
+      return changed;
+    }
+  }
+
+  /**
+   * Persist a snapshot of the current entries, so the next load has no log to replay
+   */
+  public void persist() throws IOException {
+    if (journal != null && loaded) {
+      synchronized (entries) {
+        journal.snapshot(entries.values());
+        journal.closeLog();
+      }
+    }
+  }
+
+  /**
+   * Drop every entry and mark the index for reload, e.g. when the storage directory changes.
+   */
+  public synchronized void invalidate() {
+    loaded = false;
+    entries.clear();
+    if (journal != null) {
+      try {
+        journal.closeLog();
+      } catch (IOException e) {
+        logger.error("Unable to close the index log with exception {}", e.getMessage());
+      }
+    }
+  }
+
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  public DocumentEntry get(String documentId) {
+    return entries.get(documentId);
+  }
+
+  public void put(DocumentEntry entry) {
+    if (journal == null) {
+      entries.put(entry.getDocumentId(), entry);
+      return;
+    }
+    synchronized (entries) {
+      entries.put(entry.getDocumentId(), entry);
+      try {
+        journal.put(entry);
+      } catch (IOException e) {
+        logger.error("Unable to journal document {} with exception {}", entry.getDocumentId(), e.getMessage());
+      }
+      compactIfNeeded();
+    }
+  }
+
+  /**
+   * Remove the entry of a document if it is still {@code expected}
+   */
+  boolean remove(String documentId, DocumentEntry expected) {
+    return change(documentId, expected, null);
+  }
+
+  public DocumentEntry remove(String documentId) {
+    if (journal == null) {
+      return entries.remove(documentId);
+    }
+    synchronized (entries) {
+      DocumentEntry removed = entries.remove(documentId);
+      if (removed != null) {
+        try {
+          journal.remove(documentId);
+        } catch (IOException e) {
+          logger.error("Unable to journal removal of {} with exception {}", documentId, e.getMessage());
+        }
+        compactIfNeeded();
+      }
+      return removed;
+    }
+  }
+
+  private void compactIfNeeded() {
+    if (journal.needsCompaction()) {
+      try {
+        journal.snapshot(entries.values());
+      } catch (IOException e) {
+        logger.error("Unable to write the index snapshot with exception {}", e.getMessage());
+      }
+    }
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public Collection<DocumentEntry> entries() {
+    return Collections.unmodifiableCollection(entries.values());
+  }
+
+  /**
+   * Build an entry from a stored file named {@code <documentId><extension>}, or
+   * {@code <documentId>.gz<extension>} when it is compressed. Files without an extension are not
+   * documents, and hidden files are in-flight uploads; both are ignored.
+   */
+  static DocumentEntry toEntry(Path file, BasicFileAttributes attrs) throws IOException {
+    if (!attrs.isRegularFile()) {
+      return null;
+    }
+    String fileName = file.getFileName().toString();
+    int dot = fileName.lastIndexOf('.');
+    if (dot <= 0 || fileName.startsWith(".")) {
+      return null;
+    }
+    String documentId = fileName.substring(0, dot);
+    if (documentId.endsWith(Compression.GZIP_MARKER)) {
+      return new DocumentEntry(documentId.substring(0, documentId.length() - Compression.GZIP_MARKER.length()), file,
+          fileName.substring(dot), Compression.uncompressedSize(file), attrs.lastModifiedTime().toMillis(), 0,
+          Compression.GZIP, attrs.size());
+    }
+    return new DocumentEntry(documentId, file, fileName.substring(dot), attrs.size(),
+        attrs.lastModifiedTime().toMillis());
+  }
+}
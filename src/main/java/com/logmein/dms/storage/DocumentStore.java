@@ -0,0 +1,77 @@
+package com.logmein.dms.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+/**
+ * Persistence of document contents. The servlet only talks to this interface; see
+ * {@link FileSystemDocumentStore}, {@link SegmentDocumentStore} and {@link InMemoryDocumentStore}.
+ */
+public interface DocumentStore {
+
+  /**
+   * Load the store's index. Called once before the store serves requests; lookups load lazily if
+   * it was not.
+   */
+  void open() throws IOException;
+
+  /**
+   * Return the entry of a document, ready for its contents to be read, or null if there is none. A
+   * store with an archive promotes an archived document first.
+   */
+  DocumentEntry get(String documentId) throws IOException;
+
+  /**
+   * Return the entry of a document, or null if there is none, leaving an archived document in its
+   * archive. For existence checks and preconditions, where the contents are not read.
+   */
+  DocumentEntry lookup(String documentId) throws IOException;
+
+  /**
+   * Start writing a new version of a document. Nothing is visible to readers until
+   * {@link DocumentWriter#commit()}. An existing document keeps its extension.
+   */
+  DocumentWriter newWriter(String documentId, String extension) throws IOException;
+
+  /**
+   * Delete a document. Returns false if it did not exist.
+   */
+  boolean delete(String documentId) throws IOException;
+
+  /**
+   * Contents the store already holds in memory, as a read-only buffer positioned at the first
+   * byte. Returns null when the document is to be read from {@link DocumentEntry#getPath()}
+   * starting at {@link DocumentEntry#getOffset()}.
+   */
+  ByteBuffer getContents(DocumentEntry document) throws IOException;
+
+  /**
+   * Open {@link DocumentEntry#getPath()} for reading, or return null when the entry is no longer
+   * the current version of the document, e.g. it was replaced or deleted since it was looked up.
+   * The channel keeps reading the version of the entry even if the document changes while it is
+   * open. Only for documents without {@link #getContents in-memory contents}.
+   */
+  FileChannel openFile(DocumentEntry document) throws IOException;
+
+  /**
+   * Number of stored documents
+   */
+  int size();
+
+  /**
+   * The stored documents, as a live view or a copy, in no particular order
+   */
+  Collection<DocumentEntry> documents() throws IOException;
+
+  /**
+   * Release resources, keeping the stored documents.
+   */
+  void close() throws IOException;
+
+  /**
+   * Release resources and remove every stored document.
+   */
+  void destroy() throws IOException;
+}
@@ -0,0 +1,41 @@
+package com.logmein.dms.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * Pending write of one document. The contents go either to {@link #getOutputStream()} or into
+ * {@link #getStagingFile()}, never both, and become visible atomically on {@link #commit()}.
+ */
+public interface DocumentWriter {
+
+  String getDocumentId();
+
+  /**
+   * Stream to write the contents to
+   */
+  OutputStream getOutputStream() throws IOException;
+
+  /**
+   * File the caller may fill itself, e.g. with {@code Part.write} or an asynchronous channel. It
+   * does not exist yet and must be created by the caller.
+   */
+  Path getStagingFile() throws IOException;
+
+  /**
+   * Give the new version this modification time instead of the time of the commit, e.g. for a
+   * copy of a version stored elsewhere. Stores sharing files between documents may not keep it.
+   */
+  void setLastModified(long lastModified);
+
+  /**
+   * Publish the written contents and return the new entry.
+   */
+  DocumentEntry commit() throws IOException;
+
+  /**
+   * Discard the written contents. Safe to call after a commit, in which case it does nothing.
+   */
+  void abort();
+}
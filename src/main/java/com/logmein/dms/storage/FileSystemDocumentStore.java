@@ -0,0 +1,513 @@
+package com.logmein.dms.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.logmein.dms.util.RateLimiter;
+
+/**
+ * One file per document below a storage directory, placed by a {@link StorageLayout}. New
+ * versions are written to a hidden file next to the target, flushed to disk and renamed over it,
+ * so a reader or a crash sees either the previous or the new contents, never a torn file. Staging
+ * files left behind by a crash are removed when the store is first opened. With a
+ * {@link Compression} policy, matching documents are gzip compressed on commit.
+ *
+ * With a {@link PackArchive}, cold documents can be {@link #archive moved} out of the directory
+ * into pack files, and are promoted back into it, with their modification time, when they are
+ * looked up again. Changes of one document are serialized so that a promotion never overwrites
+ * a newer version.
+ */
+public class FileSystemDocumentStore implements DocumentStore {
+
+  private static Logger logger = LoggerFactory.getLogger(FileSystemDocumentStore.class);
+
+  private final Path directory;
+  private final StorageLayout layout;
+  private DocumentIndex index = new DocumentIndex();
+  private final Compression compression;
+  private boolean fsync = true;
+  private boolean stagingCleaned;
+  private PackArchive archive;
+  private final Object[] documentLocks = new Object[64];
+
+  public FileSystemDocumentStore(Path directory, StorageLayout layout) {
+    this(directory, layout, null);
+  }
+
+  /**
+   * @param compression documents to keep compressed, or null to store every document as uploaded
+   */
+  public FileSystemDocumentStore(Path directory, StorageLayout layout, Compression compression) {
+    this.directory = directory;
+    this.layout = layout;
+    this.compression = compression;
+    for (int i = 0; i < documentLocks.length; i++) {
+      documentLocks[i] = new Object();
+    }
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Whether commits wait for the contents and the rename to reach the disk. On by default; turning
+   * it off trades durability on power loss for commit latency.
+   */
+  public void setFsync(boolean fsync) {
+    this.fsync = fsync;
+  }
+
+  /**
+   * Whether the index is persisted as a snapshot plus log in the storage directory, so that the
+   * next open does not scan it. Must be set before the store is opened.
+   */
+  public void setPersistentIndex(boolean persistentIndex) {
+    index = persistentIndex ? new DocumentIndex(DocumentIndex.journal(Paths.get(directory.toUri()), layout))
+        : new DocumentIndex();
+  }
+
+  /**
+   * Archive tier for cold documents, or null for none. Must be set before the store is opened.
+   */
+  public void setArchive(PackArchive archive) {
+    this.archive = archive;
+  }
+
+  public PackArchive getArchive() {
+    return archive;
+  }
+
+  /**
+   * Repair the index where it differs from the directory, see {@link DocumentIndex#verify(Path)}.
+   * Returns the number of repaired entries.
+   */
+  public int verify() throws IOException {
+    open();
+    long start = System.currentTimeMillis();
+    int repaired = index.verify(Paths.get(directory.toUri()), ownsModificationTime());
+    logger.info("Verified the index of {} in {} ms", directory, System.currentTimeMillis() - start);
+    return repaired;
+  }
+
+  @Override
+  public void open() throws IOException {
+    if (!index.isLoaded()) {
+      removeStagingFiles();
+      index.load(Paths.get(directory.toUri()));
+      if (archive != null) {
+        archive.open();
+        for (DocumentEntry archived : archive.entries()) {
+          if (index.get(archived.getDocumentId()) != null) {
+            archive.remove(archived.getDocumentId()); // Promoted or archived when the store went down
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Delete the staging files of uploads interrupted by a crash. Only done on the first open, before
+   * any writer of this store exists.
+   */
+  private synchronized void removeStagingFiles() throws IOException {
+    Path rootPath = Paths.get(directory.toUri());
+    if (stagingCleaned || !Files.isDirectory(rootPath)) {
+      return;
+    }
+    Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        return dir.equals(rootPath) || !dir.getFileName().toString().startsWith(".")
+            ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (attrs.isRegularFile() && file.getFileName().toString().startsWith(".")) {
+          logger.warn("Removing staging file {} of an interrupted upload", file);
+          Files.delete(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    stagingCleaned = true;
+  }
+
+  /**
+   * Return the entry of a document, promoting it from the archive first if it is archived
+   */
+  @Override
+  public DocumentEntry get(String documentId) throws IOException {
+    open();
+    DocumentEntry document = index.get(documentId);
+    if (document == null && archive != null && archive.get(documentId) != null) {
+      document = promote(documentId);
+    }
+    return document;
+  }
+
+  /**
+   * The hot or archived entry of a document, without promoting it
+   */
+  @Override
+  public DocumentEntry lookup(String documentId) throws IOException {
+    open();
+    DocumentEntry document = index.get(documentId);
+    return document == null && archive != null ? archive.get(documentId) : document;
+  }
+
+  /**
+   * Move a document from the archive back into the directory
+   */
+  private DocumentEntry promote(String documentId) throws IOException {
+    synchronized (lockFor(documentId)) {
+      DocumentEntry document = index.get(documentId);
+      DocumentEntry archived = archive.get(documentId);
+      if (document != null || archived == null) {
+        return document; // Promoted or deleted meanwhile
+      }
+      long start = System.currentTimeMillis();
+      FileWriter writer = (FileWriter) newWriter(documentId, archived.getExtension());
+      try {
+        try (InputStream in = archive.decompress(archived); OutputStream out = writer.getOutputStream()) {
+          byte[] buffer = new byte[64 * 1024];
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+          }
+        }
+        writer.setLastModified(archived.getLastModified());
+        document = writer.commit();
+      } finally {
+        writer.abort();
+      }
+      logger.debug("Promoted {} from the archive in {} ms", documentId, System.currentTimeMillis() - start);
+      return document;
+    }
+  }
+
+  /**
+   * Move a document of the directory to the archive, reading it at the pace of the rate limiter.
+   * Returns false, leaving the document in place, when it changed meanwhile.
+   */
+  public boolean archive(DocumentEntry document, RateLimiter rateLimiter) throws IOException, InterruptedException {
+    Path compressed = archive.compress(document, rateLimiter);
+    synchronized (lockFor(document.getDocumentId())) {
+      if (index.get(document.getDocumentId()) != document) {
+        Files.delete(compressed);
+        return false;
+      }
+      archive.append(document, compressed, fsync);
+      index.remove(document.getDocumentId(), document);
+      unlink(document.getPath());
+    }
+    return true;
+  }
+
+  /**
+   * The documents of the directory, without the archived ones
+   */
+  public Collection<DocumentEntry> hotDocuments() throws IOException {
+    open();
+    return index.entries();
+  }
+
+  private Object lockFor(String documentId) {
+    return documentLocks[(documentId.hashCode() & Integer.MAX_VALUE) % documentLocks.length];
+  }
+
+  @Override
+  public DocumentWriter newWriter(String documentId, String extension) throws IOException {
+    DocumentEntry existing = lookup(documentId);
+    String targetExtension = existing == null ? extension : existing.getExtension();
+    Path target = layout.resolve(directory, documentId, targetExtension);
+    if (layout != StorageLayout.FLAT) {
+      Files.createDirectories(target.getParent());
+    }
+    return new FileWriter(documentId, targetExtension,
+        target.resolveSibling("." + documentId + "-" + System.nanoTime() + targetExtension));
+  }
+
+  @Override
+  public boolean delete(String documentId) throws IOException {
+    if (lookup(documentId) == null) {
+      return false;
+    }
+    synchronized (lockFor(documentId)) {
+      DocumentEntry document = index.get(documentId);
+      if (document != null) {
+        unlink(document.getPath());
+        index.remove(documentId);
+      }
+      if (archive != null) {
+        archive.remove(documentId);
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public ByteBuffer getContents(DocumentEntry document) {
+    return null;
+  }
+
+  /**
+   * Opened under the lock of the document, so the file is the one of the entry while it is current
+   */
+  @Override
+  public FileChannel openFile(DocumentEntry document) throws IOException {
+    synchronized (lockFor(document.getDocumentId())) {
+      if (lookup(document.getDocumentId()) != document) {
+        return null;
+      }
+      return FileChannel.open(document.getPath(), StandardOpenOption.READ);
+    }
+  }
+
+  @Override
+  public int size() {
+    return archive == null ? index.size() : index.size() + archive.size();
+  }
+
+  @Override
+  public Collection<DocumentEntry> documents() throws IOException {
+    open();
+    if (archive == null) {
+      return index.entries();
+    }
+    List<DocumentEntry> documents = new ArrayList<>(index.entries());
+    documents.addAll(archive.entries());
+    return documents;
+  }
+
+  @Override
+  public void close() {
+    try {
+      index.persist();
+    } catch (IOException e) {
+      logger.error("Unable to persist the index of {} with exception {}", directory, e.getMessage());
+    }
+    index.invalidate();
+    closeArchive();
+  }
+
+  private void closeArchive() {
+    if (archive != null) {
+      try {
+        archive.close();
+      } catch (IOException e) {
+        logger.error("Unable to close the archive of {} with exception {}", directory, e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public void destroy() throws IOException {
+    closeArchive();
+    Path rootPath = Paths.get(directory.toUri());
+    Files.walk(rootPath)
+      .sorted(Comparator.reverseOrder()) // Children before their shard directories
+      .filter(path -> !path.equals(rootPath))
+      .forEach(file -> {
+        try {
+          Files.delete(file);
+        } catch (IOException e) {
+          logger.error("Unable to delete file {} with exception {}", file, e.getMessage());
+        }
+      });
+    Files.delete(directory);
+    index.invalidate();
+  }
+
+  /**
+   * Flush the contents of a file to the disk
+   */
+  private void force(Path file) throws IOException {
+    if (fsync) {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+    }
+  }
+
+  /**
+   * Flush a directory so that a rename into it survives a crash. Not every platform can open a
+   * directory; there the rename is as durable as the file system makes it.
+   */
+  private void forceDirectory(Path dir) {
+    if (fsync) {
+      try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+        channel.force(true);
+      } catch (IOException e) {
+        logger.debug("Unable to flush directory {}: {}", dir, e.getMessage());
+      }
+    }
+  }
+
+  private static boolean samePath(Path a, Path b) {
+    return a.toAbsolutePath().normalize().equals(b.toAbsolutePath().normalize());
+  }
+
+  /**
+   * Open the stream a {@link DocumentWriter#getOutputStream()} writes the staging file through
+   */
+  protected OutputStream newStagingStream(Path stagingFile) throws IOException {
+    return Files.newOutputStream(stagingFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Called with the completely written file about to be {@link #publish published}, before the
+   * document is locked, for the work on its contents that does not need the lock
+   */
+  protected void prepare(Path file) throws IOException {
+  }
+
+  /**
+   * Make a completely written staging file the contents of target, replacing any previous version
+   * atomically. Returns the modification time of the published document.
+   */
+  protected long publish(Path stagingFile, Path target) throws IOException {
+    Files.move(stagingFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    return Files.getLastModifiedTime(target).toMillis();
+  }
+
+  /**
+   * Whether the modification time of a document file is the modification time of the document.
+   * Not so when several documents share one file; their times are then only kept by the index.
+   */
+  protected boolean ownsModificationTime() {
+    return true;
+  }
+
+  /**
+   * Remove the file of a deleted document
+   */
+  protected void unlink(Path file) throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  /**
+   * Called when a staging file is discarded or replaced by its compressed copy, after it was
+   * removed
+   */
+  protected void discarded(Path stagingFile) {
+  }
+
+  private class FileWriter implements DocumentWriter {
+
+    private final String documentId;
+    private final String extension;
+    private final Path stagingFile;
+    private final Path compressedFile;
+    private boolean committed;
+    private long lastModified; // 0 for the time of the commit
+
+    FileWriter(String documentId, String extension, Path stagingFile) {
+      this.documentId = documentId;
+      this.extension = extension;
+      this.stagingFile = stagingFile;
+      this.compressedFile = stagingFile.resolveSibling(stagingFile.getFileName() + Compression.GZIP_MARKER);
+    }
+
+    @Override
+    public String getDocumentId() {
+      return documentId;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      return newStagingStream(stagingFile);
+    }
+
+    @Override
+    public Path getStagingFile() {
+      return stagingFile;
+    }
+
+    @Override
+    public DocumentEntry commit() throws IOException {
+      // Compress and flush before locking the document, which its readers and promotion wait for
+      long size = Files.size(stagingFile);
+      Path file = stagingFile;
+      String encoding = null;
+      if (compression != null && compression.isCompressible(extension, size)
+          && compression.compress(stagingFile, compressedFile)) {
+        Files.delete(stagingFile);
+        discarded(stagingFile);
+        file = compressedFile;
+        encoding = Compression.GZIP;
+      }
+      keepLastModified(file);
+      force(file);
+      prepare(file);
+      synchronized (lockFor(documentId)) {
+        DocumentEntry entry = publish(file, size, encoding);
+        if (archive != null && archive.get(documentId) != null) {
+          archive.remove(documentId); // Replaced or promoted
+        }
+        return entry;
+      }
+    }
+
+    private DocumentEntry publish(Path file, long size, String encoding) throws IOException {
+      Path target = layout.resolve(directory, encoding != null ? documentId + Compression.GZIP_MARKER : documentId,
+          extension);
+      long modified = FileSystemDocumentStore.this.publish(file, target);
+      forceDirectory(target.getParent());
+      committed = true;
+      // The previous version may have been stored under the other name
+      DocumentEntry previous = index.get(documentId);
+      if (previous != null && !samePath(previous.getPath(), target)) {
+        unlink(previous.getPath());
+      }
+      DocumentEntry entry = new DocumentEntry(documentId, target, extension, size, modified, 0, encoding,
+          Files.size(target));
+      index.put(entry);
+      return entry;
+    }
+
+    @Override
+    public void setLastModified(long lastModified) {
+      this.lastModified = lastModified;
+    }
+
+    private void keepLastModified(Path file) throws IOException {
+      if (lastModified > 0) {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+      }
+    }
+
+    @Override
+    public void abort() {
+      if (committed) {
+        return;
+      }
+      try {
+        Files.deleteIfExists(stagingFile);
+        Files.deleteIfExists(compressedFile);
+      } catch (IOException e) {
+        logger.error("Unable to delete {} with exception {}", stagingFile, e.getMessage());
+      }
+      discarded(stagingFile);
+      discarded(compressedFile);
+    }
+  }
+}
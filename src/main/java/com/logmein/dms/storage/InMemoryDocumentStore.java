@@ -0,0 +1,117 @@
+package com.logmein.dms.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps every document on the heap. Meant for tests and benchmarks; nothing survives a restart.
+ */
+public class InMemoryDocumentStore implements DocumentStore {
+
+  /** Largest document a heap buffer can hold */
+  static final long MAX_DOCUMENT_SIZE = Integer.MAX_VALUE - 8;
+
+  private final Map<String, StoredDocument> documents = new ConcurrentHashMap<>();
+
+  private final Path stagingDirectory;
+
+  public InMemoryDocumentStore() {
+    this(null);
+  }
+
+  /**
+   * @param stagingDirectory where staging files are created, the default temp directory if null
+   */
+  public InMemoryDocumentStore(Path stagingDirectory) {
+    this.stagingDirectory = stagingDirectory == null ? Paths.get(System.getProperty("java.io.tmpdir"))
+        : stagingDirectory;
+  }
+
+  @Override
+  public void open() {
+  }
+
+  @Override
+  public DocumentEntry get(String documentId) {
+    StoredDocument document = documents.get(documentId);
+    return document == null ? null : document.entry;
+  }
+
+  @Override
+  public DocumentEntry lookup(String documentId) {
+    return get(documentId);
+  }
+
+  @Override
+  public DocumentWriter newWriter(String documentId, String extension) {
+    StoredDocument existing = documents.get(documentId);
+    String targetExtension = existing == null ? extension : existing.entry.getExtension();
+    return new BufferedDocumentWriter(documentId, targetExtension, stagingDirectory, MAX_DOCUMENT_SIZE) {
+      @Override
+      DocumentEntry commit(ByteBuffer contents) {
+        ByteBuffer copy = ByteBuffer.allocate(contents.remaining());
+        copy.put(contents).flip();
+        DocumentEntry entry = new DocumentEntry(documentId, null, getExtension(), copy.remaining(), lastModified());
+        documents.put(documentId, new StoredDocument(entry, copy.asReadOnlyBuffer()));
+        return entry;
+      }
+    };
+  }
+
+  @Override
+  public boolean delete(String documentId) {
+    return documents.remove(documentId) != null;
+  }
+
+  @Override
+  public ByteBuffer getContents(DocumentEntry document) {
+    StoredDocument stored = documents.get(document.getDocumentId());
+    return stored == null ? ByteBuffer.allocate(0) : stored.contents.duplicate();
+  }
+
+  @Override
+  public FileChannel openFile(DocumentEntry document) {
+    throw new UnsupportedOperationException("Documents are only kept in memory");
+  }
+
+  @Override
+  public int size() {
+    return documents.size();
+  }
+
+  @Override
+  public Collection<DocumentEntry> documents() {
+    List<DocumentEntry> entries = new ArrayList<>(documents.size());
+    for (StoredDocument document : documents.values()) {
+      entries.add(document.entry);
+    }
+    return entries;
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public void destroy() {
+    documents.clear();
+  }
+
+  private static class StoredDocument {
+
+    private final DocumentEntry entry;
+    private final ByteBuffer contents;
+
+    StoredDocument(DocumentEntry entry, ByteBuffer contents) {
+      this.entry = entry;
+      this.contents = contents;
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package com.logmein.dms.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent copy of an in-memory map, e.g. a {@link DocumentIndex}: a snapshot of every value
+ * plus an append-only log of the changes made since. Loading both is what makes restarts over
+ * millions of documents fast, compared to scanning the storage directory.
+ *
+ * The files live in the hidden {@code .index} directory of the storage directory, named after the
+ * journal. The snapshot is replaced atomically; the log is only appended to, and a record cut short
+ * by a crash is dropped on load. The log is flushed to the OS on every change but not forced to
+ * disk, so a power loss can lose the latest changes; owners repair those from the directory.
+ */
+public class Journal<T> {
+
+  /**
+   * Binary form of the journaled values
+   */
+  public interface Codec<T> {
+
+    String key(T value);
+
+    void write(DataOutputStream out, T value) throws IOException;
+
+    T read(DataInputStream in) throws IOException;
+  }
+
+  private static Logger logger = LoggerFactory.getLogger(Journal.class);
+
+  static final String DIRECTORY = ".index";
+
+  private static final int SNAPSHOT_MAGIC = 0x444D5331; // "DMS1"
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+  private static final byte END = 0;
+
+  private static final int COMPACT_THRESHOLD = 100000;
+
+  private final Path indexDirectory;
+  private final Path snapshotFile;
+  private final Path logFile;
+  private final String header;
+  private final Codec<T> codec;
+
+  private DataOutputStream log;
+  private int logRecords;
+
+  /**
+   * @param directory storage directory
+   * @param name name of the journal files
+   * @param header describes the format of the values; a snapshot with another header is not used
+   */
+  public Journal(Path directory, String name, String header, Codec<T> codec) {
+    this.indexDirectory = directory.resolve(DIRECTORY);
+    this.snapshotFile = indexDirectory.resolve(name + ".snapshot");
+    this.logFile = indexDirectory.resolve(name + ".log");
+    this.header = header;
+    this.codec = codec;
+  }
+
+  /**
+   * Delete a journal of a storage directory, e.g. after the documents it records were moved
+   */
+  public static void discard(Path directory, String name) throws IOException {
+    Path indexDirectory = directory.resolve(DIRECTORY);
+    Files.deleteIfExists(indexDirectory.resolve(name + ".snapshot"));
+    Files.deleteIfExists(indexDirectory.resolve(name + ".log"));
+  }
+
+  /**
+   * Read the snapshot and replay the log into the given map. Returns false, leaving the map empty,
+   * when there is no usable snapshot and the directory has to be scanned instead.
+   */
+  public synchronized boolean load(Map<String, T> entries) throws IOException {
+    if (!Files.exists(snapshotFile)) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+      if (in.readInt() != SNAPSHOT_MAGIC || !header.equals(in.readUTF())) {
+        logger.warn("Ignoring snapshot {} written by another version or layout", snapshotFile);
+        return false;
+      }
+      if (!replay(in, entries)) {
+        logger.warn("Ignoring truncated snapshot {}", snapshotFile);
+        entries.clear();
+        return false;
+      }
+    }
+    boolean complete = true;
+    if (Files.exists(logFile)) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+        complete = replay(in, entries);
+      }
+    }
+    if (!complete) {
+      // Appending after the partial record would make the rest of the log unreadable
+      logger.warn("Dropped the last, incomplete record of log {}", logFile);
+      snapshot(entries.values());
+    }
+    return true;
+  }
+
+  /**
+   * Apply records until the end marker or the end of the stream. Returns false if the stream ends
+   * inside a record.
+   */
+  private boolean replay(DataInputStream in, Map<String, T> entries) throws IOException {
+    while (true) {
+      byte type;
+      try {
+        type = in.readByte();
+      } catch (EOFException e) {
+        return true;
+      }
+      try {
+        if (type == END) {
+          return true;
+        } else if (type == PUT) {
+          T value = codec.read(in);
+          entries.put(codec.key(value), value);
+        } else if (type == REMOVE) {
+          entries.remove(in.readUTF());
+        } else {
+          return false;
+        }
+      } catch (EOFException e) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Write a snapshot of the given values and start a new, empty log. Callers hold off changes to
+   * the values meanwhile.
+   */
+  public synchronized void snapshot(Collection<T> values) throws IOException {
+    closeLog();
+    Files.createDirectories(indexDirectory);
+    Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+    try (OutputStream file = Files.newOutputStream(temporary);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeUTF(header);
+      for (T value : values) {
+        out.writeByte(PUT);
+        codec.write(out, value);
+      }
+      out.writeByte(END);
+    }
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    Files.move(temporary, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    Files.deleteIfExists(logFile);
+    logRecords = 0;
+  }
+
+  public synchronized void put(T value) throws IOException {
+    DataOutputStream out = log();
+    out.writeByte(PUT);
+    codec.write(out, value);
+    out.flush();
+    logRecords++;
+  }
+
+  public synchronized void remove(String key) throws IOException {
+    DataOutputStream out = log();
+    out.writeByte(REMOVE);
+    out.writeUTF(key);
+    out.flush();
+    logRecords++;
+  }
+
+  /**
+   * True once the log has grown enough to be folded into a new snapshot
+   */
+  public synchronized boolean needsCompaction() {
+    return logRecords >= COMPACT_THRESHOLD;
+  }
+
+  public synchronized void closeLog() throws IOException {
+    if (log != null) {
+      log.close();
+      log = null;
+    }
+  }
+
+  private DataOutputStream log() throws IOException {
+    if (log == null) {
+      Files.createDirectories(indexDirectory);
+      log = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(logFile,
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)));
+    }
+    return log;
+  }
+}
@@ -0,0 +1,93 @@
+package com.logmein.dms.storage;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One-time rehash of an existing storage directory into another {@link StorageLayout}.
+ * 
+ * Usage: {@code java com.logmein.dms.storage.LayoutMigrator <storage directory> <flat|sharded>}
+ */
+public class LayoutMigrator {
+
+  private static Logger logger = LoggerFactory.getLogger(LayoutMigrator.class);
+
+  /**
+   * Move every document that is not where {@code layout} expects it. Documents are renamed within
+   * the same file system, so each move is atomic. Returns the number of documents moved.
+   */
+  public static int migrate(Path directory, StorageLayout layout) throws IOException {
+    List<DocumentEntry> documents = new ArrayList<>();
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        // Hidden directories hold store internals such as the index journal and archive packs
+        return dir.equals(directory) || !dir.getFileName().toString().startsWith(".")
+            ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        DocumentEntry entry = DocumentIndex.toEntry(file, attrs);
+        if (entry != null) {
+          documents.add(entry);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+
+    int moved = 0;
+    for (DocumentEntry document : documents) {
+      // Keeps the name, which also marks a compressed document
+      Path target = layout.resolve(directory, document.getDocumentId(), document.getExtension())
+          .resolveSibling(document.getPath().getFileName().toString());
+      if (target.equals(document.getPath().toAbsolutePath())) {
+        continue;
+      }
+      Files.createDirectories(target.getParent());
+      Files.move(document.getPath(), target, StandardCopyOption.ATOMIC_MOVE);
+      moved++;
+    }
+    if (moved > 0) {
+      Journal.discard(directory, DocumentIndex.JOURNAL_NAME); // Records the old locations
+    }
+    removeEmptyDirectories(directory);
+    logger.info("Migrated {} of {} documents in {} to {} layout", moved, documents.size(), directory, layout);
+    return moved;
+  }
+
+  private static void removeEmptyDirectories(Path directory) throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        if (!dir.equals(directory)) {
+          try {
+            Files.delete(dir);
+          } catch (IOException notEmpty) {
+            // Still holds documents
+          }
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: LayoutMigrator <storage directory> <flat|sharded>");
+      System.exit(1);
+    }
+    int moved = migrate(Paths.get(args[0]), StorageLayout.fromName(args[1]));
+    System.out.println("Moved " + moved + " documents");
+  }
+}
@@ -0,0 +1,91 @@
+package com.logmein.dms.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * A version of a document opened for reading: its entry, and either the contents the store holds
+ * in memory or a channel on its file. Everything read is the version of the entry, even if the
+ * document is replaced or deleted while it is open, so responses built from the entry's size and
+ * time never carry the bytes of another version.
+ */
+public class OpenDocument implements Closeable {
+
+  private final DocumentEntry entry;
+  private final ByteBuffer contents;
+  private FileChannel channel;
+
+  private OpenDocument(DocumentEntry entry, ByteBuffer contents, FileChannel channel) {
+    this.entry = entry;
+    this.contents = contents;
+    this.channel = channel;
+  }
+
+  /**
+   * Open the version of an entry, or return null when it is no longer the current version of the
+   * document in the store
+   */
+  public static OpenDocument open(DocumentStore store, DocumentEntry entry) throws IOException {
+    ByteBuffer contents = store.getContents(entry);
+    if (contents != null) {
+      return new OpenDocument(entry, contents, null);
+    }
+    FileChannel channel = store.openFile(entry);
+    return channel == null ? null : new OpenDocument(entry, null, channel);
+  }
+
+  /**
+   * The version of an entry whose contents are already held in memory, e.g. by a read cache
+   */
+  public static OpenDocument inMemory(DocumentEntry entry, ByteBuffer contents) {
+    return new OpenDocument(entry, contents, null);
+  }
+
+  public DocumentEntry getEntry() {
+    return entry;
+  }
+
+  /**
+   * See {@link DocumentStore#getContents(DocumentEntry)}; null when the document is read from
+   * {@link #getChannel()}
+   */
+  public ByteBuffer getContents() {
+    return contents;
+  }
+
+  /**
+   * Channel on the file of the entry, its contents starting at {@link DocumentEntry#getOffset()}
+   */
+  public FileChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Hand the channel over to a reader that outlives this object and closes it itself
+   */
+  public FileChannel detachChannel() {
+    FileChannel detached = channel;
+    channel = null;
+    return detached;
+  }
+
+  /**
+   * Stream of the contents as uploaded, decoding them when they are stored compressed. Reads the
+   * file from the offset of the entry on; closing the stream closes the channel.
+   */
+  public InputStream newInputStream() throws IOException {
+    InputStream in = Channels.newInputStream(channel.position(entry.getOffset()));
+    return entry.getEncoding() != null ? Compression.decompress(in) : in;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+    }
+  }
+}
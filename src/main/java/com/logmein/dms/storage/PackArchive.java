@@ -0,0 +1,414 @@
+package com.logmein.dms.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.logmein.dms.util.RateLimiter;
+
+/**
+ * Archive tier of a {@link FileSystemDocumentStore}: cold documents packed gzip compressed into a
+ * few large append-only pack files in the hidden {@code .archive} directory, instead of one file
+ * per document in the hot directory. Archived documents are read back whole, when they are
+ * promoted to the hot directory again.
+ *
+ * Record layout: magic (int), type (byte), Id length (short), Id, extension length (short),
+ * extension, last modified (long), size (long), stored size (long), gzip contents. As in
+ * {@link SegmentDocumentStore} the magic is written last so a record torn by a crash ends the
+ * scan. A document leaves the archive with a delete record. Pack files are reclaimed oldest first
+ * once none of their documents is archived anymore.
+ */
+public class PackArchive {
+
+  private static Logger logger = LoggerFactory.getLogger(PackArchive.class);
+
+  static final String DIRECTORY = ".archive";
+
+  public static final long DEFAULT_PACK_SIZE = 256L * 1024 * 1024;
+
+  private static final int MAGIC = 0x444D5041; // "DMPA"
+  private static final byte TYPE_PUT = 1;
+  private static final byte TYPE_DELETE = 2;
+  private static final String PACK_PREFIX = "pack-";
+  private static final String PACK_SUFFIX = ".pack";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path directory;
+  private final long packSize;
+  private final int level;
+  private final Map<String, DocumentEntry> documents = new ConcurrentHashMap<>();
+  private final TreeMap<Integer, Pack> packs = new TreeMap<>();
+  private final Map<Path, Pack> packsByFile = new ConcurrentHashMap<>();
+
+  private Pack active;
+  private boolean opened;
+
+  /**
+   * @param directory storage directory of the store, the packs are kept in its {@code .archive}
+   * @param packSize size after which a new pack file is started
+   * @param level gzip level from 1 (fastest) to 9 (smallest)
+   */
+  public PackArchive(Path directory, long packSize, int level) {
+    this.directory = directory.resolve(DIRECTORY);
+    this.packSize = packSize;
+    this.level = level;
+  }
+
+  /**
+   * Replay the pack files into the in-memory index of archived documents
+   */
+  public synchronized void open() throws IOException {
+    if (opened) {
+      return;
+    }
+    Files.createDirectories(directory);
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path file : stream) {
+        String name = file.getFileName().toString();
+        if (name.startsWith(PACK_PREFIX) && name.endsWith(PACK_SUFFIX)) {
+          files.add(file);
+        } else if (name.startsWith(".")) {
+          Files.delete(file); // Compressed copy of an interrupted archiving
+        }
+      }
+    }
+    Collections.sort(files);
+    for (Path file : files) {
+      Pack pack = new Pack(file, packNumber(file));
+      packs.put(pack.number, pack);
+      packsByFile.put(file, pack);
+      replay(pack);
+      active = pack;
+    }
+    if (active == null) {
+      active = newPack(1);
+    }
+    reclaim();
+    opened = true;
+    logger.info("Opened {} pack files holding {} archived documents in {}", packs.size(), documents.size(), directory);
+  }
+
+  /**
+   * Entry of an archived document, pointing at its gzip contents within a pack file, or null
+   */
+  public DocumentEntry get(String documentId) {
+    return documents.get(documentId);
+  }
+
+  public int size() {
+    return documents.size();
+  }
+
+  public Collection<DocumentEntry> entries() {
+    return Collections.unmodifiableCollection(documents.values());
+  }
+
+  /**
+   * Compress the contents of a hot document into a hidden file of the archive directory, reading
+   * them at the pace of the rate limiter. Returns the file, to be {@link #append appended} or
+   * deleted by the caller.
+   */
+  Path compress(DocumentEntry document, RateLimiter rateLimiter) throws IOException, InterruptedException {
+    Path compressed = directory.resolve("." + document.getDocumentId() + "-" + System.nanoTime());
+    try (InputStream in = Files.newInputStream(document.getPath());
+        OutputStream out = Compression.GZIP.equals(document.getEncoding())
+            ? Files.newOutputStream(compressed, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+            : new LeveledGzipOutputStream(
+                Files.newOutputStream(compressed, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), level)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        rateLimiter.acquire(read);
+        out.write(buffer, 0, read);
+      }
+    } catch (IOException | InterruptedException e) {
+      Files.deleteIfExists(compressed);
+      throw e;
+    }
+    return compressed;
+  }
+
+  /**
+   * Append a document compressed by {@link #compress} to the active pack and make it the archived
+   * version of the document
+   */
+  synchronized DocumentEntry append(DocumentEntry document, Path compressed, boolean fsync) throws IOException {
+    long storedSize = Files.size(compressed);
+    ByteBuffer header = header(TYPE_PUT, document.getDocumentId(), document.getExtension(), document.getLastModified(),
+        document.getSize(), storedSize);
+    Pack pack = packFor(header.remaining() + storedSize);
+    long recordStart = pack.writePosition;
+    long dataOffset = recordStart + header.remaining();
+    write(pack.channel, header, recordStart);
+    try (FileChannel source = FileChannel.open(compressed, StandardOpenOption.READ)) {
+      for (long copied = 0; copied < storedSize;) {
+        copied += source.transferTo(copied, storedSize - copied, pack.channel.position(dataOffset + copied));
+      }
+    }
+    seal(pack, recordStart, dataOffset + storedSize, fsync);
+    Files.delete(compressed);
+    DocumentEntry entry = new DocumentEntry(document.getDocumentId(), pack.file, document.getExtension(),
+        document.getSize(), document.getLastModified(), dataOffset, Compression.GZIP, storedSize);
+    archived(entry);
+    return entry;
+  }
+
+  /**
+   * Drop a document from the archive, e.g. once it was promoted or deleted. Returns false if it
+   * was not archived.
+   */
+  synchronized boolean remove(String documentId) throws IOException {
+    DocumentEntry removed = documents.get(documentId);
+    if (removed == null) {
+      return false;
+    }
+    ByteBuffer header = header(TYPE_DELETE, documentId, removed.getExtension(), 0, 0, 0);
+    Pack pack = packFor(header.remaining());
+    long recordStart = pack.writePosition;
+    write(pack.channel, header, recordStart);
+    seal(pack, recordStart, recordStart + header.remaining(), false);
+    documents.remove(documentId);
+    packsByFile.get(removed.getPath()).live--;
+    reclaim();
+    return true;
+  }
+
+  /**
+   * Stream of the decoded contents of an archived document
+   */
+  InputStream decompress(DocumentEntry document) throws IOException {
+    Pack pack = packsByFile.get(document.getPath());
+    if (pack == null) {
+      throw new IOException("Pack file " + document.getPath() + " is gone");
+    }
+    return new GZIPInputStream(new RangeInputStream(pack.channel, document.getOffset(), document.getStoredSize()),
+        BUFFER_SIZE);
+  }
+
+  public synchronized void close() throws IOException {
+    for (Pack pack : packs.values()) {
+      pack.channel.close();
+    }
+    packs.clear();
+    packsByFile.clear();
+    documents.clear();
+    active = null;
+    opened = false;
+  }
+
+  private void archived(DocumentEntry entry) {
+    DocumentEntry previous = documents.put(entry.getDocumentId(), entry);
+    if (previous != null) {
+      packsByFile.get(previous.getPath()).live--;
+    }
+    packsByFile.get(entry.getPath()).live++;
+  }
+
+  /**
+   * Delete the oldest packs without archived documents. A newer pack may hold the delete records
+   * of documents in an older one, so packs are only deleted in order.
+   */
+  private void reclaim() throws IOException {
+    while (packs.size() > 1 && packs.firstEntry().getValue().live == 0) {
+      Pack pack = packs.pollFirstEntry().getValue();
+      packsByFile.remove(pack.file);
+      pack.channel.close();
+      Files.delete(pack.file);
+      logger.info("Reclaimed pack file {}", pack.file);
+    }
+  }
+
+  /**
+   * Apply every complete record of a pack and find its write position. A torn record at the end is
+   * cut off.
+   */
+  private void replay(Pack pack) throws IOException {
+    long position = 0;
+    long end = pack.channel.size();
+    ByteBuffer fixed = ByteBuffer.allocate(7);
+    while (position + fixed.capacity() <= end) {
+      fixed.clear();
+      read(pack.channel, fixed, position);
+      if (fixed.getInt(0) != MAGIC) {
+        break;
+      }
+      byte type = fixed.get(4);
+      ByteBuffer id = ByteBuffer.allocate(fixed.getShort(5));
+      read(pack.channel, id, position + 7);
+      ByteBuffer extensionLength = ByteBuffer.allocate(2);
+      read(pack.channel, extensionLength, position + 7 + id.capacity());
+      ByteBuffer rest = ByteBuffer.allocate(extensionLength.getShort(0) + 24);
+      read(pack.channel, rest, position + 9 + id.capacity());
+      byte[] extension = new byte[extensionLength.getShort(0)];
+      rest.get(extension);
+      long lastModified = rest.getLong();
+      long size = rest.getLong();
+      long storedSize = rest.getLong();
+      long dataOffset = position + 9 + id.capacity() + rest.capacity();
+      if (dataOffset + storedSize > end) {
+        break;
+      }
+      String documentId = new String(id.array(), StandardCharsets.UTF_8);
+      if (type == TYPE_PUT) {
+        archived(new DocumentEntry(documentId, pack.file, new String(extension, StandardCharsets.UTF_8), size,
+            lastModified, dataOffset, Compression.GZIP, storedSize));
+      } else {
+        DocumentEntry removed = documents.remove(documentId);
+        if (removed != null) {
+          packsByFile.get(removed.getPath()).live--;
+        }
+      }
+      position = dataOffset + storedSize;
+    }
+    if (position < end) {
+      logger.warn("Truncating pack file {} after a torn record at {}", pack.file, position);
+      pack.channel.truncate(position);
+    }
+    pack.writePosition = position;
+  }
+
+  private Pack packFor(long recordSize) throws IOException {
+    if (active.writePosition > 0 && active.writePosition + recordSize > packSize) {
+      active.channel.force(true);
+      active = newPack(active.number + 1);
+    }
+    return active;
+  }
+
+  private Pack newPack(int number) throws IOException {
+    Path file = directory.resolve(String.format("%s%06d%s", PACK_PREFIX, number, PACK_SUFFIX));
+    Pack pack = new Pack(file, number);
+    packs.put(number, pack);
+    packsByFile.put(file, pack);
+    return pack;
+  }
+
+  /**
+   * Write the magic of a complete record, after its contents reached the disk when fsync is set
+   */
+  private static void seal(Pack pack, long recordStart, long recordEnd, boolean fsync) throws IOException {
+    if (fsync) {
+      pack.channel.force(false);
+    }
+    ByteBuffer magic = ByteBuffer.allocate(4).putInt(0, MAGIC);
+    write(pack.channel, magic, recordStart);
+    if (fsync) {
+      pack.channel.force(false);
+    }
+    pack.writePosition = recordEnd;
+  }
+
+  /**
+   * Record header with a zero magic, see {@link #seal}
+   */
+  private static ByteBuffer header(byte type, String documentId, String extension, long lastModified, long size,
+      long storedSize) {
+    byte[] id = documentId.getBytes(StandardCharsets.UTF_8);
+    byte[] ext = extension.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer header = ByteBuffer.allocate(4 + 1 + 2 + id.length + 2 + ext.length + 24);
+    header.putInt(0).put(type);
+    header.putShort((short) id.length).put(id);
+    header.putShort((short) ext.length).put(ext);
+    header.putLong(lastModified).putLong(size).putLong(storedSize);
+    header.flip();
+    return header;
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        break;
+      }
+      position += read;
+    }
+    buffer.flip();
+  }
+
+  private static int packNumber(Path file) {
+    String name = file.getFileName().toString();
+    return Integer.parseInt(name.substring(PACK_PREFIX.length(), name.length() - PACK_SUFFIX.length()));
+  }
+
+  private static class Pack {
+
+    private final Path file;
+    private final int number;
+    private final FileChannel channel;
+    private long writePosition;
+    private int live;
+
+    Pack(Path file, int number) throws IOException {
+      this.file = file;
+      this.number = number;
+      this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+    }
+  }
+
+  /**
+   * Positional reads of a range of a shared channel, so concurrent promotions need no lock
+   */
+  private static class RangeInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private long position;
+    private final long end;
+
+    RangeInputStream(FileChannel channel, long position, long count) {
+      this.channel = channel;
+      this.position = position;
+      this.end = position + count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= end) {
+        return -1;
+      }
+      int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+      if (read > 0) {
+        position += read;
+      }
+      return read;
+    }
+  }
+
+  private static class LeveledGzipOutputStream extends GZIPOutputStream {
+
+    LeveledGzipOutputStream(OutputStream out, int level) throws IOException {
+      super(out, BUFFER_SIZE);
+      def.setLevel(level);
+    }
+  }
+}
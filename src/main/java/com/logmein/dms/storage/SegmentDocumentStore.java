@@ -0,0 +1,274 @@
+package com.logmein.dms.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.logmein.dms.exception.ExceptionConstants;
+import com.logmein.dms.exception.PayloadTooLargeException;
+
+/**
+ * Append-only store that packs many documents into large memory-mapped segment files, avoiding a
+ * file open, close and inode per document. An in-memory offset index points every document Id
+ * at its latest record; the index is rebuilt by scanning the segments on {@link #open()}.
+ * 
+ * Record layout: magic (int), type (byte), Id length (short), Id, extension length (short),
+ * extension, timestamp (long), size (long), contents. The magic is written last so a record torn
+ * by a crash ends the scan instead of being read back.
+ * 
+ * Replaced and deleted records are not reclaimed.
+ */
+public class SegmentDocumentStore implements DocumentStore {
+
+  private static Logger logger = LoggerFactory.getLogger(SegmentDocumentStore.class);
+
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  private static final int MAGIC = 0x444D5331; // "DMS1"
+  private static final byte TYPE_PUT = 1;
+  private static final byte TYPE_DELETE = 2;
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".dat";
+
+  private final Path directory;
+  private final int segmentSize;
+  private final Map<String, DocumentEntry> index = new ConcurrentHashMap<>();
+  private final Map<Path, Segment> segments = new ConcurrentHashMap<>();
+
+  private Segment active;
+  private boolean opened;
+
+  public SegmentDocumentStore(Path directory, int segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+  }
+
+  @Override
+  public synchronized void open() throws IOException {
+    if (opened) {
+      return;
+    }
+    Files.createDirectories(directory);
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      stream.forEach(files::add);
+    }
+    Collections.sort(files);
+    for (Path file : files) {
+      Segment segment = new Segment(file, segmentNumber(file), segmentSize);
+      segments.put(file, segment);
+      replay(segment);
+      active = segment;
+    }
+    if (active == null) {
+      active = newSegment(1);
+    }
+    opened = true;
+    logger.info("Opened {} segments holding {} documents in {}", segments.size(), index.size(), directory);
+  }
+
+  @Override
+  public DocumentEntry get(String documentId) throws IOException {
+    if (!opened) {
+      open();
+    }
+    return index.get(documentId);
+  }
+
+  @Override
+  public DocumentEntry lookup(String documentId) throws IOException {
+    return get(documentId);
+  }
+
+  @Override
+  public DocumentWriter newWriter(String documentId, String extension) throws IOException {
+    DocumentEntry existing = get(documentId);
+    String targetExtension = existing == null ? extension : existing.getExtension();
+    return new BufferedDocumentWriter(documentId, targetExtension, directory.resolve("staging"),
+        segmentSize - headerSize(documentId, targetExtension)) {
+      @Override
+      DocumentEntry commit(ByteBuffer contents) throws IOException {
+        return append(TYPE_PUT, documentId, getExtension(), lastModified(), contents);
+      }
+    };
+  }
+
+  @Override
+  public boolean delete(String documentId) throws IOException {
+    DocumentEntry document = get(documentId);
+    if (document == null) {
+      return false;
+    }
+    append(TYPE_DELETE, documentId, document.getExtension(), System.currentTimeMillis(), ByteBuffer.allocate(0));
+    return true;
+  }
+
+  @Override
+  public ByteBuffer getContents(DocumentEntry document) {
+    Segment segment = segments.get(document.getPath());
+    ByteBuffer contents = segment.buffer.duplicate();
+    contents.limit((int) (document.getOffset() + document.getSize()));
+    contents.position((int) document.getOffset());
+    return contents.slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Segments are only appended to, so the record of an entry never changes
+   */
+  @Override
+  public FileChannel openFile(DocumentEntry document) throws IOException {
+    if (get(document.getDocumentId()) != document) {
+      return null;
+    }
+    return FileChannel.open(document.getPath(), StandardOpenOption.READ);
+  }
+
+  @Override
+  public int size() {
+    return index.size();
+  }
+
+  @Override
+  public Collection<DocumentEntry> documents() {
+    return Collections.unmodifiableCollection(index.values());
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (Segment segment : segments.values()) {
+      segment.buffer.force();
+      segment.channel.close();
+    }
+    segments.clear();
+    index.clear();
+    opened = false;
+  }
+
+  @Override
+  public synchronized void destroy() throws IOException {
+    List<Path> files = new ArrayList<>(segments.keySet());
+    close();
+    for (Path file : files) {
+      Files.deleteIfExists(file);
+    }
+    Files.deleteIfExists(directory.resolve("staging"));
+    Files.deleteIfExists(directory);
+  }
+
+  /**
+   * Size of the record header of a document
+   */
+  private static int headerSize(String documentId, String extension) {
+    return 4 + 1 + 2 + documentId.getBytes(StandardCharsets.UTF_8).length + 2
+        + extension.getBytes(StandardCharsets.UTF_8).length + 8 + 8;
+  }
+
+  private synchronized DocumentEntry append(byte type, String documentId, String extension, long timestamp,
+      ByteBuffer contents) throws IOException {
+    if (!opened) {
+      open();
+    }
+    byte[] id = documentId.getBytes(StandardCharsets.UTF_8);
+    byte[] ext = extension.getBytes(StandardCharsets.UTF_8);
+    long recordSize = (long) headerSize(documentId, extension) + contents.remaining();
+    if (recordSize > segmentSize) {
+      throw new PayloadTooLargeException(ExceptionConstants.PAYLOAD_TOO_LARGE);
+    }
+    if (active.writePosition + recordSize > active.buffer.capacity()) {
+      active.buffer.force();
+      active = newSegment(active.number + 1);
+    }
+    int recordStart = active.writePosition;
+    ByteBuffer record = active.buffer.duplicate();
+    record.position(recordStart + 4);
+    record.put(type);
+    record.putShort((short) id.length).put(id);
+    record.putShort((short) ext.length).put(ext);
+    record.putLong(timestamp);
+    record.putLong(contents.remaining());
+    int dataOffset = record.position();
+    long size = contents.remaining();
+    record.put(contents);
+    record.putInt(recordStart, MAGIC);
+    active.writePosition = record.position();
+
+    if (type == TYPE_DELETE) {
+      index.remove(documentId);
+      return null;
+    }
+    DocumentEntry entry = new DocumentEntry(documentId, active.file, extension, size, timestamp, dataOffset);
+    index.put(documentId, entry);
+    return entry;
+  }
+
+  /**
+   * Apply every complete record of a segment to the index and find its write position.
+   */
+  private void replay(Segment segment) {
+    ByteBuffer record = segment.buffer.duplicate();
+    int position = 0;
+    while (position + 4 <= record.capacity() && record.getInt(position) == MAGIC) {
+      record.position(position + 4);
+      byte type = record.get();
+      byte[] id = new byte[record.getShort()];
+      record.get(id);
+      byte[] ext = new byte[record.getShort()];
+      record.get(ext);
+      long timestamp = record.getLong();
+      long size = record.getLong();
+      int dataOffset = record.position();
+      String documentId = new String(id, StandardCharsets.UTF_8);
+      if (type == TYPE_PUT) {
+        index.put(documentId, new DocumentEntry(documentId, segment.file, new String(ext, StandardCharsets.UTF_8),
+            size, timestamp, dataOffset));
+      } else {
+        index.remove(documentId);
+      }
+      position = (int) (dataOffset + size);
+    }
+    segment.writePosition = position;
+  }
+
+  private Segment newSegment(int number) throws IOException {
+    Path file = directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    Segment segment = new Segment(file, number, segmentSize);
+    segments.put(file, segment);
+    return segment;
+  }
+
+  private static int segmentNumber(Path file) {
+    String name = file.getFileName().toString();
+    return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private static class Segment {
+
+    private final Path file;
+    private final int number;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+
+    Segment(Path file, int number, int size) throws IOException {
+      this.file = file;
+      this.number = number;
+      this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      // Mapping past the end grows the file to the full segment size
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+    }
+  }
+}
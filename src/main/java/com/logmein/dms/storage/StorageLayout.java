@@ -0,0 +1,45 @@
+package com.logmein.dms.storage;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Where a document lives below the storage directory.
+ */
+public enum StorageLayout {
+
+  /**
+   * Every document directly in the storage directory, {@code <id><ext>}.
+   */
+  FLAT {
+    @Override
+    public Path resolve(Path directory, String documentId, String extension) {
+      return Paths.get(directory.toAbsolutePath() + File.separator + documentId + extension);
+    }
+  },
+
+  /**
+   * Two levels of prefix directories taken from the Id, {@code ab/cd/abcd...<ext>}, which keeps
+   * every directory small enough for fast creates, lookups and deletes.
+   */
+  SHARDED {
+    @Override
+    public Path resolve(Path directory, String documentId, String extension) {
+      if (documentId.length() < 2 * SHARD_WIDTH) {
+        return FLAT.resolve(directory, documentId, extension);
+      }
+      return Paths.get(directory.toAbsolutePath() + File.separator + documentId.substring(0, SHARD_WIDTH)
+          + File.separator + documentId.substring(SHARD_WIDTH, 2 * SHARD_WIDTH) + File.separator
+          + documentId + extension);
+    }
+  };
+
+  private static final int SHARD_WIDTH = 2;
+
+  public abstract Path resolve(Path directory, String documentId, String extension);
+
+  public static StorageLayout fromName(String name) {
+    return valueOf(name.trim().toUpperCase());
+  }
+}
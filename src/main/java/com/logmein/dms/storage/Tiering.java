@@ -0,0 +1,116 @@
+package com.logmein.dms.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.logmein.dms.util.RateLimiter;
+
+/**
+ * Background mover of cold documents from the directory of a {@link FileSystemDocumentStore} into
+ * its {@link PackArchive}, keeping the directory, and the page cache, to the working set.
+ *
+ * A document is cold once it was not read for {@code coldAfter} milliseconds. With a hot tier
+ * budget, the least recently read documents are archived as well until the directory fits in it.
+ * Read times are kept in memory only: until a document is read, its modification time, or the
+ * time the tiering started if later, stands for its last read.
+ */
+public class Tiering {
+
+  private static Logger logger = LoggerFactory.getLogger(Tiering.class);
+
+  private final FileSystemDocumentStore store;
+  private final long coldAfter;
+  private final long maxHotBytes;
+  private final RateLimiter rateLimiter;
+  private final long started = System.currentTimeMillis();
+  private final Map<String, Long> readTimes = new ConcurrentHashMap<>();
+
+  /**
+   * @param coldAfter milliseconds without a read after which a document is archived
+   * @param maxHotBytes stored bytes the directory may hold, 0 for no limit
+   * @param rateLimiter pace of the reads of documents being archived
+   */
+  public Tiering(FileSystemDocumentStore store, long coldAfter, long maxHotBytes, RateLimiter rateLimiter) {
+    this.store = store;
+    this.coldAfter = coldAfter;
+    this.maxHotBytes = maxHotBytes;
+    this.rateLimiter = rateLimiter;
+  }
+
+  /**
+   * Record a read of a document
+   */
+  public void accessed(String documentId) {
+    readTimes.put(documentId, System.currentTimeMillis());
+  }
+
+  /**
+   * Forget a deleted document
+   */
+  public void forget(String documentId) {
+    readTimes.remove(documentId);
+  }
+
+  long lastAccess(DocumentEntry document) {
+    Long readTime = readTimes.get(document.getDocumentId());
+    return readTime != null ? readTime : Math.max(started, document.getLastModified());
+  }
+
+  /**
+   * Archive the cold documents, least recently read first. Stops early when the thread is
+   * interrupted. Returns the number of archived documents.
+   */
+  public int run() {
+    long start = System.currentTimeMillis();
+    List<DocumentEntry> documents;
+    try {
+      documents = new ArrayList<>(store.hotDocuments());
+    } catch (IOException e) {
+      logger.error("Unable to list the documents to archive with exception {}", e.getMessage());
+      return 0;
+    }
+    Map<String, Long> lastAccess = new HashMap<>();
+    long hotBytes = 0;
+    for (DocumentEntry document : documents) {
+      lastAccess.put(document.getDocumentId(), lastAccess(document));
+      hotBytes += document.getStoredSize();
+    }
+    documents.sort(Comparator.comparingLong(document -> lastAccess.get(document.getDocumentId())));
+    int archived = 0;
+    long archivedBytes = 0;
+    for (DocumentEntry document : documents) {
+      boolean cold = start - lastAccess(document) >= coldAfter;
+      boolean overBudget = maxHotBytes > 0 && hotBytes > maxHotBytes;
+      if (lastAccess.get(document.getDocumentId()) != lastAccess(document)) {
+        continue; // Read since the run started
+      } else if (!cold && !overBudget) {
+        break; // Every following document was read more recently
+      }
+      try {
+        if (store.archive(document, rateLimiter)) {
+          readTimes.remove(document.getDocumentId(), lastAccess.get(document.getDocumentId()));
+          hotBytes -= document.getStoredSize();
+          archivedBytes += document.getStoredSize();
+          archived++;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (IOException e) {
+        // Typically deleted meanwhile
+        logger.warn("Unable to archive document {} with exception {}", document.getDocumentId(), e.getMessage());
+      }
+    }
+    if (archived > 0) {
+      logger.info("Archived {} cold documents of {} bytes in {} ms", archived, archivedBytes,
+          System.currentTimeMillis() - start);
+    }
+    return archived;
+  }
+}
@@ -0,0 +1,198 @@
+package com.logmein.dms.transfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams several documents as one tar or zip archive. Entries are written one after the other
+ * straight to the response, nothing is buffered beyond the entry headers.
+ */
+public abstract class ArchiveWriter {
+
+  protected final OutputStream outputStream;
+
+  protected ArchiveWriter(OutputStream outputStream) {
+    this.outputStream = outputStream;
+  }
+
+  public static boolean supports(String format) {
+    return "tar".equalsIgnoreCase(format) || "zip".equalsIgnoreCase(format);
+  }
+
+  /**
+   * Writer for the format "tar" or "zip", or null if the format is not supported
+   */
+  public static ArchiveWriter forFormat(String format, OutputStream outputStream) {
+    if ("tar".equalsIgnoreCase(format)) {
+      return new TarWriter(outputStream);
+    } else if ("zip".equalsIgnoreCase(format)) {
+      return new ZipWriter(outputStream);
+    }
+    return null;
+  }
+
+  public abstract String getContentType();
+
+  public abstract String getExtension();
+
+  /**
+   * Length of the whole archive for entries of the given sizes, or -1 if it is not known up front
+   */
+  public abstract long length(List<Long> sizes);
+
+  /**
+   * Start an entry of exactly {@code size} bytes and return the stream to write them to. The
+   * stream must not be closed.
+   */
+  public abstract OutputStream putEntry(String name, long size, long lastModified) throws IOException;
+
+  public abstract void closeEntry() throws IOException;
+
+  /**
+   * Write the end of the archive, leaving the underlying stream open
+   */
+  public abstract void finish() throws IOException;
+
+  /**
+   * POSIX ustar. Sizes that do not fit the 11 octal digits use the GNU base-256 encoding.
+   */
+  static class TarWriter extends ArchiveWriter {
+
+    private static final int BLOCK = 512;
+
+    private long entrySize;
+
+    TarWriter(OutputStream outputStream) {
+      super(outputStream);
+    }
+
+    @Override
+    public String getContentType() {
+      return "application/x-tar";
+    }
+
+    @Override
+    public String getExtension() {
+      return ".tar";
+    }
+
+    @Override
+    public long length(List<Long> sizes) {
+      long length = 2 * BLOCK;
+      for (long size : sizes) {
+        length += BLOCK + padded(size);
+      }
+      return length;
+    }
+
+    @Override
+    public OutputStream putEntry(String name, long size, long lastModified) throws IOException {
+      byte[] header = new byte[BLOCK];
+      byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+      System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+      octal(header, 100, 8, 0644);
+      octal(header, 108, 8, 0);
+      octal(header, 116, 8, 0);
+      if (size < 077777777777L) {
+        octal(header, 124, 12, size);
+      } else {
+        header[124] = (byte) 0x80;
+        for (int i = 0; i < 8; i++) {
+          header[135 - i] = (byte) (size >>> (8 * i));
+        }
+      }
+      octal(header, 136, 12, lastModified / 1000);
+      header[156] = '0';
+      System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+      Arrays.fill(header, 148, 156, (byte) ' ');
+      long checksum = 0;
+      for (byte b : header) {
+        checksum += b & 0xFF;
+      }
+      octal(header, 148, 7, checksum);
+      outputStream.write(header);
+      entrySize = size;
+      return outputStream;
+    }
+
+    @Override
+    public void closeEntry() throws IOException {
+      outputStream.write(new byte[(int) (padded(entrySize) - entrySize)]);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      outputStream.write(new byte[2 * BLOCK]);
+      outputStream.flush();
+    }
+
+    private static long padded(long size) {
+      return (size + BLOCK - 1) / BLOCK * BLOCK;
+    }
+
+    /**
+     * Zero padded octal digits followed by a NUL in a field of the given length
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+      header[offset + length - 1] = 0;
+      for (int i = offset + length - 2; i >= offset; i--) {
+        header[i] = (byte) ('0' + (value & 7));
+        value >>>= 3;
+      }
+    }
+  }
+
+  /**
+   * Deflated at the fastest level; most documents are compressed formats already.
+   */
+  static class ZipWriter extends ArchiveWriter {
+
+    private final ZipOutputStream zipOutputStream;
+
+    ZipWriter(OutputStream outputStream) {
+      super(outputStream);
+      zipOutputStream = new ZipOutputStream(outputStream);
+      zipOutputStream.setLevel(Deflater.BEST_SPEED);
+    }
+
+    @Override
+    public String getContentType() {
+      return "application/zip";
+    }
+
+    @Override
+    public String getExtension() {
+      return ".zip";
+    }
+
+    @Override
+    public long length(List<Long> sizes) {
+      return -1;
+    }
+
+    @Override
+    public OutputStream putEntry(String name, long size, long lastModified) throws IOException {
+      ZipEntry entry = new ZipEntry(name);
+      entry.setTime(lastModified);
+      zipOutputStream.putNextEntry(entry);
+      return zipOutputStream;
+    }
+
+    @Override
+    public void closeEntry() throws IOException {
+      zipOutputStream.closeEntry();
+    }
+
+    @Override
+    public void finish() throws IOException {
+      zipOutputStream.finish();
+      zipOutputStream.flush();
+    }
+  }
+}
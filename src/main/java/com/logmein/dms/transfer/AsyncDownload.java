@@ -0,0 +1,156 @@
+package com.logmein.dms.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking download of a file region. Positional reads of the file's channel run on the I/O
+ * executor and are written out whenever the servlet output stream is ready, so a slow client
+ * never holds a container thread while waiting for the network.
+ */
+public class AsyncDownload implements WriteListener {
+
+  private static Logger logger = LoggerFactory.getLogger(AsyncDownload.class);
+
+  private final AsyncContext asyncContext;
+  private final FileChannel channel;
+  private final ExecutorService executor;
+  private final ServletOutputStream outputStream;
+  private final ByteBuffer buffer;
+
+  private long position;
+  private long remaining;
+  private boolean readPending;
+  private boolean finished;
+
+  private AsyncDownload(AsyncContext asyncContext, FileChannel channel, ExecutorService executor,
+      ServletOutputStream outputStream, int bufferSize, long position, long count) {
+    this.asyncContext = asyncContext;
+    this.channel = channel;
+    this.executor = executor;
+    this.outputStream = outputStream;
+    this.buffer = ByteBuffer.allocate(bufferSize);
+    this.buffer.flip(); // Start drained, the first onWritePossible issues the first read
+    this.position = position;
+    this.remaining = count;
+  }
+
+  /**
+   * Put the request in async mode and start sending {@code count} bytes of the file open as
+   * {@code channel} from {@code position}. Headers and status must already be set. The channel is
+   * closed once the download ends.
+   */
+  public static void start(HttpServletRequest request, HttpServletResponse response, FileChannel channel,
+      long position, long count, ExecutorService executor, int bufferSize, long timeout)
+      throws IOException {
+    try {
+      AsyncContext asyncContext = request.startAsync();
+      asyncContext.setTimeout(timeout);
+      ServletOutputStream outputStream = response.getOutputStream();
+      outputStream.setWriteListener(new AsyncDownload(asyncContext, channel, executor, outputStream,
+          (int) Math.min(bufferSize, Math.max(count, 1)), position, count));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public synchronized void onWritePossible() throws IOException {
+    pump();
+  }
+
+  @Override
+  public synchronized void onError(Throwable t) {
+    logger.error("Async download aborted: {}", t.getMessage());
+    finish();
+  }
+
+  private synchronized void completed(int bytesRead) {
+    readPending = false;
+    if (bytesRead < 0) {
+      remaining = 0; // File was truncated underneath us
+    } else {
+      position += bytesRead;
+      remaining -= bytesRead;
+    }
+    buffer.flip();
+    try {
+      // If the stream is not ready the container calls onWritePossible once it is
+      if (outputStream.isReady()) {
+        pump();
+      }
+    } catch (IOException e) {
+      onError(e);
+    }
+  }
+
+  private synchronized void failed(Throwable exc) {
+    readPending = false;
+    onError(exc);
+  }
+
+  /**
+   * Fill the buffer from the file on the executor
+   */
+  private void read() {
+    try {
+      executor.execute(() -> {
+        int bytesRead;
+        try {
+          bytesRead = channel.read(buffer, position);
+        } catch (IOException e) {
+          failed(e);
+          return;
+        }
+        completed(bytesRead);
+      });
+    } catch (RejectedExecutionException e) {
+      failed(e);
+    }
+  }
+
+  private void pump() throws IOException {
+    while (!finished && !readPending) {
+      if (buffer.hasRemaining()) {
+        if (!outputStream.isReady()) {
+          return;
+        }
+        outputStream.write(buffer.array(), buffer.position(), buffer.remaining());
+        buffer.position(buffer.limit());
+      } else if (remaining <= 0) {
+        finish();
+      } else {
+        buffer.clear();
+        if (remaining < buffer.capacity()) {
+          buffer.limit((int) remaining);
+        }
+        readPending = true;
+        read();
+      }
+    }
+  }
+
+  private void finish() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.error("Unable to close channel with exception {}", e.getMessage());
+    }
+    asyncContext.complete();
+  }
+}
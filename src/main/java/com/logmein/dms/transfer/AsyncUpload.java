@@ -0,0 +1,182 @@
+package com.logmein.dms.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Checksum;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.logmein.dms.exception.ExceptionConstants;
+
+/**
+ * Non-blocking upload of a raw request body into a file. Data is read whenever the servlet input
+ * stream has some available and written with an {@link AsynchronousFileChannel}; no container
+ * thread waits on a slow client. An optional {@link Checksum} is updated with the body on the way.
+ */
+public class AsyncUpload implements ReadListener, CompletionHandler<Integer, Void> {
+
+  private static Logger logger = LoggerFactory.getLogger(AsyncUpload.class);
+
+  /**
+   * Invoked on completion of the upload to commit the file and write the response.
+   */
+  public interface Callback {
+    void uploaded(Path file, long size, HttpServletResponse response) throws IOException;
+  }
+
+  private final AsyncContext asyncContext;
+  private final AsynchronousFileChannel channel;
+  private final ServletInputStream inputStream;
+  private final ByteBuffer buffer;
+  private final Path file;
+  private final Callback callback;
+  private final long maxSize;
+  private final Checksum checksum;
+
+  private long received;
+  private long position;
+  private boolean writePending;
+  private boolean allRead;
+  private boolean finished;
+
+  private AsyncUpload(AsyncContext asyncContext, AsynchronousFileChannel channel,
+      ServletInputStream inputStream, int bufferSize, long maxSize, Checksum checksum, Path file, Callback callback) {
+    this.asyncContext = asyncContext;
+    this.channel = channel;
+    this.inputStream = inputStream;
+    this.buffer = ByteBuffer.allocate(bufferSize);
+    this.file = file;
+    this.callback = callback;
+    this.maxSize = maxSize;
+    this.checksum = checksum;
+  }
+
+  /**
+   * Put the request in async mode and start writing its body into {@code file}. Bodies over
+   * {@code maxSize} bytes (unless -1) are rejected with 413 as soon as the limit is crossed.
+   *
+   * @param checksum updated with the body, or null
+   */
+  public static void start(HttpServletRequest request, Path file, ExecutorService executor,
+      int bufferSize, long timeout, long maxSize, Checksum checksum, Callback callback) throws IOException {
+    AsynchronousFileChannel channel = AsynchronousFileChannel.open(file,
+        EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), executor);
+    AsyncContext asyncContext = request.startAsync();
+    asyncContext.setTimeout(timeout);
+    ServletInputStream inputStream = request.getInputStream();
+    inputStream.setReadListener(new AsyncUpload(asyncContext, channel, inputStream, bufferSize, maxSize, checksum, file,
+        callback));
+  }
+
+  @Override
+  public synchronized void onDataAvailable() throws IOException {
+    pump();
+  }
+
+  @Override
+  public synchronized void onAllDataRead() throws IOException {
+    allRead = true;
+    if (!writePending) {
+      finish();
+    }
+  }
+
+  @Override
+  public synchronized void onError(Throwable t) {
+    logger.error("Async upload aborted: {}", t.getMessage());
+    abort();
+    asyncContext.complete();
+  }
+
+  @Override
+  public synchronized void completed(Integer bytesWritten, Void attachment) {
+    position += bytesWritten;
+    if (buffer.hasRemaining()) {
+      channel.write(buffer, position, null, this);
+      return;
+    }
+    writePending = false;
+    try {
+      if (allRead) {
+        finish();
+      } else {
+        pump();
+      }
+    } catch (IOException e) {
+      onError(e);
+    }
+  }
+
+  @Override
+  public synchronized void failed(Throwable exc, Void attachment) {
+    writePending = false;
+    onError(exc);
+  }
+
+  private void pump() throws IOException {
+    // Only one write is in flight; the next read resumes from its completion handler
+    while (!writePending && !finished && inputStream.isReady()) {
+      int bytesRead = inputStream.read(buffer.array());
+      if (bytesRead < 0) {
+        return; // onAllDataRead follows
+      }
+      received += bytesRead;
+      if (maxSize >= 0 && received > maxSize) {
+        abort();
+        ((HttpServletResponse) asyncContext.getResponse()).sendError(
+            HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, ExceptionConstants.PAYLOAD_TOO_LARGE);
+        asyncContext.complete();
+        return;
+      }
+      if (bytesRead > 0) {
+        if (checksum != null) {
+          checksum.update(buffer.array(), 0, bytesRead);
+        }
+        buffer.clear();
+        buffer.limit(bytesRead);
+        writePending = true;
+        channel.write(buffer, position, null, this);
+      }
+    }
+  }
+
+  private void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    try {
+      channel.force(false);
+      channel.close();
+      callback.uploaded(file, position, (HttpServletResponse) asyncContext.getResponse());
+    } catch (IOException | RuntimeException e) {
+      logger.error("Unable to complete upload with exception {}", e.getMessage());
+      abort();
+      ((HttpServletResponse) asyncContext.getResponse()).sendError(
+          HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    } finally {
+      asyncContext.complete();
+    }
+  }
+
+  private void abort() {
+    finished = true;
+    try {
+      channel.close();
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.error("Unable to clean up {} with exception {}", file, e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package com.logmein.dms.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.List;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.logmein.dms.http.ByteRange;
+
+/**
+ * Streams stored documents to the client.
+ * 
+ * When the container advertises sendfile support (Tomcat NIO/NIO2/APR connectors) the file region
+ * is handed over to the connector, which sends it with a kernel zero-copy transfer after the
+ * servlet returns. Otherwise the file is read through its {@link FileChannel} into a large buffer
+ * that is reused per thread, so a multi-GB download costs a few thousand syscalls and no garbage.
+ *
+ * Files are read through a channel the caller opened on the version it sends. The connector
+ * opens a sendfile region by name instead, once the servlet returns, so a document replaced in
+ * that moment goes out with the new bytes; it is a short window, not worth giving up sendfile.
+ */
+public class DownloadEngine {
+
+  public static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+  public static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  public static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  public static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+  public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+  // Same threshold Tomcat's DefaultServlet uses; below it a plain copy is cheaper than sendfile.
+  public static final long DEFAULT_SENDFILE_THRESHOLD = 48 * 1024;
+
+  private final boolean sendfileEnabled;
+  private final long sendfileThreshold;
+  private final ThreadLocal<ByteBuffer> buffers;
+
+  public DownloadEngine() {
+    this(true, DEFAULT_SENDFILE_THRESHOLD, DEFAULT_BUFFER_SIZE);
+  }
+
+  public DownloadEngine(boolean sendfileEnabled, long sendfileThreshold, int bufferSize) {
+    this.sendfileEnabled = sendfileEnabled;
+    this.sendfileThreshold = sendfileThreshold;
+    this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(bufferSize));
+  }
+
+  /**
+   * Send {@code count} bytes of {@code file}, open as {@code channel}, starting at
+   * {@code position}. Headers, status and content length must already be set on the response.
+   */
+  public void transfer(FileChannel channel, Path file, long position, long count, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    if (count <= 0) {
+      return;
+    }
+    if (canSendfile(request, count)) {
+      request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+      request.setAttribute(SENDFILE_START, position);
+      request.setAttribute(SENDFILE_END, position + count);
+      return;
+    }
+    copy(channel, position, count, response.getOutputStream());
+  }
+
+  /**
+   * Send several ranges of a document stored in {@code channel} from {@code offset} as a
+   * multipart/byteranges body. Sets the content type and exact content length; the status must
+   * already be set to 206.
+   */
+  public void transferRanges(FileChannel channel, long offset, long totalLength, List<ByteRange> ranges,
+      String contentType, HttpServletResponse response) throws IOException {
+    writeRanges(totalLength, ranges, contentType, response,
+        (position, count, outputStream) -> copy(channel, offset + position, count, outputStream));
+  }
+
+  /**
+   * Send several ranges of in-memory contents as a multipart/byteranges body.
+   */
+  public void transferRanges(ByteBuffer contents, long totalLength, List<ByteRange> ranges, String contentType,
+      HttpServletResponse response) throws IOException {
+    writeRanges(totalLength, ranges, contentType, response,
+        (position, count, outputStream) -> write(contents, position, count, outputStream));
+  }
+
+  private void writeRanges(long totalLength, List<ByteRange> ranges, String contentType,
+      HttpServletResponse response, RegionWriter regionWriter) throws IOException {
+    String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(Double.doubleToLongBits(Math.random()));
+    byte[][] partHeaders = new byte[ranges.size()][];
+    long contentLength = 0;
+    for (int i = 0; i < ranges.size(); i++) {
+      ByteRange range = ranges.get(i);
+      partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: "
+          + range.toContentRange(totalLength) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+      contentLength += partHeaders[i].length + range.getLength();
+    }
+    byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    contentLength += closing.length;
+
+    response.setContentType("multipart/byteranges; boundary=" + boundary);
+    response.setContentLengthLong(contentLength);
+    ServletOutputStream outputStream = response.getOutputStream();
+    for (int i = 0; i < ranges.size(); i++) {
+      outputStream.write(partHeaders[i]);
+      regionWriter.write(ranges.get(i).getStart(), ranges.get(i).getLength(), outputStream);
+    }
+    outputStream.write(closing);
+  }
+
+  /**
+   * Copy a region of an open channel to the output stream with positional reads, so the same
+   * channel can be shared by several ranges of one response.
+   */
+  public void copy(FileChannel channel, long position, long count, OutputStream outputStream)
+      throws IOException {
+    ByteBuffer buffer = buffers.get();
+    long remaining = count;
+    long offset = position;
+    while (remaining > 0) {
+      buffer.clear();
+      if (remaining < buffer.capacity()) {
+        buffer.limit((int) remaining);
+      }
+      int bytesRead = channel.read(buffer, offset);
+      if (bytesRead < 0) {
+        break; // File was truncated underneath us, content length can no longer be honoured
+      }
+      outputStream.write(buffer.array(), 0, bytesRead);
+      offset += bytesRead;
+      remaining -= bytesRead;
+    }
+  }
+
+  /**
+   * Copy a region of a sequential stream, e.g. a decompressing one, skipping up to the position.
+   */
+  public void copy(InputStream inputStream, long position, long count, OutputStream outputStream) throws IOException {
+    long skipped = 0;
+    while (skipped < position) {
+      long n = inputStream.skip(position - skipped);
+      if (n <= 0) {
+        return; // Shorter than expected, nothing of the region to send
+      }
+      skipped += n;
+    }
+    byte[] buffer = buffers.get().array();
+    long remaining = count;
+    while (remaining > 0) {
+      int bytesRead = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (bytesRead < 0) {
+        break;
+      }
+      outputStream.write(buffer, 0, bytesRead);
+      remaining -= bytesRead;
+    }
+  }
+
+  /**
+   * Write a region of in-memory (possibly off-heap) contents through the per-thread buffer.
+   */
+  public void write(ByteBuffer contents, long position, long count, OutputStream outputStream) throws IOException {
+    ByteBuffer source = contents.duplicate();
+    source.position((int) position);
+    source.limit((int) (position + count));
+    byte[] buffer = buffers.get().array();
+    while (source.hasRemaining()) {
+      int length = Math.min(buffer.length, source.remaining());
+      source.get(buffer, 0, length);
+      outputStream.write(buffer, 0, length);
+    }
+  }
+
+  /**
+   * True when the container will send a region of {@code count} bytes with sendfile.
+   */
+  public boolean canSendfile(HttpServletRequest request, long count) {
+    return sendfileEnabled && count >= sendfileThreshold
+        && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED));
+  }
+
+  private interface RegionWriter {
+    void write(long position, long count, OutputStream outputStream) throws IOException;
+  }
+}
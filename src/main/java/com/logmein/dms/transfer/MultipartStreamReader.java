@@ -0,0 +1,208 @@
+package com.logmein.dms.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import com.logmein.dms.exception.ExceptionConstants;
+import com.logmein.dms.exception.MalformedRequestException;
+import com.logmein.dms.exception.PayloadTooLargeException;
+
+/**
+ * Single pass reader of a multipart/form-data body (RFC 7578). Part bodies are handed to the
+ * caller's stream as they arrive, nothing is buffered beyond one read buffer.
+ */
+public class MultipartStreamReader {
+
+  private static final int MAX_HEADER_LINE = 8 * 1024;
+
+  private final InputStream inputStream;
+  private final byte[] delimiter;
+  private final byte[] buffer;
+  private final long maxRequestSize;
+
+  private int start;
+  private int end;
+  private long totalRead;
+  private boolean eof;
+  private boolean started;
+  private boolean lastPart;
+
+  /**
+   * @param maxRequestSize maximum number of body bytes to read, or -1 for no limit
+   */
+  public MultipartStreamReader(InputStream inputStream, String boundary, int bufferSize, long maxRequestSize) {
+    this.inputStream = inputStream;
+    this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+    this.buffer = new byte[Math.max(bufferSize, delimiter.length * 2 + MAX_HEADER_LINE)];
+    this.maxRequestSize = maxRequestSize;
+    // The first boundary has no leading CRLF, pretend it had so every delimiter looks the same
+    buffer[0] = '\r';
+    buffer[1] = '\n';
+    end = 2;
+  }
+
+  /**
+   * Extract the boundary parameter from a multipart Content-Type, or null if it is not multipart.
+   */
+  public static String boundary(String contentType) {
+    if (contentType == null || !contentType.toLowerCase().startsWith("multipart/")) {
+      return null;
+    }
+    for (String parameter : contentType.split(";")) {
+      parameter = parameter.trim();
+      if (parameter.regionMatches(true, 0, "boundary=", 0, 9)) {
+        String boundary = parameter.substring(9).trim();
+        if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+          boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        return boundary.isEmpty() ? null : boundary;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Move to the next part and return its headers with lower case names, or null when there are
+   * no more parts. Any unread body of the current part is skipped.
+   */
+  public Map<String, String> nextPart() throws IOException {
+    if (!started) {
+      started = true;
+      readBody(null, -1); // Preamble
+    }
+    if (lastPart) {
+      return null;
+    }
+    Map<String, String> headers = new HashMap<>();
+    String line;
+    while (!(line = readLine()).isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+      }
+    }
+    return headers;
+  }
+
+  /**
+   * Stream the body of the current part into {@code outputStream} (discarded when null) up to the
+   * next delimiter. Returns the number of body bytes.
+   * 
+   * @param maxSize maximum part size, or -1 for no limit
+   */
+  public long readBody(OutputStream outputStream, long maxSize) throws IOException {
+    long size = 0;
+    while (true) {
+      int match = indexOfDelimiter();
+      int dataEnd = match >= 0 ? match : Math.max(start, end - delimiter.length + 1);
+      int length = dataEnd - start;
+      if (length > 0) {
+        size += length;
+        if (maxSize >= 0 && size > maxSize) {
+          throw new PayloadTooLargeException(ExceptionConstants.PAYLOAD_TOO_LARGE);
+        }
+        if (outputStream != null) {
+          outputStream.write(buffer, start, length);
+        }
+        start = dataEnd;
+      }
+      if (match >= 0) {
+        start = match + delimiter.length;
+        readDelimiterSuffix();
+        return size;
+      }
+      if (!fill()) {
+        throw new MalformedRequestException(ExceptionConstants.MALFORMED_MULTIPART);
+      }
+    }
+  }
+
+  /**
+   * True once the closing delimiter has been read.
+   */
+  public boolean isLastPart() {
+    return lastPart;
+  }
+
+  /**
+   * After a delimiter comes either "--" for the end of the body or CRLF before the next headers.
+   */
+  private void readDelimiterSuffix() throws IOException {
+    ensure(2);
+    if (buffer[start] == '-' && buffer[start + 1] == '-') {
+      lastPart = true;
+      start += 2;
+      return;
+    }
+    readLine(); // Rest of the boundary line, normally empty
+  }
+
+  private String readLine() throws IOException {
+    while (true) {
+      for (int i = start; i < end - 1; i++) {
+        if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+          String line = new String(buffer, start, i - start, StandardCharsets.UTF_8);
+          start = i + 2;
+          return line;
+        }
+      }
+      if (end - start >= MAX_HEADER_LINE || !fill()) {
+        throw new MalformedRequestException(ExceptionConstants.MALFORMED_MULTIPART);
+      }
+    }
+  }
+
+  private int indexOfDelimiter() {
+    byte first = delimiter[0];
+    int last = end - delimiter.length;
+    outer:
+    for (int i = start; i <= last; i++) {
+      if (buffer[i] != first) {
+        continue;
+      }
+      for (int j = 1; j < delimiter.length; j++) {
+        if (buffer[i + j] != delimiter[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private void ensure(int count) throws IOException {
+    while (end - start < count) {
+      if (!fill()) {
+        throw new MalformedRequestException(ExceptionConstants.MALFORMED_MULTIPART);
+      }
+    }
+  }
+
+  /**
+   * Compact the buffer and read more data. Returns false at end of stream.
+   */
+  private boolean fill() throws IOException {
+    if (eof) {
+      return false;
+    }
+    if (start > 0) {
+      System.arraycopy(buffer, start, buffer, 0, end - start);
+      end -= start;
+      start = 0;
+    }
+    int bytesRead = inputStream.read(buffer, end, buffer.length - end);
+    if (bytesRead < 0) {
+      eof = true;
+      return false;
+    }
+    end += bytesRead;
+    totalRead += bytesRead;
+    if (maxRequestSize >= 0 && totalRead > maxRequestSize) {
+      throw new PayloadTooLargeException(ExceptionConstants.PAYLOAD_TOO_LARGE);
+    }
+    return true;
+  }
+}
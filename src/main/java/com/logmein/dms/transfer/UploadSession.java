@@ -0,0 +1,211 @@
+package com.logmein.dms.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import com.logmein.dms.exception.ExceptionConstants;
+import com.logmein.dms.exception.MalformedRequestException;
+import com.logmein.dms.exception.PayloadTooLargeException;
+import com.logmein.dms.storage.DocumentEntry;
+import com.logmein.dms.storage.DocumentWriter;
+
+/**
+ * A document uploaded in chunks over several requests. Chunks may arrive in any order and in
+ * parallel; each one is written at its offset in the writer's staging file with positional
+ * {@link FileChannel} writes, so concurrent chunks never contend for a file position.
+ *
+ * Only chunks received completely are recorded, which lets a client resume by asking for the
+ * received ranges and sending the rest.
+ */
+public class UploadSession {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final String uploadId;
+  private final DocumentWriter writer;
+  private final long length;
+  private final long maxSize;
+  private final FileChannel channel;
+
+  /** Chunks write under the read lock, in parallel; commit and abort take the write lock */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** Received ranges, start to exclusive end, merged when adjacent. Guarded by itself */
+  private final TreeMap<Long, Long> received = new TreeMap<>();
+
+  private volatile long lastActivity = System.currentTimeMillis();
+  private volatile Object attachment;
+  private boolean closed;
+
+  /**
+   * @param length declared size of the document, or -1 if the client did not tell
+   * @param maxSize largest document accepted, or -1 for no limit
+   */
+  UploadSession(String uploadId, DocumentWriter writer, long length, long maxSize) throws IOException {
+    this.uploadId = uploadId;
+    this.writer = writer;
+    this.length = length;
+    this.maxSize = maxSize;
+    this.channel = FileChannel.open(writer.getStagingFile(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+  }
+
+  public String getUploadId() {
+    return uploadId;
+  }
+
+  public String getDocumentId() {
+    return writer.getDocumentId();
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  long getLastActivity() {
+    return lastActivity;
+  }
+
+  /**
+   * Keep an object with the session, e.g. what the opening request said about the document
+   */
+  public void attach(Object attachment) {
+    this.attachment = attachment;
+  }
+
+  public Object attachment() {
+    return attachment;
+  }
+
+  /**
+   * Write a chunk read from the stream at the given offset and return its size. A chunk that
+   * fails half way is not recorded and may simply be sent again.
+   */
+  public long write(long offset, InputStream inputStream) throws IOException {
+    if (offset < 0) {
+      throw new MalformedRequestException(ExceptionConstants.CHUNK_OUT_OF_BOUNDS);
+    }
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      lastActivity = System.currentTimeMillis();
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      long position = offset;
+      int bytesRead;
+      while ((bytesRead = inputStream.read(buffer.array())) != -1) {
+        if (length >= 0 && position + bytesRead > length) {
+          throw new MalformedRequestException(ExceptionConstants.CHUNK_OUT_OF_BOUNDS);
+        } else if (maxSize >= 0 && position + bytesRead > maxSize) {
+          throw new PayloadTooLargeException(ExceptionConstants.PAYLOAD_TOO_LARGE);
+        }
+        buffer.clear().limit(bytesRead);
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+      }
+      if (position > offset) {
+        addRange(offset, position);
+      }
+      lastActivity = System.currentTimeMillis();
+      return position - offset;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Received ranges as start and inclusive end pairs, in order
+   */
+  public List<long[]> getReceivedRanges() {
+    List<long[]> ranges = new ArrayList<>();
+    synchronized (received) {
+      for (Map.Entry<Long, Long> range : received.entrySet()) {
+        ranges.add(new long[] { range.getKey(), range.getValue() - 1 });
+      }
+    }
+    return ranges;
+  }
+
+  /**
+   * True when the received chunks cover the document from the first byte without gaps, up to the
+   * declared length if there is one
+   */
+  public boolean isComplete() {
+    synchronized (received) {
+      return received.size() == 1 && received.firstKey() == 0 && (length < 0 || received.firstEntry().getValue() == length);
+    }
+  }
+
+  /**
+   * Publish the document once every chunk is in. Fails without closing the session when a chunk
+   * is missing, so the client can still send it.
+   */
+  public DocumentEntry commit() throws IOException {
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      if (!isComplete()) {
+        throw new MalformedRequestException(ExceptionConstants.UPLOAD_INCOMPLETE);
+      }
+      closed = true;
+      channel.close();
+      try {
+        return writer.commit();
+      } finally {
+        writer.abort();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Discard the received chunks. Waits for chunks being written; does nothing once committed.
+   */
+  public void abort() {
+    lock.writeLock().lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // The staging file is deleted anyway
+      }
+      writer.abort();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new MalformedRequestException(ExceptionConstants.UPLOAD_CLOSED);
+    }
+  }
+
+  private void addRange(long start, long end) {
+    synchronized (received) {
+      Map.Entry<Long, Long> before = received.floorEntry(start);
+      if (before != null && before.getValue() >= start) {
+        start = before.getKey();
+        end = Math.max(end, before.getValue());
+      }
+      Map.Entry<Long, Long> after;
+      while ((after = received.ceilingEntry(start)) != null && after.getKey() <= end) {
+        end = Math.max(end, after.getValue());
+        received.remove(after.getKey());
+      }
+      received.put(start, end);
+    }
+  }
+}
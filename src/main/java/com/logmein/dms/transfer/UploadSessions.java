@@ -0,0 +1,90 @@
+package com.logmein.dms.transfer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.logmein.dms.storage.DocumentWriter;
+import com.logmein.dms.util.AlphaNumericGenerator;
+
+/**
+ * The open chunked upload sessions. Sessions live in memory only: an upload interrupted by a
+ * restart starts over.
+ */
+public class UploadSessions {
+
+  private static Logger logger = LoggerFactory.getLogger(UploadSessions.class);
+
+  private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+  /**
+   * Start a session writing into the given writer's staging file
+   *
+   * @param length declared size of the document, or -1 if unknown
+   * @param maxSize largest document accepted, or -1 for no limit
+   */
+  public UploadSession open(DocumentWriter writer, long length, long maxSize) throws IOException {
+    while (true) {
+      String uploadId = AlphaNumericGenerator.generateNextAlphaNumericId();
+      if (!sessions.containsKey(uploadId)) {
+        UploadSession session = new UploadSession(uploadId, writer, length, maxSize);
+        if (sessions.putIfAbsent(uploadId, session) == null) {
+          return session;
+        }
+        session.abort();
+      }
+    }
+  }
+
+  /**
+   * The open session, or null if it is unknown, committed, aborted or expired
+   */
+  public UploadSession get(String uploadId) {
+    return sessions.get(uploadId);
+  }
+
+  /**
+   * Forget the session, e.g. once committed or aborted. Returns false if it was already gone.
+   */
+  public boolean remove(UploadSession session) {
+    return sessions.remove(session.getUploadId(), session);
+  }
+
+  public int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Abort and forget the sessions without any chunk for the given time. Returns the expired
+   * sessions so their owner can release what they hold.
+   */
+  public List<UploadSession> expire(long idleMillis) {
+    return abortIdleSince(System.currentTimeMillis() - idleMillis);
+  }
+
+  /**
+   * Abort every session, on shutdown
+   */
+  public List<UploadSession> abortAll() {
+    return abortIdleSince(Long.MAX_VALUE);
+  }
+
+  private List<UploadSession> abortIdleSince(long deadline) {
+    List<UploadSession> expired = new ArrayList<>();
+    for (Iterator<UploadSession> iterator = sessions.values().iterator(); iterator.hasNext();) {
+      UploadSession session = iterator.next();
+      if (session.getLastActivity() < deadline) {
+        iterator.remove();
+        session.abort();
+        expired.add(session);
+        logger.info("Upload {} aborted after {} ms without a chunk", session.getUploadId(),
+            System.currentTimeMillis() - session.getLastActivity());
+      }
+    }
+    return expired;
+  }
+}
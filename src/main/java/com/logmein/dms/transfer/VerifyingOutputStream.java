@@ -0,0 +1,86 @@
+package com.logmein.dms.transfer;
+
+import java.io.IOException;
+import java.util.zip.Checksum;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import com.logmein.dms.exception.ChecksumMismatchException;
+import com.logmein.dms.exception.ExceptionConstants;
+import com.logmein.dms.util.Crc32c;
+
+/**
+ * Response stream checking a whole document against its CRC32C as it is sent. The write that
+ * completes the document only goes out once the checksum matches, so a client never receives a
+ * complete but corrupt body: the response fails, or is cut short once it is committed.
+ *
+ * Only bytes passing through the JVM are checked; a region handed to the connector with sendfile
+ * is not.
+ */
+public class VerifyingOutputStream extends ServletOutputStream {
+
+  private final ServletOutputStream out;
+  private final long length;
+  private final long expected;
+  private final Checksum checksum = Crc32c.create();
+  private long written;
+
+  public VerifyingOutputStream(ServletOutputStream out, long length, long crc32c) {
+    this.out = out;
+    this.length = length;
+    this.expected = crc32c;
+  }
+
+  /**
+   * The response with its output stream checking the {@code length} bytes of a document
+   */
+  public static HttpServletResponse wrap(HttpServletResponse response, long length, long crc32c) {
+    return new HttpServletResponseWrapper(response) {
+      private VerifyingOutputStream outputStream;
+
+      @Override
+      public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+          outputStream = new VerifyingOutputStream(response.getOutputStream(), length, crc32c);
+        }
+        return outputStream;
+      }
+    };
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checksum.update(b, off, len);
+    written += len;
+    if (written >= length && checksum.getValue() != expected) {
+      throw new ChecksumMismatchException(ExceptionConstants.CHECKSUM_MISMATCH);
+    }
+    out.write(b, off, len);
+  }
+
+  @Override
+  public boolean isReady() {
+    return out.isReady();
+  }
+
+  @Override
+  public void setWriteListener(WriteListener writeListener) {
+    out.setWriteListener(writeListener);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+}
@@ -1,22 +1,59 @@
 package com.logmein.dms.util;
 
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
-/*
- * Reference from https://www.baeldung.com/java-random-string 
+/**
+ * Generates fixed length document Ids over [0-9A-Za-z]. Every character is drawn directly from the
+ * 62 symbol alphabet, so no value is thrown away, and nothing is allocated but the result.
+ *
+ * In time ordered mode the first characters encode the creation time in milliseconds, so Ids sort
+ * lexicographically by creation time (ULID style) and consecutive uploads land close to each other
+ * in the index and in the shard directories.
  */
 public class AlphaNumericGenerator {
 
-  private static final int LEFT_LIMIT = 48; // numeral '0'
-  private static final int RIGHT_LIMIT = 122; // alphabet 'z'
-  private static final int ALPHA_NUMERIC_ID_LENGTH = 20;
+  public static final int ALPHA_NUMERIC_ID_LENGTH = 20;
+
+  /** In ascending ASCII order, so that the string order of Ids is their numeric order */
+  private static final char[] ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+
+  /** 62^8 milliseconds last until the year 8888 */
+  private static final int TIMESTAMP_LENGTH = 8;
+
+  private static final AlphaNumericGenerator DEFAULT = new AlphaNumericGenerator(false, null);
+
+  private final boolean timeOrdered;
+  private final Random random;
+
+  /**
+   * @param random source of randomness, e.g. a {@link java.security.SecureRandom}, or null for
+   *          {@link ThreadLocalRandom}
+   */
+  public AlphaNumericGenerator(boolean timeOrdered, Random random) {
+    this.timeOrdered = timeOrdered;
+    this.random = random;
+  }
 
   public static String generateNextAlphaNumericId() {
-    Random random = new Random();
-    return random.ints(LEFT_LIMIT, RIGHT_LIMIT + 1)
-        .filter(i -> (i <= 57 || i >= 65) && (i <= 90 || i >= 97))
-        .limit(ALPHA_NUMERIC_ID_LENGTH)
-        .collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append)
-        .toString();
+    return DEFAULT.next();
+  }
+
+  public String next() {
+    Random source = random != null ? random : ThreadLocalRandom.current();
+    char[] id = new char[ALPHA_NUMERIC_ID_LENGTH];
+    int start = 0;
+    if (timeOrdered) {
+      long time = System.currentTimeMillis();
+      for (int i = TIMESTAMP_LENGTH - 1; i >= 0; i--) {
+        id[i] = ALPHABET[(int) (time % ALPHABET.length)];
+        time /= ALPHABET.length;
+      }
+      start = TIMESTAMP_LENGTH;
+    }
+    for (int i = start; i < id.length; i++) {
+      id[i] = ALPHABET[source.nextInt(ALPHABET.length)];
+    }
+    return new String(id);
   }
 }
@@ -0,0 +1,43 @@
+package com.logmein.dms.util;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+/**
+ * Run an action once an asynchronous request is over, whether it completed, failed or timed out.
+ * The container always ends with onComplete, so that is the only event acted on.
+ */
+public final class AsyncCompletion implements AsyncListener {
+
+  private final Runnable action;
+
+  private AsyncCompletion(Runnable action) {
+    this.action = action;
+  }
+
+  /**
+   * Must be called from the dispatch that started the asynchronous cycle, so that the completion
+   * cannot be missed
+   */
+  public static void onComplete(AsyncContext asyncContext, Runnable action) {
+    asyncContext.addListener(new AsyncCompletion(action));
+  }
+
+  @Override
+  public void onComplete(AsyncEvent event) {
+    action.run();
+  }
+
+  @Override
+  public void onTimeout(AsyncEvent event) {
+  }
+
+  @Override
+  public void onError(AsyncEvent event) {
+  }
+
+  @Override
+  public void onStartAsync(AsyncEvent event) {
+  }
+}
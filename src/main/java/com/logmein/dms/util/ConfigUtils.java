@@ -0,0 +1,34 @@
+package com.logmein.dms.util;
+
+import javax.servlet.ServletConfig;
+
+/*
+ * Servlet settings are looked up as init-param first, then as "dms.<name>" system property.
+ */
+public class ConfigUtils {
+
+  private static final String SYSTEM_PROPERTY_PREFIX = "dms.";
+
+  public static String getString(ServletConfig config, String name, String defaultValue) {
+    String value = config == null ? null : config.getInitParameter(name);
+    if (value == null) {
+      value = System.getProperty(SYSTEM_PROPERTY_PREFIX + name);
+    }
+    return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+  }
+
+  public static long getLong(ServletConfig config, String name, long defaultValue) {
+    String value = getString(config, name, null);
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
+  public static int getInt(ServletConfig config, String name, int defaultValue) {
+    String value = getString(config, name, null);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  public static boolean getBoolean(ServletConfig config, String name, boolean defaultValue) {
+    String value = getString(config, name, null);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+}
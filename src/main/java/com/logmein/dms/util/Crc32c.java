@@ -0,0 +1,112 @@
+package com.logmein.dms.util;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), the checksum of iSCSI, ext4 and the object stores, which
+ * {@code java.util.zip} only has from Java 9 on. Table driven, eight bytes per step
+ * ("slicing-by-8"); {@link #create()} hands out the JDK's intrinsic implementation instead when the
+ * JVM has one.
+ */
+public final class Crc32c implements Checksum {
+
+  private static final int POLYNOMIAL = 0x82F63B78; // Bit reversed
+
+  private static final int[][] TABLES = new int[8][256];
+
+  static {
+    for (int n = 0; n < 256; n++) {
+      int crc = n;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+      }
+      TABLES[0][n] = crc;
+    }
+    for (int n = 0; n < 256; n++) {
+      for (int k = 1; k < 8; k++) {
+        TABLES[k][n] = (TABLES[k - 1][n] >>> 8) ^ TABLES[0][TABLES[k - 1][n] & 0xFF];
+      }
+    }
+  }
+
+  private static final Constructor<? extends Checksum> INTRINSIC = intrinsic();
+
+  private int crc = 0xFFFFFFFF;
+
+  /**
+   * A new CRC-32C, the JDK's one when available
+   */
+  public static Checksum create() {
+    if (INTRINSIC != null) {
+      try {
+        return INTRINSIC.newInstance();
+      } catch (ReflectiveOperationException e) {
+        // Checked when it was looked up
+      }
+    }
+    return new Crc32c();
+  }
+
+  private static Constructor<? extends Checksum> intrinsic() {
+    try {
+      Constructor<? extends Checksum> constructor = Class.forName("java.util.zip.CRC32C")
+          .asSubclass(Checksum.class).getConstructor();
+      constructor.newInstance();
+      return constructor;
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return null; // Java 8
+    }
+  }
+
+  @Override
+  public void update(int b) {
+    crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+  }
+
+  @Override
+  public void update(byte[] b, int off, int len) {
+    int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+    int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+    int c = crc;
+    int end = off + len;
+    for (; off + 8 <= end; off += 8) {
+      int low = c ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+      int high = (b[off + 4] & 0xFF) | (b[off + 5] & 0xFF) << 8 | (b[off + 6] & 0xFF) << 16 | (b[off + 7] & 0xFF) << 24;
+      c = t7[low & 0xFF] ^ t6[(low >>> 8) & 0xFF] ^ t5[(low >>> 16) & 0xFF] ^ t4[low >>> 24]
+          ^ t3[high & 0xFF] ^ t2[(high >>> 8) & 0xFF] ^ t1[(high >>> 16) & 0xFF] ^ t0[high >>> 24];
+    }
+    for (; off < end; off++) {
+      c = (c >>> 8) ^ t0[(c ^ b[off]) & 0xFF];
+    }
+    crc = c;
+  }
+
+  /**
+   * Update with the remaining bytes of the buffer, leaving it at its limit
+   */
+  public void update(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      buffer.position(buffer.limit());
+      return;
+    }
+    byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+    while (buffer.hasRemaining()) {
+      int length = Math.min(chunk.length, buffer.remaining());
+      buffer.get(chunk, 0, length);
+      update(chunk, 0, length);
+    }
+  }
+
+  @Override
+  public long getValue() {
+    return ~crc & 0xFFFFFFFFL;
+  }
+
+  @Override
+  public void reset() {
+    crc = 0xFFFFFFFF;
+  }
+}
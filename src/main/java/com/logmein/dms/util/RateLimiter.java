@@ -0,0 +1,41 @@
+package com.logmein.dms.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket pacing background I/O to a number of bytes per second, with up to one second of
+ * unused budget saved for bursts.
+ */
+public final class RateLimiter {
+
+  private final long bytesPerSecond;
+  private double available;
+  private long refilled = System.nanoTime();
+
+  /**
+   * @param bytesPerSecond sustained rate, 0 or less for no limit
+   */
+  public RateLimiter(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  /**
+   * Wait until the given number of bytes may be transferred
+   */
+  public void acquire(long bytes) throws InterruptedException {
+    if (bytesPerSecond <= 0) {
+      return;
+    }
+    long waitNanos;
+    synchronized (this) {
+      long now = System.nanoTime();
+      available = Math.min(bytesPerSecond, available + (now - refilled) * bytesPerSecond / 1e9);
+      refilled = now;
+      available -= bytes; // Debt is paid back by waiting
+      waitNanos = available < 0 ? (long) (-available * 1e9 / bytesPerSecond) : 0;
+    }
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+}
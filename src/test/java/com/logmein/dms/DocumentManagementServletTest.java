@@ -1,12 +1,19 @@
 package com.logmein.dms;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
@@ -14,12 +21,17 @@ import org.apache.log4j.BasicConfigurator;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
 import com.logmein.dms.exception.ExceptionConstants;
+import com.logmein.dms.http.Preconditions;
+import com.logmein.dms.storage.DocumentEntry;
+import com.logmein.dms.storage.FileSystemDocumentStore;
+import com.logmein.dms.storage.StorageLayout;
 
 @RunWith(MockitoJUnitRunner.class)
 public class DocumentManagementServletTest {
@@ -36,6 +48,9 @@ public class DocumentManagementServletTest {
   @Mock
   PrintWriter writer;
   
+  @Mock
+  ServletOutputStream outputStream;
+  
   @Mock
   private HttpServletResponse response;
   
@@ -48,6 +63,16 @@ public class DocumentManagementServletTest {
     BasicConfigurator.configure();
   }
   
+  /**
+   * Make the mocked part write its content to the given file name like a container Part does
+   */
+  private void writePartContent(String content) throws IOException {
+    Mockito.doAnswer(invocation -> {
+      Files.write(Paths.get((String) invocation.getArguments()[0]), content.getBytes());
+      return null;
+    }).when(part).write(Mockito.anyString());
+  }
+  
   @Test
   public void missingFileInPartWhilePost() throws IOException, ServletException {
    List<Part> mockParts = new ArrayList<>(); 
@@ -163,6 +188,8 @@ public class DocumentManagementServletTest {
   @Test
   public void documentUploadWhilePost() throws IOException, ServletException {
     Path directoryPath = Files.createTempDirectory("logmein_dms");
+    servlet.setDirPath(directoryPath);
+    writePartContent("test");
     List<Part> mockParts = new ArrayList<>();
     mockParts.add(part);
     Mockito.when(request.getParts()).thenReturn(mockParts);
@@ -171,7 +198,7 @@ public class DocumentManagementServletTest {
     Mockito.when(response.getWriter()).thenReturn(writer);
 
     servlet.doPost(request, response);
-    Files.delete(directoryPath);
+    servlet.destroy();
     Mockito.verify(response, Mockito.times(1)).setStatus(HttpServletResponse.SC_CREATED);
   }
    
@@ -186,9 +213,10 @@ public class DocumentManagementServletTest {
     mockParts.add(part);
     Mockito.when(request.getParts()).thenReturn(mockParts);
     Mockito.when(part.getSize()).thenReturn(1L);
-    Mockito.when(part.getSubmittedFileName()).thenReturn("test.pdf");
+    Mockito.when(part.getSubmittedFileName()).thenReturn("test.txt");
     Mockito.when(request.getPathInfo()).thenReturn("/"+file.toFile().getName().substring(0, file.toFile().getName().lastIndexOf(".")));
     Mockito.when(response.getWriter()).thenReturn(writer);
+    writePartContent("replaced");
 
     servlet.doPut(request, response);
     servlet.destroy();
@@ -235,4 +263,287 @@ public class DocumentManagementServletTest {
     servlet.destroy();
     Mockito.verify(response, Mockito.times(1)).setStatus(HttpServletResponse.SC_NO_CONTENT);
   }
+
+  @Test
+  public void documentRangeGet() throws IOException, ServletException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    servlet.setDirPath(directoryPath);
+    Path file = Files.createTempFile(directoryPath, "5kPbqhGCRBDH5PKraEfP", ".txt");
+    Files.write(file, "0123456789".getBytes());
+    Mockito.when(request.getPathInfo()).thenReturn("/"+file.toFile().getName().substring(0, file.toFile().getName().lastIndexOf(".")));
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=2-5");
+    Mockito.when(response.getOutputStream()).thenReturn(outputStream);
+
+    servlet.doGet(request, response);
+    servlet.destroy();
+    Mockito.verify(response, Mockito.times(1)).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response, Mockito.times(1)).setHeader("Content-Range", "bytes 2-5/10");
+    Mockito.verify(response, Mockito.times(1)).setContentLengthLong(4L);
+  }
+
+  @Test
+  public void documentNotModifiedGet() throws IOException, ServletException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    Path file = Files.createTempFile(directoryPath, "5kPbqhGCRBDH5PKraEfP", ".txt");
+    servlet.setDirPath(directoryPath);
+    Mockito.when(request.getPathInfo()).thenReturn("/"+file.toFile().getName().substring(0, file.toFile().getName().lastIndexOf(".")));
+    Mockito.when(request.getHeader("If-None-Match")).thenReturn("*");
+
+    servlet.doGet(request, response);
+    servlet.destroy();
+    Mockito.verify(response, Mockito.times(1)).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(response, Mockito.never()).getOutputStream();
+  }
+
+  @Test
+  public void revalidationAndHeadDoNotOpenTheFile() throws IOException, ServletException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    Files.write(directoryPath.resolve("5kPbqhGCRBDH5PKraEfP.txt"), "0123456789".getBytes());
+    AtomicInteger opened = new AtomicInteger();
+    servlet.setDocumentStore(new FileSystemDocumentStore(directoryPath, StorageLayout.FLAT) {
+      @Override
+      public FileChannel openFile(DocumentEntry document) throws IOException {
+        opened.incrementAndGet();
+        return super.openFile(document);
+      }
+    });
+    Mockito.when(request.getPathInfo()).thenReturn("/5kPbqhGCRBDH5PKraEfP");
+    Mockito.when(request.getMethod()).thenReturn("GET");
+    Mockito.when(request.getHeader("If-None-Match")).thenReturn("*");
+
+    servlet.doGet(request, response);
+    Mockito.verify(response, Mockito.times(1)).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+    Mockito.when(request.getMethod()).thenReturn("HEAD");
+    Mockito.when(request.getHeader("If-None-Match")).thenReturn(null);
+    servlet.doGet(request, response);
+    servlet.destroy();
+    Mockito.verify(response, Mockito.times(1)).setContentLengthLong(10L);
+    Mockito.verify(response, Mockito.never()).getOutputStream();
+    org.junit.Assert.assertEquals(0, opened.get());
+  }
+
+  @Test
+  public void batchGet() throws IOException, ServletException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    servlet.setDirPath(directoryPath);
+    Files.write(directoryPath.resolve("5kPbqhGCRBDH5PKraEfP.txt"), "first".getBytes());
+    Files.write(directoryPath.resolve("Zz9bqhGCRBDH5PKraEfP.pdf"), "second".getBytes());
+    Mockito.when(request.getServletPath()).thenReturn("/storage/batch");
+    Mockito.when(request.getParameterValues("id")).thenReturn(new String[] { "5kPbqhGCRBDH5PKraEfP,Zz9bqhGCRBDH5PKraEfP" });
+    Mockito.when(response.getOutputStream()).thenReturn(outputStream);
+
+    servlet.doGet(request, response);
+    servlet.destroy();
+    Mockito.verify(response, Mockito.times(1)).setStatus(HttpServletResponse.SC_OK);
+    Mockito.verify(response, Mockito.times(1)).setContentType("application/x-tar");
+    Mockito.verify(response, Mockito.times(1)).setContentLengthLong(6 * 512L);
+  }
+
+  @Test
+  public void batchDeleteIsAllOrNothing() throws IOException, ServletException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    servlet.setDirPath(directoryPath);
+    Path file = Files.createFile(directoryPath.resolve("5kPbqhGCRBDH5PKraEfP.txt"));
+    Mockito.when(request.getServletPath()).thenReturn("/storage/batch");
+    Mockito.when(request.getParameterValues("id")).thenReturn(new String[] { "5kPbqhGCRBDH5PKraEfP", "Zz9bqhGCRBDH5PKraEfP" });
+
+    servlet.doDelete(request, response);
+    Mockito.verify(response, Mockito.times(1)).sendError(HttpServletResponse.SC_NOT_FOUND, ExceptionConstants.DOCUMENT_NOT_FOUND);
+    org.junit.Assert.assertTrue(Files.exists(file));
+
+    Mockito.when(request.getParameterValues("id")).thenReturn(new String[] { "5kPbqhGCRBDH5PKraEfP" });
+    servlet.doDelete(request, response);
+    servlet.destroy();
+    Mockito.verify(response, Mockito.times(1)).setStatus(HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  @Test
+  public void batchIdsMissingWhileDelete() throws IOException, ServletException {
+    Mockito.when(request.getServletPath()).thenReturn("/storage/batch");
+    Mockito.when(request.getReader()).thenReturn(new java.io.BufferedReader(new java.io.StringReader("")));
+    servlet.doDelete(request, response);
+    Mockito.verify(response, Mockito.times(1)).sendError(HttpServletResponse.SC_BAD_REQUEST, ExceptionConstants.DOCUMENT_IDS_MISSING);
+  }
+
+  @Test
+  public void batchUploadWhilePost() throws IOException, ServletException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    servlet.setDirPath(directoryPath);
+    writePartContent("test");
+    Part secondPart = Mockito.mock(Part.class);
+    Mockito.doAnswer(invocation -> {
+      Files.write(Paths.get((String) invocation.getArguments()[0]), "second".getBytes());
+      return null;
+    }).when(secondPart).write(Mockito.anyString());
+    List<Part> mockParts = new ArrayList<>();
+    mockParts.add(part);
+    mockParts.add(secondPart);
+    Mockito.when(request.getServletPath()).thenReturn("/storage/batch");
+    Mockito.when(request.getParts()).thenReturn(mockParts);
+    Mockito.when(part.getSize()).thenReturn(4L);
+    Mockito.when(part.getSubmittedFileName()).thenReturn("test.pdf");
+    Mockito.when(secondPart.getSize()).thenReturn(6L);
+    Mockito.when(secondPart.getSubmittedFileName()).thenReturn("test.txt");
+    Mockito.when(response.getWriter()).thenReturn(writer);
+
+    servlet.doPost(request, response);
+    org.junit.Assert.assertEquals(2, servlet.getDocumentStore().size());
+    servlet.destroy();
+    Mockito.verify(response, Mockito.times(1)).setStatus(HttpServletResponse.SC_CREATED);
+  }
+
+  @Test
+  public void chunkedUploadWhilePostAndPut() throws IOException, ServletException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    servlet.setDirPath(directoryPath);
+    Mockito.when(request.getServletPath()).thenReturn("/storage/uploads");
+    Mockito.when(request.getRequestURI()).thenReturn("/dms/storage/uploads");
+    Mockito.when(request.getHeader("Content-Disposition")).thenReturn("attachment; filename=\"large.txt\"");
+    Mockito.when(request.getParameter("length")).thenReturn("10");
+    Mockito.when(response.getWriter()).thenReturn(writer);
+    servlet.doPost(request, response);
+    ArgumentCaptor<CharSequence> body = ArgumentCaptor.forClass(CharSequence.class);
+    Mockito.verify(writer).append(body.capture());
+    String uploadId = body.getValue().toString();
+
+    Mockito.when(request.getPathInfo()).thenReturn("/" + uploadId);
+    Mockito.when(request.getParameter("offset")).thenReturn("5");
+    Mockito.when(request.getInputStream()).thenReturn(servletInputStream("world"));
+    servlet.doPut(request, response);
+    servlet.doPost(request, response);
+    Mockito.verify(response, Mockito.times(1)).sendError(HttpServletResponse.SC_BAD_REQUEST, ExceptionConstants.UPLOAD_INCOMPLETE);
+
+    Mockito.when(request.getParameter("offset")).thenReturn("0");
+    Mockito.when(request.getInputStream()).thenReturn(servletInputStream("hello"));
+    servlet.doPut(request, response);
+    servlet.doPost(request, response);
+    Mockito.verify(writer, Mockito.times(2)).append(body.capture());
+    org.junit.Assert.assertEquals("helloworld",
+        new String(Files.readAllBytes(servlet.getDocumentStore().get(body.getValue().toString()).getPath())));
+
+    servlet.doPut(request, response);
+    servlet.destroy();
+    Mockito.verify(response, Mockito.times(1)).sendError(HttpServletResponse.SC_NOT_FOUND, ExceptionConstants.UPLOAD_NOT_FOUND);
+  }
+
+@Test
+  public void metadataOfUploadedDocument() throws IOException, ServletException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    servlet.setDirPath(directoryPath);
+    writePartContent("report");
+    List<Part> mockParts = new ArrayList<>();
+    mockParts.add(part);
+    Mockito.when(request.getParts()).thenReturn(mockParts);
+    Mockito.when(part.getSize()).thenReturn(6L);
+    Mockito.when(part.getSubmittedFileName()).thenReturn("Quarterly \"Q3\".pdf");
+    Mockito.when(part.getContentType()).thenReturn("application/pdf");
+    Mockito.when(request.getParameterValues("tag")).thenReturn(new String[] { "finance,q3" });
+    Mockito.when(response.getWriter()).thenReturn(writer);
+    Mockito.when(response.getOutputStream()).thenReturn(outputStream);
+    servlet.doPost(request, response);
+    ArgumentCaptor<CharSequence> body = ArgumentCaptor.forClass(CharSequence.class);
+    Mockito.verify(writer).append(body.capture());
+    String documentId = body.getValue().toString();
+
+    Mockito.when(request.getPathInfo()).thenReturn("/" + documentId);
+    servlet.doGet(request, response);
+    Mockito.verify(response).setHeader("Content-Disposition", "attachment; filename=\"Quarterly \\\"Q3\\\".pdf\"");
+
+    Mockito.when(request.getServletPath()).thenReturn("/storage/metadata");
+    Mockito.when(request.getPathInfo()).thenReturn(null);
+    Mockito.when(request.getParameter("tag")).thenReturn("finance");
+    Mockito.when(request.getParameter("type")).thenReturn("application/*");
+    servlet.doGet(request, response);
+    servlet.destroy();
+    Mockito.verify(writer, Mockito.times(2)).append(body.capture());
+    String json = body.getValue().toString();
+    org.junit.Assert.assertTrue(json, json.startsWith("{\"documents\":[{\"id\":\"" + documentId + "\""));
+    org.junit.Assert.assertTrue(json, json.contains("\"contentType\":\"application/pdf\",\"size\":6"));
+    org.junit.Assert.assertTrue(json, json.endsWith("\"tags\":[\"finance\",\"q3\"]}],\"next\":null}"));
+  }
+
+@Test
+  public void corruptDocumentFailsItsChecksum() throws IOException, ServletException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    servlet.setDirPath(directoryPath);
+    writePartContent("123456789");
+    List<Part> mockParts = new ArrayList<>();
+    mockParts.add(part);
+    Mockito.when(request.getParts()).thenReturn(mockParts);
+    Mockito.when(part.getSize()).thenReturn(9L);
+    Mockito.when(part.getSubmittedFileName()).thenReturn("digits.txt");
+    Mockito.when(response.getWriter()).thenReturn(writer);
+    Mockito.when(response.getOutputStream()).thenReturn(outputStream);
+    servlet.doPost(request, response);
+    ArgumentCaptor<CharSequence> body = ArgumentCaptor.forClass(CharSequence.class);
+    Mockito.verify(writer).append(body.capture());
+    String documentId = body.getValue().toString();
+
+    Mockito.when(request.getPathInfo()).thenReturn("/" + documentId);
+    servlet.doGet(request, response);
+    Mockito.verify(response).setHeader("Digest", "crc32c=4waSgw==");
+    Mockito.verify(outputStream).write(Mockito.any(byte[].class), Mockito.eq(0), Mockito.eq(9));
+
+    Files.write(servlet.getDocumentStore().get(documentId).getPath(), "123456780".getBytes());
+    servlet.doGet(request, response);
+    servlet.destroy();
+    Mockito.verify(response).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ExceptionConstants.CHECKSUM_MISMATCH);
+    Mockito.verify(outputStream, Mockito.times(1)).write(Mockito.any(byte[].class), Mockito.eq(0), Mockito.eq(9));
+  }
+
+@Test
+  public void staleIfMatchWhilePut() throws IOException, ServletException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    servlet.setDirPath(directoryPath);
+    Files.write(directoryPath.resolve("5kPbqhGCRBDH5PKraEfP.txt"), "first".getBytes());
+    DocumentEntry document = servlet.getDocumentStore().get("5kPbqhGCRBDH5PKraEfP");
+    writePartContent("second");
+    List<Part> mockParts = new ArrayList<>();
+    mockParts.add(part);
+    Mockito.when(request.getParts()).thenReturn(mockParts);
+    Mockito.when(part.getSize()).thenReturn(6L);
+    Mockito.when(part.getSubmittedFileName()).thenReturn("test.txt");
+    Mockito.when(request.getPathInfo()).thenReturn("/5kPbqhGCRBDH5PKraEfP");
+
+    Mockito.when(request.getHeader("If-Match")).thenReturn("\"5-0\"");
+    servlet.doPut(request, response);
+    Mockito.verify(response, Mockito.times(1)).sendError(HttpServletResponse.SC_PRECONDITION_FAILED, ExceptionConstants.PRECONDITION_FAILED);
+
+    Mockito.when(request.getHeader("If-Match")).thenReturn(Preconditions.etag(document.getSize(), document.getLastModified()));
+    servlet.doPut(request, response);
+    org.junit.Assert.assertEquals("second",
+        new String(Files.readAllBytes(servlet.getDocumentStore().get("5kPbqhGCRBDH5PKraEfP").getPath())));
+    servlet.destroy();
+    Mockito.verify(response, Mockito.times(1)).setStatus(HttpServletResponse.SC_NO_CONTENT);
+  }
+
+    private static ServletInputStream servletInputStream(String content) {
+    ByteArrayInputStream inputStream = new ByteArrayInputStream(content.getBytes());
+    return new ServletInputStream() {
+      @Override
+      public int read() {
+        return inputStream.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        return inputStream.read(b, off, len);
+      }
+
+      @Override
+      public boolean isFinished() {
+        return inputStream.available() == 0;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setReadListener(ReadListener readListener) {
+      }
+    };
+  }
 }
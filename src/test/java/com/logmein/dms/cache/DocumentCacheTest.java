@@ -0,0 +1,129 @@
+package com.logmein.dms.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.logmein.dms.storage.DocumentEntry;
+import com.logmein.dms.storage.DocumentWriter;
+import com.logmein.dms.storage.FileSystemDocumentStore;
+import com.logmein.dms.storage.StorageLayout;
+
+public class DocumentCacheTest {
+
+  private FileSystemDocumentStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    store = new FileSystemDocumentStore(directoryPath, StorageLayout.FLAT);
+    store.setFsync(false);
+    store.open();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    store.destroy();
+  }
+
+  @Test
+  public void missThenHit() throws IOException {
+    DocumentCache cache = new DocumentCache(1024, 1024);
+    DocumentEntry document = document("a", "hello");
+
+    assertEquals("hello", read(cache.get(document, store)));
+    assertEquals("hello", read(cache.get(document, store)));
+
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(5, cache.getSizeInBytes());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedOverBudget() throws IOException {
+    DocumentCache cache = new DocumentCache(10, 10);
+    DocumentEntry first = document("a", "aaaa");
+    DocumentEntry second = document("b", "bbbb");
+    DocumentEntry third = document("c", "cccc");
+
+    cache.get(first, store);
+    cache.get(second, store);
+    cache.get(first, store); // b is now the least recently used
+    cache.get(third, store);
+
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2, cache.getEntryCount());
+    cache.get(first, store);
+    assertEquals(2, cache.getHitCount());
+  }
+
+  @Test
+  public void staleEntryIsReloaded() throws IOException {
+    DocumentCache cache = new DocumentCache(1024, 1024);
+    cache.get(document("a", "hello"), store);
+
+    DocumentEntry updated = document("a", "changed!");
+
+    assertEquals("changed!", read(cache.get(updated, store)));
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void replacedVersionIsNotLoaded() throws IOException {
+    DocumentCache cache = new DocumentCache(1024, 1024);
+    DocumentEntry looked = document("a", "hello");
+    document("a", "changed!"); // Replaced between the lookup and the load
+
+    assertNull(cache.get(looked, store));
+    assertEquals(0, cache.getEntryCount());
+    assertEquals("changed!", read(cache.get(store.get("a"), store)));
+  }
+
+  @Test
+  public void missIsLoadedFromTheOpenChannel() throws IOException {
+    DocumentCache cache = new DocumentCache(1024, 1024);
+    DocumentEntry document = document("a", "hello");
+    assertNull(cache.get(document));
+
+    try (FileChannel channel = store.openFile(document)) {
+      channel.position(2);
+      assertEquals("hello", read(cache.load(document, channel)));
+      assertEquals(2, channel.position());
+    }
+    assertEquals("hello", read(cache.get(document)));
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void invalidateAndOversizeDocuments() throws IOException {
+    DocumentCache cache = new DocumentCache(1024, 4);
+    assertNull(cache.get(document("big", "too large"), store));
+
+    DocumentEntry document = document("a", "abc");
+    cache.get(document, store);
+    cache.invalidate("a");
+    assertEquals(0, cache.getSizeInBytes());
+    cache.get(document, store);
+    assertEquals(2, cache.getMissCount());
+  }
+
+  private DocumentEntry document(String documentId, String contents) throws IOException {
+    DocumentWriter writer = store.newWriter(documentId, ".txt");
+    Files.write(writer.getStagingFile(), contents.getBytes(StandardCharsets.UTF_8));
+    return writer.commit();
+  }
+
+  private String read(ByteBuffer contents) {
+    byte[] bytes = new byte[contents.remaining()];
+    contents.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,242 @@
+package com.logmein.dms.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import javax.management.ObjectName;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.logmein.dms.DocumentManagementServlet;
+import com.logmein.dms.storage.DocumentEntry;
+
+/**
+ * Three embedded nodes, every document on two of them
+ */
+public class ClusterTest {
+
+  private static final String BOUNDARY = "clusterTestBoundary";
+
+  private static final String SECRET = "clusterTestSecret";
+
+  private final List<Server> servers = new ArrayList<>();
+
+  private final List<DocumentManagementServlet> servlets = new ArrayList<>();
+
+  private final List<String> nodes = new ArrayList<>();
+
+  private Cluster cluster;
+
+  @Before
+  public void setUp() throws Exception {
+    List<ServerConnector> connectors = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      Server server = new Server();
+      ServerConnector connector = new ServerConnector(server);
+      connector.setHost("localhost");
+      server.addConnector(connector);
+      connector.open(); // Binds the port, so that every node can be told the others
+      servers.add(server);
+      connectors.add(connector);
+      nodes.add("http://localhost:" + connector.getLocalPort());
+    }
+    for (int i = 0; i < 3; i++) {
+      DocumentManagementServlet servlet = new DocumentManagementServlet();
+      ServletHolder holder = new ServletHolder(servlet);
+      holder.setInitParameter("cluster.nodes", String.join(",", nodes));
+      holder.setInitParameter("cluster.self", nodes.get(i));
+      holder.setInitParameter("cluster.replicas", "1");
+      holder.setInitParameter("cluster.timeout", "5000");
+      holder.setInitParameter("cluster.secret", SECRET);
+      ServletContextHandler context = new ServletContextHandler();
+      context.addServlet(holder, "/storage/documents/*");
+      context.addServlet(holder, "/storage/metadata/*");
+      context.addServlet(holder, "/storage/batch");
+      servers.get(i).setHandler(context);
+      servers.get(i).start();
+      servlets.add(servlet);
+    }
+    LogManager.getRootLogger().setLevel(Level.WARN); // Jetty logs through slf4j-log4j12
+    cluster = new Cluster(nodes.get(0), nodes, 1, SECRET);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (Server server : servers) {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void documentsAreReachableFromEveryNode() throws Exception {
+    String documentId = post(nodes.get(0), "report.txt", "first version");
+    assertEquals(nodes.get(0), cluster.owners(documentId).get(0));
+    for (String node : nodes) {
+      assertEquals("first version", get(node, documentId));
+    }
+
+    // Written through a node that is not the primary
+    String other = nodes.get(otherThan(cluster.owners(documentId).get(0)));
+    assertEquals(204, upload(other, "PUT", "/" + documentId, "report.txt", "second version").getResponseCode());
+    String replica = cluster.owners(documentId).get(1);
+    DocumentManagementServlet replicaServlet = servlets.get(nodes.indexOf(replica));
+    DocumentManagementServlet primaryServlet = servlets.get(0);
+    await(() -> replicaServlet.getDocumentStore().get(documentId) != null
+        && replicaServlet.getDocumentStore().get(documentId).getSize() == "second version".length());
+    DocumentEntry copy = replicaServlet.getDocumentStore().get(documentId);
+    assertEquals(primaryServlet.getDocumentStore().get(documentId).getLastModified(), copy.getLastModified());
+    assertEquals("second version", get(replica, documentId));
+
+    HttpURLConnection delete = (HttpURLConnection) new URL(nodes.get(otherThan(nodes.get(0))) + "/storage/documents/"
+        + documentId).openConnection();
+    delete.setRequestMethod("DELETE");
+    assertEquals(204, delete.getResponseCode());
+    assertNull(primaryServlet.getDocumentStore().get(documentId));
+    await(() -> replicaServlet.getDocumentStore().get(documentId) == null);
+  }
+
+  @Test
+  public void nodesInOneJvmRegisterTheirOwnMBeans() throws Exception {
+    ObjectName pattern = new ObjectName("com.logmein.dms:type=Scrubber,*");
+    assertEquals(3, ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null).size());
+
+    servers.get(0).stop();
+    assertEquals(2, ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null).size());
+  }
+
+  @Test
+  public void readsFallBackToAReplica() throws Exception {
+    String documentId = post(nodes.get(0), "report.txt", "replicated");
+    String replica = cluster.owners(documentId).get(1);
+    DocumentManagementServlet replicaServlet = servlets.get(nodes.indexOf(replica));
+    await(() -> replicaServlet.getDocumentStore().get(documentId) != null);
+
+    servers.get(0).stop();
+    String nonOwner = nodes.get(otherThan(nodes.get(0), replica));
+    assertEquals("replicated", get(nonOwner, documentId));
+  }
+
+  @Test
+  public void metadataIsRoutedAndClusterWideQueriesAreRefused() throws Exception {
+    String documentId = post(nodes.get(0), "report.txt", "routed");
+    String nonOwner = nodes.get(otherThan(cluster.owners(documentId).toArray(new String[0])));
+    HttpURLConnection metadata = (HttpURLConnection) new URL(nonOwner + "/storage/metadata/" + documentId)
+        .openConnection();
+    assertEquals(200, metadata.getResponseCode());
+    assertTrue(read(metadata.getInputStream()).contains("report.txt"));
+
+    HttpURLConnection batch = (HttpURLConnection) new URL(nonOwner + "/storage/batch?id=" + documentId)
+        .openConnection();
+    assertEquals(501, batch.getResponseCode());
+    HttpURLConnection query = (HttpURLConnection) new URL(nonOwner + "/storage/metadata?tag=x").openConnection();
+    assertEquals(501, query.getResponseCode());
+  }
+
+  @Test
+  public void onlyThePrimaryCanSendReplicas() throws Exception {
+    String documentId = post(nodes.get(0), "report.txt", "replicated");
+    String replica = cluster.owners(documentId).get(1);
+    DocumentManagementServlet replicaServlet = servlets.get(nodes.indexOf(replica));
+    await(() -> replicaServlet.getDocumentStore().get(documentId) != null);
+
+    // A client posing as the primary
+    assertEquals(403, replicaDelete(replica, documentId, nodes.get(0), null).getResponseCode());
+    assertEquals(403, replicaDelete(replica, documentId, nodes.get(0), "guessed").getResponseCode());
+    // A node that is not the primary of the document
+    assertEquals(400, replicaDelete(replica, documentId, replica, SECRET).getResponseCode());
+    assertNotNull(replicaServlet.getDocumentStore().get(documentId));
+
+    assertEquals(204, replicaDelete(replica, documentId, nodes.get(0), SECRET).getResponseCode());
+    assertNull(replicaServlet.getDocumentStore().get(documentId));
+  }
+
+  private static HttpURLConnection replicaDelete(String node, String documentId, String from, String secret)
+      throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(node + "/storage/documents/" + documentId)
+        .openConnection();
+    connection.setRequestMethod("DELETE");
+    connection.setRequestProperty(Cluster.REPLICA_HEADER, Long.toString(Long.MAX_VALUE));
+    connection.setRequestProperty(Cluster.FORWARDED_HEADER, from);
+    if (secret != null) {
+      connection.setRequestProperty(Cluster.SECRET_HEADER, secret);
+    }
+    return connection;
+  }
+
+  private int otherThan(String... excluded) {
+    for (int i = 0; i < nodes.size(); i++) {
+      if (!java.util.Arrays.asList(excluded).contains(nodes.get(i))) {
+        return i;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  private static void await(Callable<Boolean> condition) throws Exception {
+    for (int i = 0; i < 100 && !condition.call(); i++) {
+      Thread.sleep(50);
+    }
+    assertTrue(condition.call());
+  }
+
+  private static String post(String node, String fileName, String contents) throws IOException {
+    HttpURLConnection connection = upload(node, "POST", "", fileName, contents);
+    assertEquals(201, connection.getResponseCode());
+    String documentId = read(connection.getInputStream());
+    assertNotNull(documentId);
+    return documentId;
+  }
+
+  private static String get(String node, String documentId) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(node + "/storage/documents/" + documentId)
+        .openConnection();
+    assertEquals(200, connection.getResponseCode());
+    return read(connection.getInputStream());
+  }
+
+  private static HttpURLConnection upload(String node, String method, String path, String fileName, String contents)
+      throws IOException {
+    byte[] body = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"" + fileName
+        + "\"\r\nContent-Type: text/plain\r\n\r\n" + contents + "\r\n--" + BOUNDARY + "--\r\n")
+        .getBytes(StandardCharsets.UTF_8);
+    HttpURLConnection connection = (HttpURLConnection) new URL(node + "/storage/documents" + path).openConnection();
+    connection.setRequestMethod(method);
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(body.length);
+    connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body);
+    }
+    return connection;
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream body = in) {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = body.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,45 @@
+package com.logmein.dms.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class HashRingTest {
+
+  @Test
+  public void ownersAreDistinctAndSpreadEvenly() {
+    HashRing ring = new HashRing(Arrays.asList("a", "b", "c", "d"), HashRing.DEFAULT_VIRTUAL_NODES);
+    Map<String, Integer> primaries = new HashMap<>();
+    for (int i = 0; i < 40000; i++) {
+      List<String> owners = ring.owners("document-" + i, 2);
+      assertEquals(2, owners.size());
+      assertNotEquals(owners.get(0), owners.get(1));
+      primaries.merge(owners.get(0), 1, Integer::sum);
+    }
+    for (int count : primaries.values()) {
+      assertTrue(primaries.toString(), count > 7000 && count < 13000);
+    }
+    assertEquals(4, ring.owners("document", 10).size());
+  }
+
+  @Test
+  public void addingANodeOnlyMovesItsShare() {
+    HashRing before = new HashRing(Arrays.asList("a", "b", "c"), HashRing.DEFAULT_VIRTUAL_NODES);
+    HashRing after = new HashRing(Arrays.asList("a", "b", "c", "d"), HashRing.DEFAULT_VIRTUAL_NODES);
+    int moved = 0;
+    for (int i = 0; i < 10000; i++) {
+      String previous = before.owners("document-" + i, 1).get(0);
+      String current = after.owners("document-" + i, 1).get(0);
+      if (!previous.equals(current)) {
+        assertEquals("d", current);
+        moved++;
+      }
+    }
+    assertTrue(Integer.toString(moved), moved > 1500 && moved < 3500);
+  }
+}
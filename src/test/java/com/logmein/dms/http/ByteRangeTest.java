@@ -0,0 +1,55 @@
+package com.logmein.dms.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.List;
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+  @Test
+  public void parsesSingleAndOpenEndedRanges() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=100-", 1000);
+    assertEquals(1, ranges.size());
+    assertEquals(100, ranges.get(0).getStart());
+    assertEquals(999, ranges.get(0).getEnd());
+    assertEquals("bytes 100-999/1000", ranges.get(0).toContentRange(1000));
+  }
+
+  @Test
+  public void parsesSuffixRange() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=-200", 1000);
+    assertEquals(800, ranges.get(0).getStart());
+    assertEquals(200, ranges.get(0).getLength());
+  }
+
+  @Test
+  public void clampsEndToLength() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=0-5000", 1000);
+    assertEquals(999, ranges.get(0).getEnd());
+  }
+
+  @Test
+  public void coalescesOverlappingRanges() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=500-600, 0-99, 550-700, 101-200", 1000);
+    assertEquals(3, ranges.size());
+    assertEquals(0, ranges.get(0).getStart());
+    assertEquals(101, ranges.get(1).getStart());
+    assertEquals(500, ranges.get(2).getStart());
+    assertEquals(700, ranges.get(2).getEnd());
+  }
+
+  @Test
+  public void unsatisfiableRangeGivesEmptyList() {
+    assertTrue(ByteRange.parse("bytes=1000-2000", 1000).isEmpty());
+  }
+
+  @Test
+  public void malformedRangeIsIgnored() {
+    assertNull(ByteRange.parse("bytes=abc", 1000));
+    assertNull(ByteRange.parse("bytes=10-5", 1000));
+    assertNull(ByteRange.parse("items=0-5", 1000));
+    assertNull(ByteRange.parse(null, 1000));
+  }
+}
@@ -0,0 +1,27 @@
+package com.logmein.dms.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class PreconditionsTest {
+
+  @Test
+  public void versionsWrittenWithinOneClockTickHaveDistinctEtags() {
+    String first = Preconditions.etag(5, 1500000000000L, 0x1234L, null);
+    String second = Preconditions.etag(5, 1500000000000L, 0xE3069283L, null);
+    assertNotEquals(first, second);
+    assertEquals("\"5-00001234\"", first);
+    assertEquals("\"5-e3069283-gzip\"", Preconditions.etag(5, 1500000000000L, 0xE3069283L, "gzip"));
+    assertEquals(Preconditions.etag(5, 1500000000000L), Preconditions.etag(5, 1500000000000L, null, null));
+
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getHeader("If-Match")).thenReturn(first);
+    assertFalse(Preconditions.isUpdateAllowed(request, 1500000000000L, second));
+    assertTrue(Preconditions.isUpdateAllowed(request, 1500000000000L, first));
+  }
+}
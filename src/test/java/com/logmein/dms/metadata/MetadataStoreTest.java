@@ -0,0 +1,100 @@
+package com.logmein.dms.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Test;
+
+public class MetadataStoreTest {
+
+  private final MetadataStore store = new MetadataStore();
+
+  private static DocumentMetadata metadata(String documentId, String contentType, long modified, String... tags) {
+    return new DocumentMetadata(documentId, documentId + ".bin", contentType, 1, null, null, modified, modified,
+        new HashSet<>(Arrays.asList(tags)));
+  }
+
+  private static List<String> ids(MetadataStore.Page page) {
+    List<String> ids = new ArrayList<>();
+    for (DocumentMetadata metadata : page.getDocuments()) {
+      ids.add(metadata.getDocumentId());
+    }
+    return ids;
+  }
+
+  @Test
+  public void queryFiltersByTypeTagAndDate() {
+    store.put(metadata("a", "application/pdf", 1000, "finance"));
+    store.put(metadata("b", "text/plain", 2000, "finance", "draft"));
+    store.put(metadata("c", "text/csv", 3000));
+    store.put(metadata("d", "application/pdf", 4000, "draft"));
+
+    assertEquals(Arrays.asList("d", "c", "b", "a"), ids(store.query(null, null, Long.MIN_VALUE, Long.MAX_VALUE, null, 10)));
+    assertEquals(Arrays.asList("d", "a"), ids(store.query("Application/PDF", null, Long.MIN_VALUE, Long.MAX_VALUE, null, 10)));
+    assertEquals(Arrays.asList("c", "b"), ids(store.query("text/*", null, Long.MIN_VALUE, Long.MAX_VALUE, null, 10)));
+    assertEquals(Arrays.asList("b", "a"), ids(store.query(null, "finance", Long.MIN_VALUE, Long.MAX_VALUE, null, 10)));
+    assertEquals(Arrays.asList("b"), ids(store.query("text/plain", "draft", Long.MIN_VALUE, Long.MAX_VALUE, null, 10)));
+    assertEquals(Arrays.asList("c", "b"), ids(store.query(null, null, 2000, 3000, null, 10)));
+    assertTrue(ids(store.query(null, "unknown", Long.MIN_VALUE, Long.MAX_VALUE, null, 10)).isEmpty());
+  }
+
+  @Test
+  public void cursorContinuesWithTheNextPage() {
+    for (int i = 0; i < 5; i++) {
+      store.put(metadata("doc" + i, "text/plain", 1000)); // Same time, ordered by Id
+    }
+    store.put(metadata("newest", "text/plain", 2000));
+
+    MetadataStore.Page first = store.query(null, null, Long.MIN_VALUE, Long.MAX_VALUE, null, 3);
+    assertEquals(Arrays.asList("newest", "doc0", "doc1"), ids(first));
+    MetadataStore.Page second = store.query(null, null, Long.MIN_VALUE, Long.MAX_VALUE, first.getNextCursor(), 3);
+    assertEquals(Arrays.asList("doc2", "doc3", "doc4"), ids(second));
+    assertNull(second.getNextCursor());
+  }
+
+  @Test
+  public void updateMovesTheDocumentInEveryIndex() {
+    store.put(metadata("a", "text/plain", 1000, "draft"));
+    store.put(metadata("b", "text/plain", 2000));
+    store.put(metadata("a", "application/pdf", 3000, "final"));
+
+    assertEquals(Arrays.asList("a", "b"), ids(store.query(null, null, Long.MIN_VALUE, Long.MAX_VALUE, null, 10)));
+    assertEquals(Arrays.asList("b"), ids(store.query("text/plain", null, Long.MIN_VALUE, Long.MAX_VALUE, null, 10)));
+    assertTrue(ids(store.query(null, "draft", Long.MIN_VALUE, Long.MAX_VALUE, null, 10)).isEmpty());
+    assertEquals(Arrays.asList("a"), ids(store.query(null, "final", Long.MIN_VALUE, Long.MAX_VALUE, null, 10)));
+
+    store.remove("a");
+    assertEquals(Collections.singletonList("b"), ids(store.query(null, null, Long.MIN_VALUE, Long.MAX_VALUE, null, 10)));
+  }
+
+  @Test
+  public void journaledMetadataIsRestored() throws IOException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    MetadataStore persisted = new MetadataStore(MetadataStore.journal(directoryPath));
+    persisted.load();
+    persisted.put(new DocumentMetadata("a", "Report été.pdf", "application/pdf", 6, "ab12", 0xE3069283L, 1000, 2000,
+        Collections.singleton("finance")));
+    persisted.put(metadata("b", "text/plain", 3000));
+    persisted.remove("b");
+    persisted.persist();
+
+    MetadataStore restored = new MetadataStore(MetadataStore.journal(directoryPath));
+    restored.load();
+    assertEquals(1, restored.size());
+    DocumentMetadata metadata = restored.get("a");
+    assertEquals("Report été.pdf", metadata.getFileName());
+    assertEquals("ab12", metadata.getChecksum());
+    assertEquals(Long.valueOf(0xE3069283L), metadata.getCrc32c());
+    assertEquals(1000, metadata.getCreated());
+    assertEquals(Arrays.asList("a"), ids(restored.query(null, "finance", Long.MIN_VALUE, Long.MAX_VALUE, null, 10)));
+    Files.walk(directoryPath).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+  }
+}
@@ -0,0 +1,94 @@
+package com.logmein.dms.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.logmein.dms.storage.DocumentEntry;
+import com.logmein.dms.storage.DocumentWriter;
+import com.logmein.dms.storage.FileSystemDocumentStore;
+import com.logmein.dms.storage.PackArchive;
+import com.logmein.dms.storage.StorageLayout;
+import com.logmein.dms.storage.Tiering;
+import com.logmein.dms.util.RateLimiter;
+
+public class ScrubberTest {
+
+  private FileSystemDocumentStore store;
+
+  private final MetadataStore metadataStore = new MetadataStore();
+
+  private Scrubber scrubber;
+
+  @Before
+  public void setUp() throws IOException {
+    Path directoryPath = Files.createTempDirectory("logmein_dms");
+    store = new FileSystemDocumentStore(directoryPath, StorageLayout.SHARDED);
+    store.setArchive(new PackArchive(directoryPath, PackArchive.DEFAULT_PACK_SIZE, 6));
+    store.open();
+    scrubber = new Scrubber(store, metadataStore, new RateLimiter(0), 2);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    scrubber.close();
+    store.destroy();
+  }
+
+  private DocumentEntry write(String documentId, String contents, boolean withCrc) throws IOException {
+    DocumentWriter writer = store.newWriter(documentId, ".txt");
+    ContentChecksum checksum = new ContentChecksum(false);
+    try (OutputStream out = checksum.wrap(writer.getOutputStream())) {
+      out.write(contents.getBytes());
+    }
+    DocumentEntry document = writer.commit();
+    metadataStore.put(new DocumentMetadata(documentId, documentId + ".txt", "text/plain", document.getSize(), null,
+        withCrc ? checksum.getValue() : null, document.getLastModified(), document.getLastModified(),
+        Collections.<String>emptySet()));
+    return document;
+  }
+
+  @Test
+  public void corruptDocumentsAreReported() throws IOException {
+    for (int i = 0; i < 40; i++) {
+      write(String.format("%020d", i), "contents of document " + i, true);
+    }
+    DocumentEntry damaged = store.get(String.format("%020d", 17));
+    byte[] bytes = Files.readAllBytes(damaged.getPath());
+    bytes[3] ^= 0x10;
+    Files.write(damaged.getPath(), bytes);
+
+    assertEquals(1, scrubber.run());
+    assertEquals(40, scrubber.getScrubbedDocumentCount());
+    assertEquals(Collections.singletonList(damaged.getDocumentId()), scrubber.getCorruptDocumentIds());
+
+    write(damaged.getDocumentId(), "replaced", true);
+    assertEquals(0, scrubber.run());
+    assertEquals(0, scrubber.getCorruptDocumentCount());
+  }
+
+  @Test
+  public void missingChecksumIsTakenOnFirstScrub() throws IOException {
+    write("5kPbqhGCRBDH5PKraEfP", "123456789", false);
+    assertNull(metadataStore.get("5kPbqhGCRBDH5PKraEfP").getCrc32c());
+
+    assertEquals(0, scrubber.run());
+    assertEquals(Long.valueOf(0xE3069283L), metadataStore.get("5kPbqhGCRBDH5PKraEfP").getCrc32c());
+  }
+
+  @Test
+  public void archivedDocumentsAreCheckedInPlace() throws IOException {
+    write("5kPbqhGCRBDH5PKraEfP", "cold contents", true);
+    new Tiering(store, 0, 0, new RateLimiter(0)).run();
+
+    assertEquals(0, scrubber.run());
+    assertEquals(1, scrubber.getScrubbedDocumentCount());
+    assertEquals(0, store.hotDocuments().size());
+  }
+}
@@ -0,0 +1,80 @@
+package com.logmein.dms.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import org.junit.Test;
+
+public class ServletMetricsTest {
+
+  @Test
+  public void histogramBucketsAreContiguous() {
+    for (long value = 0; value < 100000; value++) {
+      int bucket = LatencyHistogram.bucketOf(value);
+      assertTrue(value <= LatencyHistogram.upperBoundOf(bucket));
+      assertTrue(bucket == 0 || value > LatencyHistogram.upperBoundOf(bucket - 1));
+    }
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void percentilesAreWithinBucketPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int value = 1; value <= 10000; value++) {
+      histogram.record(value);
+    }
+
+    assertEquals(10000, histogram.getCount());
+    assertEquals(5000.5, histogram.getMean(), 0.001);
+    assertEquals(10000, histogram.getMax());
+    assertEquals(5000, histogram.getPercentile(50), 5000 * 0.07);
+    assertEquals(9900, histogram.getPercentile(99), 9900 * 0.07);
+    assertEquals(10000, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void requestsAreCountedByMethodAndStatus() {
+    ServletMetrics metrics = new ServletMetrics();
+    metrics.requestStarted();
+    metrics.requestStarted();
+    metrics.requestCompleted("GET", 2_000_000, 200);
+    metrics.operation("GET").addBytesOut(1024);
+
+    assertEquals(1, metrics.getInFlightRequests());
+    assertEquals(1, metrics.operation("GET").getCount());
+    assertEquals(2000, metrics.operation("GET").getMaxMicros());
+
+    metrics.requestCompleted("PATCH", 1000, 405);
+
+    assertEquals(0, metrics.getInFlightRequests());
+    assertEquals(Long.valueOf(1), metrics.getErrorCounts().get("405"));
+
+    StringWriter text = new StringWriter();
+    metrics.writeText(new PrintWriter(text));
+    assertTrue(text.toString().contains("dms_response_bytes_out_total{method=\"GET\"} 1024"));
+    assertTrue(text.toString().contains("dms_error_responses_total{status=\"405\"} 1"));
+    assertTrue(text.toString().contains("dms_request_latency_microseconds_count{method=\"GET\"} 1"));
+  }
+
+  @Test
+  public void lookupsAreTimedInNanoseconds() {
+    ServletMetrics metrics = new ServletMetrics();
+    metrics.lookupCompleted(250);
+    metrics.requestCompleted("GET", 3_000_000, 200);
+
+    assertEquals(250, metrics.getLookupNanos().getMax());
+    assertEquals(250, metrics.get99thPercentileLookupNanos(), 250 * 0.07);
+
+    StringWriter text = new StringWriter();
+    metrics.writeText(new PrintWriter(text));
+    assertTrue(text.toString().contains("dms_lookup_latency_nanoseconds_count 1\n"));
+    assertTrue(text.toString().contains(
+        "# TYPE dms_lookup_latency_max_nanoseconds gauge\ndms_lookup_latency_max_nanoseconds 250\n"));
+    assertTrue(text.toString().contains("dms_request_latency_max_microseconds{method=\"GET\"} 3000\n"));
+    assertTrue(text.toString().contains("dms_request_latency_mean_microseconds{method=\"GET\"} 3000.0\n"));
+    assertFalse(text.toString().contains("_microseconds_max"));
+    assertFalse(text.toString().contains("_microseconds_mean"));
+  }
+}
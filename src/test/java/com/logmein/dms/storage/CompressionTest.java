@@ -0,0 +1,178 @@
+package com.logmein.dms.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressionTest {
+
+  private Path directoryPath;
+
+  private FileSystemDocumentStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    directoryPath = Files.createTempDirectory("logmein_dms");
+    store = new FileSystemDocumentStore(directoryPath, StorageLayout.SHARDED,
+        new Compression(Compression.DEFAULT_TYPES, 1024, 6, 0.9));
+    store.open();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    store.destroy();
+  }
+
+  @Test
+  public void compressibleDocumentIsStoredCompressed() throws IOException {
+    String contents = repeated("log line\n", 1000);
+    write("5kPbqhGCRBDH5PKraEfP", ".txt", contents);
+
+    DocumentEntry document = store.get("5kPbqhGCRBDH5PKraEfP");
+    assertEquals(Compression.GZIP, document.getEncoding());
+    assertEquals(contents.length(), document.getSize());
+    assertTrue(document.getStoredSize() < document.getSize());
+    assertTrue(document.getPath().getFileName().toString().endsWith(".gz.txt"));
+    assertEquals(contents, read(document));
+  }
+
+  @Test
+  public void otherTypesAndSmallDocumentsAreStoredAsIs() throws IOException {
+    write("5kPbqhGCRBDH5PKraEfP", ".jpg", repeated("x", 4096));
+    write("Zz9bqhGCRBDH5PKraEfP", ".txt", "short");
+
+    assertNull(store.get("5kPbqhGCRBDH5PKraEfP").getEncoding());
+    assertNull(store.get("Zz9bqhGCRBDH5PKraEfP").getEncoding());
+  }
+
+  @Test
+  public void replacingAndReopeningKeepTheLatestContents() throws IOException {
+    write("5kPbqhGCRBDH5PKraEfP", ".txt", repeated("first\n", 1000));
+    write("5kPbqhGCRBDH5PKraEfP", ".txt", "now too short to compress");
+    store.close();
+
+    store.open();
+
+    DocumentEntry document = store.get("5kPbqhGCRBDH5PKraEfP");
+    assertNull(document.getEncoding());
+    assertEquals(1, store.size());
+    assertEquals("now too short to compress",
+        new String(Files.readAllBytes(document.getPath()), StandardCharsets.UTF_8));
+
+    write("5kPbqhGCRBDH5PKraEfP", ".txt", repeated("again\n", 1000));
+    store.close();
+    store.open();
+
+    document = store.get("5kPbqhGCRBDH5PKraEfP");
+    assertEquals(Compression.GZIP, document.getEncoding());
+    assertEquals(6000, document.getSize());
+    assertFalse(Files.exists(directoryPath.resolve("5k/Pb/5kPbqhGCRBDH5PKraEfP.txt")));
+  }
+
+  @Test
+  public void openVersionOutlivesReplaceUnderTheOtherName() throws IOException {
+    String contents = repeated("first\n", 1000);
+    write("5kPbqhGCRBDH5PKraEfP", ".txt", contents);
+    DocumentEntry compressed = store.get("5kPbqhGCRBDH5PKraEfP");
+
+    try (OpenDocument opened = OpenDocument.open(store, compressed)) {
+      write("5kPbqhGCRBDH5PKraEfP", ".txt", "now too short to compress");
+
+      assertNull(OpenDocument.open(store, compressed));
+      assertFalse(Files.exists(compressed.getPath()));
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      try (InputStream inputStream = opened.newInputStream()) {
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+          outputStream.write(buffer, 0, read);
+        }
+      }
+      assertEquals(contents, new String(outputStream.toByteArray(), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void readersDoNotWaitForCompression() throws Exception {
+    CountDownLatch compressing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    store = new FileSystemDocumentStore(directoryPath, StorageLayout.SHARDED,
+        new Compression(Compression.DEFAULT_TYPES, 1024, 6, 0.9) {
+          @Override
+          boolean compress(Path source, Path target) throws IOException {
+            compressing.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return super.compress(source, target);
+          }
+        });
+    store.open();
+    write("5kPbqhGCRBDH5PKraEfP", ".txt", "short");
+    DocumentEntry current = store.get("5kPbqhGCRBDH5PKraEfP");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> update = executor.submit(() -> {
+        write("5kPbqhGCRBDH5PKraEfP", ".txt", repeated("log line\n", 1000));
+        return null;
+      });
+      assertTrue(compressing.await(5, TimeUnit.SECONDS));
+
+      try (OpenDocument opened = OpenDocument.open(store, current)) {
+        assertEquals(current, opened.getEntry());
+      }
+      release.countDown();
+      update.get(5, TimeUnit.SECONDS);
+      assertEquals(Compression.GZIP, store.get("5kPbqhGCRBDH5PKraEfP").getEncoding());
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  private void write(String documentId, String extension, String contents) throws IOException {
+    DocumentWriter writer = store.newWriter(documentId, extension);
+    try (OutputStream outputStream = writer.getOutputStream()) {
+      outputStream.write(contents.getBytes(StandardCharsets.UTF_8));
+    }
+    writer.commit();
+  }
+
+  private static String read(DocumentEntry document) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try (InputStream inputStream = Compression.decompress(document.getPath())) {
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, read);
+      }
+    }
+    return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static String repeated(String s, int times) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      builder.append(s);
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,119 @@
+package com.logmein.dms.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.logmein.dms.http.Preconditions;
+
+public class DeduplicatingDocumentStoreTest {
+
+  private Path directoryPath;
+
+  private DeduplicatingDocumentStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    directoryPath = Files.createTempDirectory("logmein_dms");
+    store = new DeduplicatingDocumentStore(directoryPath, StorageLayout.SHARDED);
+    store.open();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    store.destroy();
+  }
+
+  @Test
+  public void identicalContentsAreStoredOnce() throws IOException {
+    write("5kPbqhGCRBDH5PKraEfP", "same attachment");
+    DocumentWriter writer = store.newWriter("Zz9bqhGCRBDH5PKraEfP", ".txt");
+    Files.write(writer.getStagingFile(), "same attachment".getBytes(StandardCharsets.UTF_8));
+    writer.commit();
+
+    assertEquals(2, store.size());
+    assertEquals(1, store.blobCount());
+
+    store.delete("5kPbqhGCRBDH5PKraEfP");
+    assertEquals(1, store.blobCount());
+    assertEquals("same attachment", new String(Files.readAllBytes(store.get("Zz9bqhGCRBDH5PKraEfP").getPath()),
+        StandardCharsets.UTF_8));
+
+    store.delete("Zz9bqhGCRBDH5PKraEfP");
+    assertEquals(0, store.blobCount());
+  }
+
+  @Test
+  public void sharingContentsKeepsModificationTimes() throws IOException {
+    store.close();
+    store.setPersistentIndex(true);
+    DocumentWriter writer = store.newWriter("5kPbqhGCRBDH5PKraEfP", ".txt");
+    Files.write(writer.getStagingFile(), "same attachment".getBytes(StandardCharsets.UTF_8));
+    writer.setLastModified(1500000000000L);
+    DocumentEntry first = writer.commit();
+    write("Zz9bqhGCRBDH5PKraEfP", "same attachment");
+
+    assertEquals(1, store.blobCount());
+    assertEquals(1500000000000L, store.get("5kPbqhGCRBDH5PKraEfP").getLastModified());
+    assertEquals(Preconditions.etag(first.getSize(), first.getLastModified()),
+        Preconditions.etag(store.get("5kPbqhGCRBDH5PKraEfP").getSize(),
+            store.get("5kPbqhGCRBDH5PKraEfP").getLastModified()));
+    assertNotEquals(1500000000000L, store.get("Zz9bqhGCRBDH5PKraEfP").getLastModified());
+
+    store.close();
+    store.open();
+    assertEquals(0, store.verify());
+    assertEquals(1500000000000L, store.get("5kPbqhGCRBDH5PKraEfP").getLastModified());
+  }
+
+  @Test
+  public void replacingReleasesPreviousContents() throws IOException {
+    write("5kPbqhGCRBDH5PKraEfP", "first");
+    write("5kPbqhGCRBDH5PKraEfP", "second");
+
+    assertEquals(1, store.blobCount());
+    assertNotNull(store.get("5kPbqhGCRBDH5PKraEfP"));
+  }
+
+  @Test
+  public void reopenDropsUnreferencedBlobs() throws IOException {
+    write("5kPbqhGCRBDH5PKraEfP", "kept");
+    write("Zz9bqhGCRBDH5PKraEfP", "orphaned");
+    Files.delete(store.get("Zz9bqhGCRBDH5PKraEfP").getPath()); // As if a crash lost the release
+    store.close();
+
+    store.open();
+
+    assertEquals(1, store.blobCount());
+  }
+
+@Test
+  public void interruptedUploadsAreRemovedOnOpen() throws IOException {
+    write("5kPbqhGCRBDH5PKraEfP", "kept");
+    Path staging = store.newWriter("Zz9bqhGCRBDH5PKraEfP", ".txt").getStagingFile();
+    Files.write(staging, "cut short".getBytes(StandardCharsets.UTF_8)); // As if a crash interrupted the upload
+
+    store = new DeduplicatingDocumentStore(directoryPath, StorageLayout.SHARDED);
+    store.open();
+
+    assertFalse(Files.exists(staging));
+    assertEquals(1, store.size());
+    assertEquals(1, store.blobCount());
+  }
+
+    private void write(String documentId, String contents) throws IOException {
+    DocumentWriter writer = store.newWriter(documentId, ".txt");
+    try (OutputStream outputStream = writer.getOutputStream()) {
+      outputStream.write(contents.getBytes(StandardCharsets.UTF_8));
+    }
+    writer.commit();
+  }
+}
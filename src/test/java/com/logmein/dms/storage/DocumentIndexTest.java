@@ -0,0 +1,111 @@
+package com.logmein.dms.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DocumentIndexTest {
+
+  private Path directoryPath;
+
+  private DocumentIndex index;
+
+  @Before
+  public void setUp() throws IOException {
+    directoryPath = Files.createTempDirectory("logmein_dms");
+    index = new DocumentIndex();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.walk(directoryPath).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+  }
+
+  @Test
+  public void loadRegistersExistingDocuments() throws IOException {
+    Files.write(directoryPath.resolve("5kPbqhGCRBDH5PKraEfP.txt"), "hello".getBytes());
+    Files.write(directoryPath.resolve("no-extension"), "ignored".getBytes());
+
+    index.load(directoryPath);
+
+    assertTrue(index.isLoaded());
+    assertEquals(1, index.size());
+    DocumentEntry entry = index.get("5kPbqhGCRBDH5PKraEfP");
+    assertEquals(".txt", entry.getExtension());
+    assertEquals(5L, entry.getSize());
+    assertEquals("5kPbqhGCRBDH5PKraEfP.txt", entry.getFileName());
+  }
+
+  @Test
+  public void invalidateClearsEntries() throws IOException {
+    Files.write(directoryPath.resolve("5kPbqhGCRBDH5PKraEfP.txt"), "hello".getBytes());
+    index.load(directoryPath);
+
+    index.invalidate();
+
+    assertEquals(0, index.size());
+    assertNull(index.get("5kPbqhGCRBDH5PKraEfP"));
+  }
+
+  @Test
+  public void putAndRemoveKeepIndexCurrent() {
+    Path file = directoryPath.resolve("abc.pdf");
+    index.put(new DocumentEntry("abc", file, ".pdf", 10L, 0L));
+    assertEquals(file, index.get("abc").getPath());
+
+    index.remove("abc");
+    assertNull(index.get("abc"));
+  }
+
+  @Test
+  public void journaledIndexIsRestoredWithoutScanning() throws IOException {
+    Files.write(directoryPath.resolve("5kPbqhGCRBDH5PKraEfP.txt"), "hello".getBytes());
+    index = new DocumentIndex(DocumentIndex.journal(directoryPath, StorageLayout.FLAT));
+    index.load(directoryPath);
+    Path added = Files.write(directoryPath.resolve("Zz9bqhGCRBDH5PKraEfP.pdf"), "added".getBytes());
+    index.put(new DocumentEntry("Zz9bqhGCRBDH5PKraEfP", added, ".pdf", 5L, 0L));
+    index.remove("5kPbqhGCRBDH5PKraEfP");
+    Files.write(directoryPath.resolve("Aa1bqhGCRBDH5PKraEfP.txt"), "unknown".getBytes()); // Behind the index's back
+    index.invalidate();
+
+    index = new DocumentIndex(DocumentIndex.journal(directoryPath, StorageLayout.FLAT));
+    index.load(directoryPath);
+
+    assertEquals(1, index.size());
+    assertEquals(added, index.get("Zz9bqhGCRBDH5PKraEfP").getPath());
+    assertNull(index.get("Aa1bqhGCRBDH5PKraEfP"));
+
+    assertEquals(3, index.verify(directoryPath)); // Size and time of the added one, plus the two others
+    assertEquals(3, index.size());
+    assertEquals(7L, index.get("Aa1bqhGCRBDH5PKraEfP").getSize());
+    index.invalidate();
+  }
+
+  @Test
+  public void truncatedLogRecordIsDropped() throws IOException {
+    index = new DocumentIndex(DocumentIndex.journal(directoryPath, StorageLayout.FLAT));
+    index.load(directoryPath);
+    index.put(new DocumentEntry("5kPbqhGCRBDH5PKraEfP", directoryPath.resolve("5kPbqhGCRBDH5PKraEfP.txt"), ".txt", 5L, 0L));
+    index.put(new DocumentEntry("Zz9bqhGCRBDH5PKraEfP", directoryPath.resolve("Zz9bqhGCRBDH5PKraEfP.txt"), ".txt", 5L, 0L));
+    index.invalidate();
+    Path log = directoryPath.resolve(Journal.DIRECTORY).resolve(DocumentIndex.JOURNAL_NAME + ".log");
+    byte[] records = Files.readAllBytes(log);
+    Files.write(log, java.util.Arrays.copyOf(records, records.length - 3)); // As if a crash cut the write
+
+    index = new DocumentIndex(DocumentIndex.journal(directoryPath, StorageLayout.FLAT));
+    index.load(directoryPath);
+    index.put(new DocumentEntry("Aa1bqhGCRBDH5PKraEfP", directoryPath.resolve("Aa1bqhGCRBDH5PKraEfP.txt"), ".txt", 5L, 0L));
+    index.invalidate();
+    index.load(directoryPath);
+
+    assertEquals(2, index.size());
+    assertNull(index.get("Zz9bqhGCRBDH5PKraEfP"));
+    index.invalidate();
+  }
+}
@@ -0,0 +1,175 @@
+package com.logmein.dms.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import com.logmein.dms.exception.PayloadTooLargeException;
+
+@RunWith(Parameterized.class)
+public class DocumentStoreTest {
+
+  @Parameters(name = "{0}")
+  public static Collection<Object[]> backends() {
+    return Arrays.asList(new Object[][] { { "filesystem" }, { "dedup" }, { "segment" }, { "memory" } });
+  }
+
+  private final String backend;
+
+  private Path directoryPath;
+
+  private DocumentStore store;
+
+  public DocumentStoreTest(String backend) {
+    this.backend = backend;
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    directoryPath = Files.createTempDirectory("logmein_dms");
+    store = newStore();
+    store.open();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    store.destroy();
+    if (Files.exists(directoryPath)) {
+      Files.walk(directoryPath).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Test
+  public void writeReadAndDelete() throws IOException {
+    DocumentEntry entry = write("5kPbqhGCRBDH5PKraEfP", ".txt", "hello world");
+
+    assertEquals(".txt", entry.getExtension());
+    assertEquals(11, entry.getSize());
+    assertEquals("hello world", read(store.get("5kPbqhGCRBDH5PKraEfP")));
+    assertEquals(1, store.size());
+
+    assertTrue(store.delete("5kPbqhGCRBDH5PKraEfP"));
+    assertNull(store.get("5kPbqhGCRBDH5PKraEfP"));
+    assertFalse(store.delete("5kPbqhGCRBDH5PKraEfP"));
+  }
+
+  @Test
+  public void writeThroughStagingFile() throws IOException {
+    DocumentWriter writer = store.newWriter("5kPbqhGCRBDH5PKraEfP", ".pdf");
+    Files.write(writer.getStagingFile(), "staged".getBytes(StandardCharsets.UTF_8));
+    writer.commit();
+
+    assertEquals("staged", read(store.get("5kPbqhGCRBDH5PKraEfP")));
+  }
+
+  @Test
+  public void replaceKeepsExtension() throws IOException {
+    write("5kPbqhGCRBDH5PKraEfP", ".TXT", "first");
+    DocumentEntry entry = write("5kPbqhGCRBDH5PKraEfP", ".txt", "second version");
+
+    assertEquals(".TXT", entry.getExtension());
+    assertEquals("second version", read(store.get("5kPbqhGCRBDH5PKraEfP")));
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void abortedWriteIsInvisible() throws IOException {
+    DocumentWriter writer = store.newWriter("5kPbqhGCRBDH5PKraEfP", ".txt");
+    try (OutputStream outputStream = writer.getOutputStream()) {
+      outputStream.write("lost".getBytes(StandardCharsets.UTF_8));
+    }
+    writer.abort();
+
+    assertNull(store.get("5kPbqhGCRBDH5PKraEfP"));
+  }
+
+  @Test
+  public void oversizedDocumentFailsWhileWritten() throws IOException {
+    if (!backend.equals("segment")) {
+      return; // Only records have a size limit
+    }
+    DocumentWriter writer = store.newWriter("5kPbqhGCRBDH5PKraEfP", ".txt");
+    byte[] chunk = new byte[64 * 1024];
+    long written = 0;
+    try (OutputStream outputStream = writer.getOutputStream()) {
+      while (written <= 2 * 1024 * 1024) {
+        outputStream.write(chunk);
+        written += chunk.length;
+      }
+      fail("Buffered more than a segment");
+    } catch (PayloadTooLargeException e) {
+      assertTrue(written < 1024 * 1024);
+    } finally {
+      writer.abort();
+    }
+    assertNull(store.get("5kPbqhGCRBDH5PKraEfP"));
+  }
+
+  @Test
+  public void reopenRestoresIndex() throws IOException {
+    if (backend.equals("memory")) {
+      return; // Nothing survives by design
+    }
+    write("5kPbqhGCRBDH5PKraEfP", ".txt", "kept");
+    write("Zz9bqhGCRBDH5PKraEfP", ".txt", "deleted");
+    store.delete("Zz9bqhGCRBDH5PKraEfP");
+    store.close();
+
+    store = newStore();
+    store.open();
+
+    assertEquals("kept", read(store.get("5kPbqhGCRBDH5PKraEfP")));
+    assertNull(store.get("Zz9bqhGCRBDH5PKraEfP"));
+  }
+
+  private DocumentStore newStore() {
+    switch (backend) {
+      case "filesystem":
+        return new FileSystemDocumentStore(directoryPath, StorageLayout.SHARDED);
+      case "dedup":
+        return new DeduplicatingDocumentStore(directoryPath, StorageLayout.SHARDED);
+      case "segment":
+        return new SegmentDocumentStore(directoryPath, 1024 * 1024);
+      default:
+        return new InMemoryDocumentStore(directoryPath);
+    }
+  }
+
+  private DocumentEntry write(String documentId, String extension, String contents) throws IOException {
+    DocumentWriter writer = store.newWriter(documentId, extension);
+    try (OutputStream outputStream = writer.getOutputStream()) {
+      outputStream.write(contents.getBytes(StandardCharsets.UTF_8));
+    }
+    return writer.commit();
+  }
+
+  private String read(DocumentEntry entry) throws IOException {
+    ByteBuffer contents = store.getContents(entry);
+    if (contents == null) {
+      contents = ByteBuffer.allocate((int) entry.getSize());
+      try (FileChannel channel = FileChannel.open(entry.getPath())) {
+        channel.read(contents, entry.getOffset());
+      }
+      contents.flip();
+    }
+    byte[] bytes = new byte[contents.remaining()];
+    contents.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,47 @@
+package com.logmein.dms.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LayoutMigratorTest {
+
+  private Path directoryPath;
+
+  @Before
+  public void setUp() throws IOException {
+    directoryPath = Files.createTempDirectory("logmein_dms");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.walk(directoryPath).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+  }
+
+  @Test
+  public void shardedLayoutUsesIdPrefixes() {
+    Path path = StorageLayout.SHARDED.resolve(directoryPath, "5kPbqhGCRBDH5PKraEfP", ".txt");
+    assertEquals(directoryPath.toAbsolutePath().resolve("5k/Pb/5kPbqhGCRBDH5PKraEfP.txt"), path);
+  }
+
+  @Test
+  public void migratesFlatDirectoryToShardedAndBack() throws IOException {
+    Files.write(directoryPath.resolve("5kPbqhGCRBDH5PKraEfP.txt"), "one".getBytes());
+    Files.write(directoryPath.resolve("Zz9bqhGCRBDH5PKraEfP.pdf"), "two".getBytes());
+
+    assertEquals(2, LayoutMigrator.migrate(directoryPath, StorageLayout.SHARDED));
+    assertTrue(Files.exists(directoryPath.resolve("5k/Pb/5kPbqhGCRBDH5PKraEfP.txt")));
+    assertTrue(Files.exists(directoryPath.resolve("Zz/9b/Zz9bqhGCRBDH5PKraEfP.pdf")));
+    assertEquals(0, LayoutMigrator.migrate(directoryPath, StorageLayout.SHARDED));
+
+    assertEquals(2, LayoutMigrator.migrate(directoryPath, StorageLayout.FLAT));
+    assertTrue(Files.exists(directoryPath.resolve("5kPbqhGCRBDH5PKraEfP.txt")));
+    assertFalse(Files.exists(directoryPath.resolve("5k")));
+  }
+}
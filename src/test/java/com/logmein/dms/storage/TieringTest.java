@@ -0,0 +1,126 @@
+package com.logmein.dms.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.logmein.dms.util.RateLimiter;
+
+public class TieringTest {
+
+  private Path directoryPath;
+
+  private FileSystemDocumentStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    directoryPath = Files.createTempDirectory("logmein_dms");
+    store = newStore();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    store.destroy();
+  }
+
+  private FileSystemDocumentStore newStore() throws IOException {
+    FileSystemDocumentStore store = new FileSystemDocumentStore(directoryPath, StorageLayout.SHARDED);
+    store.setArchive(new PackArchive(directoryPath, PackArchive.DEFAULT_PACK_SIZE, 6));
+    store.open();
+    return store;
+  }
+
+  private DocumentEntry write(String documentId, String contents) throws IOException {
+    DocumentWriter writer = store.newWriter(documentId, ".txt");
+    try (OutputStream out = writer.getOutputStream()) {
+      out.write(contents.getBytes());
+    }
+    return writer.commit();
+  }
+
+  @Test
+  public void coldDocumentsArePromotedOnRead() throws IOException {
+    DocumentEntry stored = write("5kPbqhGCRBDH5PKraEfP", "cold contents");
+    Tiering tiering = new Tiering(store, 0, 0, new RateLimiter(0));
+
+    assertEquals(1, tiering.run());
+    assertFalse(Files.exists(stored.getPath()));
+    assertEquals(1, store.size());
+    assertTrue(store.hotDocuments().isEmpty());
+
+    DocumentEntry promoted = store.get("5kPbqhGCRBDH5PKraEfP");
+    assertEquals("cold contents", new String(Files.readAllBytes(promoted.getPath())));
+    assertEquals(stored.getLastModified(), promoted.getLastModified());
+    assertNull(store.getArchive().get("5kPbqhGCRBDH5PKraEfP"));
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void lookupsLeaveColdDocumentsArchived() throws IOException {
+    write("5kPbqhGCRBDH5PKraEfP", "cold contents");
+    write("aaaaaaaaaaaaaaaaaaaa", "other cold contents");
+    new Tiering(store, 0, 0, new RateLimiter(0)).run();
+
+    DocumentEntry archived = store.lookup("5kPbqhGCRBDH5PKraEfP");
+    assertEquals(store.getArchive().get("5kPbqhGCRBDH5PKraEfP"), archived);
+    assertNull(store.lookup("bbbbbbbbbbbbbbbbbbbb"));
+    assertTrue(store.hotDocuments().isEmpty());
+
+    // Read in place from the pack, up to the end of the document
+    try (OpenDocument opened = OpenDocument.open(store, archived)) {
+      byte[] contents = new byte[(int) archived.getSize()];
+      try (InputStream in = opened.newInputStream()) {
+        assertEquals(contents.length, in.read(contents));
+      }
+      assertEquals("cold contents", new String(contents));
+    }
+    assertTrue(store.hotDocuments().isEmpty());
+  }
+
+  @Test
+  public void budgetEvictsLeastRecentlyReadFirst() throws IOException {
+    write("aaaaaaaaaaaaaaaaaaaa", "0123456789");
+    write("bbbbbbbbbbbbbbbbbbbb", "0123456789");
+    write("cccccccccccccccccccc", "0123456789");
+    Tiering tiering = new Tiering(store, Long.MAX_VALUE, 20, new RateLimiter(0));
+    tiering.accessed("cccccccccccccccccccc");
+    tiering.accessed("aaaaaaaaaaaaaaaaaaaa");
+
+    assertEquals(1, tiering.run());
+    assertNotNull(store.getArchive().get("bbbbbbbbbbbbbbbbbbbb"));
+    assertEquals(2, store.hotDocuments().size());
+  }
+
+  @Test
+  public void archiveSurvivesReopening() throws IOException {
+    write("5kPbqhGCRBDH5PKraEfP", "first");
+    write("6kPbqhGCRBDH5PKraEfP", "second");
+    new Tiering(store, 0, 0, new RateLimiter(0)).run();
+    assertTrue(store.delete("6kPbqhGCRBDH5PKraEfP"));
+    store.close();
+
+    store = newStore();
+    assertEquals(1, store.size());
+    assertNull(store.get("6kPbqhGCRBDH5PKraEfP"));
+    assertEquals("first", new String(Files.readAllBytes(store.get("5kPbqhGCRBDH5PKraEfP").getPath())));
+  }
+
+  @Test
+  public void updateReplacesArchivedVersion() throws IOException {
+    write("5kPbqhGCRBDH5PKraEfP", "old");
+    new Tiering(store, 0, 0, new RateLimiter(0)).run();
+
+    write("5kPbqhGCRBDH5PKraEfP", "new");
+    assertNull(store.getArchive().get("5kPbqhGCRBDH5PKraEfP"));
+    assertEquals("new", new String(Files.readAllBytes(store.get("5kPbqhGCRBDH5PKraEfP").getPath())));
+  }
+}
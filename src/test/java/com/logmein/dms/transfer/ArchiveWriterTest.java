@@ -0,0 +1,58 @@
+package com.logmein.dms.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.Test;
+
+public class ArchiveWriterTest {
+
+  @Test
+  public void tarEntriesAreBlockAligned() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArchiveWriter archive = ArchiveWriter.forFormat("tar", out);
+    archive.putEntry("a.txt", 5, 1500000000000L).write("hello".getBytes(StandardCharsets.US_ASCII));
+    archive.closeEntry();
+    archive.putEntry("b.pdf", 0, 1500000000000L);
+    archive.closeEntry();
+    archive.finish();
+
+    byte[] tar = out.toByteArray();
+    assertEquals(archive.length(Arrays.asList(5L, 0L)), tar.length);
+    assertEquals("a.txt", new String(tar, 0, 5, StandardCharsets.US_ASCII));
+    assertEquals("00000000005", new String(tar, 124, 11, StandardCharsets.US_ASCII));
+    assertEquals("ustar", new String(tar, 257, 5, StandardCharsets.US_ASCII));
+    assertEquals("hello", new String(tar, 512, 5, StandardCharsets.US_ASCII));
+    assertEquals("b.pdf", new String(tar, 1024, 5, StandardCharsets.US_ASCII));
+
+    long checksum = 0;
+    for (int i = 0; i < 512; i++) {
+      checksum += i >= 148 && i < 156 ? ' ' : tar[i] & 0xFF;
+    }
+    assertEquals(checksum, Long.parseLong(new String(tar, 148, 6, StandardCharsets.US_ASCII), 8));
+  }
+
+  @Test
+  public void zipIsReadable() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArchiveWriter archive = ArchiveWriter.forFormat("zip", out);
+    archive.putEntry("a.txt", 5, 1500000000000L).write("hello".getBytes(StandardCharsets.US_ASCII));
+    archive.closeEntry();
+    archive.finish();
+
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      ZipEntry entry = zip.getNextEntry();
+      assertEquals("a.txt", entry.getName());
+      byte[] contents = new byte[5];
+      assertEquals(5, zip.read(contents));
+      assertEquals("hello", new String(contents, StandardCharsets.US_ASCII));
+      assertNull(zip.getNextEntry());
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package com.logmein.dms.transfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import com.logmein.dms.util.Crc32c;
+
+public class AsyncTransferTest {
+
+  private ExecutorService executor;
+
+  private Path directoryPath;
+
+  private byte[] content;
+
+  @Before
+  public void setUp() throws IOException {
+    executor = Executors.newFixedThreadPool(2);
+    directoryPath = Files.createTempDirectory("logmein_dms");
+    content = new byte[50_000];
+    new Random(7).nextBytes(content);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    executor.shutdownNow();
+    Files.walk(directoryPath).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+  }
+
+  @Test
+  public void asyncDownloadStreamsRegion() throws Exception {
+    Path file = directoryPath.resolve("doc.bin");
+    Files.write(file, content);
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+    Mockito.when(request.startAsync()).thenReturn(asyncContext);
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    WriteListener[] listener = new WriteListener[1];
+    Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        sink.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        sink.write(b, off, len);
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+        listener[0] = writeListener;
+      }
+    });
+
+    AsyncDownload.start(request, response, FileChannel.open(file, StandardOpenOption.READ), 100, 40_000, executor,
+        4096, 0);
+    listener[0].onWritePossible();
+
+    Mockito.verify(asyncContext, Mockito.timeout(5000)).complete();
+    assertArrayEquals(Arrays.copyOfRange(content, 100, 40_100), sink.toByteArray());
+  }
+
+  @Test
+  public void asyncUploadWritesBodyAndCallsBack() throws Exception {
+    Path file = directoryPath.resolve(".upload.bin");
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+    Mockito.when(request.startAsync()).thenReturn(asyncContext);
+    ByteArrayInputStream source = new ByteArrayInputStream(content);
+    ReadListener[] listener = new ReadListener[1];
+    Mockito.when(request.getInputStream()).thenReturn(new ServletInputStream() {
+      @Override
+      public int read() {
+        return source.read();
+      }
+
+      @Override
+      public int read(byte[] b) {
+        return source.read(b, 0, Math.min(b.length, 1000));
+      }
+
+      @Override
+      public boolean isFinished() {
+        return source.available() == 0;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setReadListener(ReadListener readListener) {
+        listener[0] = readListener;
+      }
+    });
+    CountDownLatch done = new CountDownLatch(1);
+    long[] uploadedSize = new long[1];
+
+    Crc32c checksum = new Crc32c();
+    AsyncUpload.start(request, file, executor, 4096, 0, -1, checksum, (uploaded, size, response) -> {
+      uploadedSize[0] = size;
+      done.countDown();
+    });
+    listener[0].onDataAvailable();
+    Mockito.verify(asyncContext, Mockito.never()).complete();
+    while (source.available() > 0) {
+      Thread.sleep(5);
+    }
+    listener[0].onAllDataRead();
+
+    assertEquals(true, done.await(5, TimeUnit.SECONDS));
+    assertEquals(content.length, uploadedSize[0]);
+    assertArrayEquals(content, Files.readAllBytes(file));
+    Crc32c expected = new Crc32c();
+    expected.update(content, 0, content.length);
+    assertEquals(expected.getValue(), checksum.getValue());
+    Mockito.verify(asyncContext, Mockito.timeout(5000)).complete();
+  }
+}
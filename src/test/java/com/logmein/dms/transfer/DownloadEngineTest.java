@@ -0,0 +1,95 @@
+package com.logmein.dms.transfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class DownloadEngineTest {
+
+  private Path file;
+
+  private byte[] content;
+
+  @Before
+  public void setUp() throws IOException {
+    content = new byte[100_000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    file = Files.createTempFile("logmein_dms", ".bin");
+    Files.write(file, content);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.delete(file);
+  }
+
+  @Test
+  public void sendfileAttributesSetWhenContainerSupportsIt() throws IOException {
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    Mockito.when(request.getAttribute(DownloadEngine.SENDFILE_SUPPORTED)).thenReturn(Boolean.TRUE);
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      new DownloadEngine().transfer(channel, file, 10, content.length - 10, request, response);
+    }
+
+    Mockito.verify(request).setAttribute(DownloadEngine.SENDFILE_FILENAME, file.toAbsolutePath().toString());
+    Mockito.verify(request).setAttribute(DownloadEngine.SENDFILE_START, 10L);
+    Mockito.verify(request).setAttribute(DownloadEngine.SENDFILE_END, (long) content.length);
+    Mockito.verify(response, Mockito.never()).getOutputStream();
+  }
+
+  @Test
+  public void bufferedCopyWhenSendfileUnavailable() throws IOException {
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    Mockito.when(response.getOutputStream()).thenReturn(wrap(sink));
+
+    // Small buffer forces several positional reads
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      new DownloadEngine(true, DownloadEngine.DEFAULT_SENDFILE_THRESHOLD, 4096)
+          .transfer(channel, file, 5, 50_000, request, response);
+    }
+
+    assertArrayEquals(Arrays.copyOfRange(content, 5, 50_005), sink.toByteArray());
+  }
+
+  static ServletOutputStream wrap(ByteArrayOutputStream sink) {
+    return new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        sink.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        sink.write(b, off, len);
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+      }
+    };
+  }
+}
@@ -0,0 +1,97 @@
+package com.logmein.dms.transfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import com.logmein.dms.exception.MalformedRequestException;
+import com.logmein.dms.exception.PayloadTooLargeException;
+
+public class MultipartStreamReaderTest {
+
+  private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+  @Test
+  public void extractsBoundaryFromContentType() {
+    assertEquals(BOUNDARY, MultipartStreamReader.boundary("multipart/form-data; boundary=" + BOUNDARY));
+    assertEquals("abc", MultipartStreamReader.boundary("multipart/form-data; boundary=\"abc\""));
+    assertNull(MultipartStreamReader.boundary("application/octet-stream"));
+    assertNull(MultipartStreamReader.boundary(null));
+  }
+
+  @Test
+  public void streamsSinglePartAcrossBufferRefills() throws IOException {
+    byte[] content = new byte[200_000];
+    new Random(3).nextBytes(content);
+    MultipartStreamReader reader = reader(body(content, "test.pdf", false), 256, -1);
+
+    Map<String, String> headers = reader.nextPart();
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    long size = reader.readBody(sink, -1);
+
+    assertEquals("form-data; name=\"file\"; filename=\"test.pdf\"", headers.get("content-disposition"));
+    assertEquals(content.length, size);
+    assertArrayEquals(content, sink.toByteArray());
+    assertTrue(reader.isLastPart());
+    assertNull(reader.nextPart());
+  }
+
+  @Test
+  public void detectsSecondPart() throws IOException {
+    MultipartStreamReader reader = reader(body("hello".getBytes(), "a.txt", true), 256, -1);
+
+    reader.nextPart();
+    reader.readBody(new ByteArrayOutputStream(), -1);
+
+    assertFalse(reader.isLastPart());
+  }
+
+  @Test(expected = PayloadTooLargeException.class)
+  public void rejectsOversizePart() throws IOException {
+    MultipartStreamReader reader = reader(body(new byte[10_000], "a.txt", false), 256, -1);
+    reader.nextPart();
+    reader.readBody(new ByteArrayOutputStream(), 1000);
+  }
+
+  @Test(expected = PayloadTooLargeException.class)
+  public void rejectsOversizeRequest() throws IOException {
+    MultipartStreamReader reader = reader(body(new byte[10_000], "a.txt", false), 256, 5000);
+    reader.nextPart();
+    reader.readBody(new ByteArrayOutputStream(), -1);
+  }
+
+  @Test(expected = MalformedRequestException.class)
+  public void rejectsTruncatedBody() throws IOException {
+    byte[] body = body("hello world".getBytes(), "a.txt", false);
+    byte[] truncated = new byte[body.length - 20];
+    System.arraycopy(body, 0, truncated, 0, truncated.length);
+    MultipartStreamReader reader = reader(truncated, 256, -1);
+    reader.nextPart();
+    reader.readBody(new ByteArrayOutputStream(), -1);
+  }
+
+  private MultipartStreamReader reader(byte[] body, int bufferSize, long maxRequestSize) {
+    return new MultipartStreamReader(new ByteArrayInputStream(body), BOUNDARY, bufferSize, maxRequestSize);
+  }
+
+  private byte[] body(byte[] content, String fileName, boolean secondPart) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"" + fileName
+        + "\"\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+    body.write(content);
+    if (secondPart) {
+      body.write(("\r\n--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"other\"\r\n\r\nvalue")
+          .getBytes(StandardCharsets.US_ASCII));
+    }
+    body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    return body.toByteArray();
+  }
+}
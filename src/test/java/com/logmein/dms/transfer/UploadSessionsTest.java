@@ -0,0 +1,112 @@
+package com.logmein.dms.transfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.logmein.dms.exception.MalformedRequestException;
+import com.logmein.dms.storage.DocumentEntry;
+import com.logmein.dms.storage.FileSystemDocumentStore;
+import com.logmein.dms.storage.StorageLayout;
+
+public class UploadSessionsTest {
+
+  private Path directoryPath;
+
+  private FileSystemDocumentStore store;
+
+  private final UploadSessions sessions = new UploadSessions();
+
+  @Before
+  public void setUp() throws IOException {
+    directoryPath = Files.createTempDirectory("logmein_dms");
+    store = new FileSystemDocumentStore(directoryPath, StorageLayout.SHARDED);
+    store.open();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    sessions.abortAll();
+    store.destroy();
+  }
+
+  @Test
+  public void parallelChunksMakeOneDocument() throws Exception {
+    byte[] contents = new byte[1024 * 1024 + 17];
+    new Random(42).nextBytes(contents);
+    UploadSession session = sessions.open(store.newWriter("5kPbqhGCRBDH5PKraEfP", ".bin"), contents.length, -1);
+
+    int chunkSize = 64 * 1024;
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<Long>> chunks = new ArrayList<>();
+    // Last chunk first, so the file is extended before the gap is filled
+    for (int offset = contents.length / chunkSize * chunkSize; offset >= 0; offset -= chunkSize) {
+      int start = offset;
+      chunks.add(executor.submit(() -> session.write(start,
+          new ByteArrayInputStream(contents, start, Math.min(chunkSize, contents.length - start)))));
+    }
+    for (Future<Long> chunk : chunks) {
+      chunk.get();
+    }
+    executor.shutdown();
+
+    assertTrue(session.isComplete());
+    assertEquals(1, session.getReceivedRanges().size());
+    DocumentEntry document = session.commit();
+    assertEquals(contents.length, document.getSize());
+    assertArrayEquals(contents, Files.readAllBytes(store.get("5kPbqhGCRBDH5PKraEfP").getPath()));
+  }
+
+  @Test
+  public void missingChunkKeepsSessionOpen() throws IOException {
+    UploadSession session = sessions.open(store.newWriter("5kPbqhGCRBDH5PKraEfP", ".txt"), 10, -1);
+    session.write(5, new ByteArrayInputStream("world".getBytes()));
+
+    try {
+      session.commit();
+      org.junit.Assert.fail();
+    } catch (MalformedRequestException e) {
+      assertFalse(session.isComplete());
+    }
+    assertEquals(5, session.getReceivedRanges().get(0)[0]);
+
+    session.write(0, new ByteArrayInputStream("hello".getBytes()));
+    session.commit();
+    assertEquals("helloworld", new String(Files.readAllBytes(store.get("5kPbqhGCRBDH5PKraEfP").getPath())));
+  }
+
+  @Test(expected = MalformedRequestException.class)
+  public void chunkBeyondLengthIsRejected() throws IOException {
+    UploadSession session = sessions.open(store.newWriter("5kPbqhGCRBDH5PKraEfP", ".txt"), 4, -1);
+    session.write(2, new ByteArrayInputStream("abc".getBytes()));
+  }
+
+  @Test
+  public void idleSessionsExpire() throws IOException {
+    UploadSession session = sessions.open(store.newWriter("5kPbqhGCRBDH5PKraEfP", ".txt"), -1, -1);
+    session.write(0, new ByteArrayInputStream("hello".getBytes()));
+
+    assertTrue(sessions.expire(60 * 1000).isEmpty());
+    assertEquals(1, sessions.expire(-1).size());
+
+    assertNull(sessions.get(session.getUploadId()));
+    assertNull(store.get("5kPbqhGCRBDH5PKraEfP"));
+    try (java.util.stream.Stream<Path> files = Files.walk(directoryPath)) {
+      assertEquals(0, files.filter(Files::isRegularFile).count());
+    }
+  }
+}
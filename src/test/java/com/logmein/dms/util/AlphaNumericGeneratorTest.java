@@ -0,0 +1,33 @@
+package com.logmein.dms.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+public class AlphaNumericGeneratorTest {
+
+  @Test
+  public void idsAreFixedLengthAlphaNumeric() {
+    Set<String> ids = new HashSet<>();
+    for (int i = 0; i < 10000; i++) {
+      String id = AlphaNumericGenerator.generateNextAlphaNumericId();
+      assertEquals(AlphaNumericGenerator.ALPHA_NUMERIC_ID_LENGTH, id.length());
+      assertTrue(id, id.matches("[0-9A-Za-z]+"));
+      ids.add(id);
+    }
+    assertEquals(10000, ids.size());
+  }
+
+  @Test
+  public void timeOrderedIdsSortByCreationTime() throws InterruptedException {
+    AlphaNumericGenerator generator = new AlphaNumericGenerator(true, null);
+    String first = generator.next();
+    Thread.sleep(2);
+    String second = generator.next();
+
+    assertEquals(AlphaNumericGenerator.ALPHA_NUMERIC_ID_LENGTH, second.length());
+    assertTrue(first.compareTo(second) < 0);
+  }
+}
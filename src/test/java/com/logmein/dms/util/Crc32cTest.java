@@ -0,0 +1,61 @@
+package com.logmein.dms.util;
+
+import static org.junit.Assert.assertEquals;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Checksum;
+import org.junit.Test;
+
+public class Crc32cTest {
+
+  private static long crc32c(byte[] bytes) {
+    Crc32c crc = new Crc32c();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+
+  @Test
+  public void knownValues() {
+    // Check value of the algorithm, and the iSCSI test vectors of RFC 3720 B.4
+    assertEquals(0xE3069283L, crc32c("123456789".getBytes(StandardCharsets.US_ASCII)));
+    assertEquals(0x8A9136AAL, crc32c(new byte[32]));
+    byte[] ones = new byte[32];
+    Arrays.fill(ones, (byte) 0xFF);
+    assertEquals(0x62A8AB43L, crc32c(ones));
+    byte[] ascending = new byte[32];
+    for (int i = 0; i < ascending.length; i++) {
+      ascending[i] = (byte) i;
+    }
+    assertEquals(0x46DD794EL, crc32c(ascending));
+
+    // The JDK's own implementation on Java 9 and later
+    Checksum created = Crc32c.create();
+    created.update(ascending, 0, ascending.length);
+    assertEquals(0x46DD794EL, created.getValue());
+  }
+
+  @Test
+  public void sliceByEightMatchesBytewise() {
+    Random random = new Random(42);
+    byte[] data = new byte[4099];
+    random.nextBytes(data);
+    for (int length : new int[] { 0, 1, 7, 8, 9, 63, 1000, 4096 }) {
+      int offset = random.nextInt(3);
+      Crc32c sliced = new Crc32c();
+      sliced.update(data, offset, length);
+      Crc32c bytewise = new Crc32c();
+      for (int i = offset; i < offset + length; i++) {
+        bytewise.update(data[i]);
+      }
+      assertEquals(bytewise.getValue(), sliced.getValue());
+
+      Crc32c direct = new Crc32c();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+      buffer.put(data, offset, length).flip();
+      direct.update(buffer);
+      assertEquals(bytewise.getValue(), direct.getValue());
+    }
+  }
+}